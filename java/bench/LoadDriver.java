@@ -0,0 +1,307 @@
+ import java.io.PrintStream;
+ import java.util.ArrayList;
+ import java.util.LinkedHashMap;
+ import java.util.List;
+ import java.util.Map;
+ import java.util.Random;
+ import java.util.concurrent.atomic.AtomicLong;
+
+ /**
+  * This class replays a mix of customer, driver and manager sessions
+  * against a PizzaStore on many threads, the way the server is used when
+  * many clients are connected.  Each session logs in and runs a short,
+  * role-specific sequence of menu handlers through a ScriptedSession; which
+  * users, stores and items are used is Zipf skewed like the generated data.
+  * After a warmup the driver runs for a fixed time and reports throughput
+  * and p50/p99/p99.9 latency for every operation.  Sessions place orders
+  * and change statuses, so point it at a scratch database.
+  *
+  * Settings, as -Dpizzastore.load.<name>=<value>: threads (16),
+  * warmupSeconds (10), durationSeconds (60), thinkTimeMs (0),
+  * customerPercent (70), driverPercent (20); the rest are managers.
+  *
+  */
+ public class LoadDriver {
+
+    private static final int THREADS = Integer.getInteger("pizzastore.load.threads", 16);
+    private static final int WARMUP_SECONDS = Integer.getInteger("pizzastore.load.warmupSeconds", 10);
+    private static final int DURATION_SECONDS = Integer.getInteger("pizzastore.load.durationSeconds", 60);
+    private static final int THINK_TIME_MS = Integer.getInteger("pizzastore.load.thinkTimeMs", 0);
+    private static final int CUSTOMER_PERCENT = Integer.getInteger("pizzastore.load.customerPercent", 70);
+    private static final int DRIVER_PERCENT = Integer.getInteger("pizzastore.load.driverPercent", 20);
+
+    // users of each role sampled from the database
+    private static final int USERS_PER_ROLE = 1000;
+    private static final int RECENT_ORDERS = 1000;
+
+    // operations in report order
+    private static final String[] OPERATIONS = {
+       "login", "viewMenu", "placeOrder", "viewRecentOrders", "viewOrderInfo",
+       "viewAllOrders", "viewStores", "updateOrderStatus", "session"
+    };
+
+    // a user the driver can log in as
+    private static class User {
+       final String login;
+       final String password;
+       final String role;
+       final int lastOrderID;
+
+       User(String login, String password, String role, int lastOrderID) {
+          this.login = login;
+          this.password = password;
+          this.role = role;
+          this.lastOrderID = lastOrderID;
+       }
+    }//end User
+
+    // latencies and errors of one operation
+    private static class Stats {
+       final LatencyHistogram histogram = new LatencyHistogram();
+       final AtomicLong errors = new AtomicLong();
+    }
+
+    private final PizzaStore _esql;
+    private final Map<String, Stats> _stats = new LinkedHashMap<String, Stats>();
+    private final List<User> _customers;
+    private final List<User> _drivers;
+    private final List<User> _managers;
+    private final List<Integer> _openStores = new ArrayList<Integer>();
+    private final List<String> _itemNames = new ArrayList<String>();
+    private final List<Integer> _recentOrders = new ArrayList<Integer>();
+    private final ZipfSampler _itemRank;
+    private final ZipfSampler _storeRank;
+
+    // operations that start before this System.nanoTime() are warmup
+    private long _measureFrom = Long.MAX_VALUE;
+
+    /**
+     * Creates a driver, sampling users, stores, items and orders from the
+     * database
+     *
+     * @param esql the data-access object under load
+     * @throws java.sql.SQLException when the samples cannot be read
+     */
+    public LoadDriver(PizzaStore esql) throws java.sql.SQLException {
+       this._esql = esql;
+       for (String operation : OPERATIONS)
+          this._stats.put(operation, new Stats());
+       this._customers = users("customer");
+       this._drivers = users("driver");
+       this._managers = users("manager");
+       if (this._customers.isEmpty() || this._drivers.isEmpty() || this._managers.isEmpty())
+          throw new IllegalStateException("The database needs customers, drivers and managers");
+       for (StoreDirectory.Store store : esql.stores().list(null, null, true))
+          this._openStores.add(store.storeID);
+       for (MenuCatalog.MenuItem item : esql.menu().byName())
+          this._itemNames.add(item.itemName);
+       ColumnarResult orders = esql.executeQueryAndReturnColumns(
+          "SELECT orderID FROM FoodOrder ORDER BY placedAt DESC, orderID DESC LIMIT " + RECENT_ORDERS);
+       for (int row = 0; row < orders.rowCount(); ++row)
+          this._recentOrders.add(orders.getInt(row, 0));
+       if (this._openStores.isEmpty() || this._itemNames.isEmpty() || this._recentOrders.isEmpty())
+          throw new IllegalStateException("The database needs open stores, menu items and orders");
+       this._itemRank = new ZipfSampler(this._itemNames.size(), 1.2);
+       this._storeRank = new ZipfSampler(this._openStores.size(), 1.1);
+    }//end LoadDriver
+
+    private List<User> users(String role) throws java.sql.SQLException {
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT u.login, u.password, u.role, "
+          + "(SELECT MAX(o.orderID) FROM FoodOrder o WHERE o.login = u.login) "
+          + "FROM Users u WHERE TRIM(u.role) = ? ORDER BY u.login LIMIT " + USERS_PER_ROLE, role);
+       List<User> users = new ArrayList<User>(rows.rowCount());
+       for (int row = 0; row < rows.rowCount(); ++row)
+          users.add(new User(rows.getString(row, 0), rows.getString(row, 1), rows.getString(row, 2),
+                             rows.isNull(row, 3) ? 0 : rows.getInt(row, 3)));
+       return users;
+    }//end users
+
+    /**
+     * Runs the warmup, then the measured phase, and prints the report.
+     *
+     * @param out the stream the report is printed to
+     */
+    public void run(PrintStream out) throws InterruptedException {
+       this._measureFrom = System.nanoTime() + WARMUP_SECONDS * 1000000000L;
+       final long deadline = this._measureFrom + DURATION_SECONDS * 1000000000L;
+       Thread[] threads = new Thread[THREADS];
+       for (int t = 0; t < threads.length; ++t) {
+          final Random random = new Random(166L + t);
+          threads[t] = new Thread("load-" + t) {
+             public void run() {
+                ScriptedSession.ErrorSink sink = new ScriptedSession.ErrorSink();
+                while (System.nanoTime() < deadline) {
+                   long begin = System.nanoTime();
+                   boolean ok = session(random, sink);
+                   record("session", begin, !ok);
+                   if (THINK_TIME_MS > 0) {
+                      try {
+                         Thread.sleep(THINK_TIME_MS);
+                      } catch (InterruptedException e) {
+                         return;
+                      }
+                   }
+                }
+             }
+          };
+          threads[t].start();
+       }
+       for (Thread thread : threads)
+          thread.join();
+
+       out.println(THREADS + " threads, warmup " + WARMUP_SECONDS + "s, measured " + DURATION_SECONDS
+                   + "s, latencies in ms");
+       out.println(String.format("%-18s %9s %10s %9s %9s %9s %9s %7s",
+                                 "operation", "ops", "ops/s", "p50", "p99", "p99.9", "max", "errors"));
+       for (Map.Entry<String, Stats> entry : this._stats.entrySet()) {
+          LatencyHistogram histogram = entry.getValue().histogram;
+          if (histogram.count() == 0)
+             continue;
+          out.println(String.format("%-18s %9d %10.1f %9.3f %9.3f %9.3f %9.3f %7d",
+                                    entry.getKey(), histogram.count(),
+                                    histogram.count() / (double) DURATION_SECONDS,
+                                    histogram.percentile(0.50) / 1e6,
+                                    histogram.percentile(0.99) / 1e6,
+                                    histogram.percentile(0.999) / 1e6,
+                                    histogram.max() / 1e6,
+                                    entry.getValue().errors.get()));
+       }
+    }//end run
+
+    // runs one session of a randomly chosen role, returns false on any error
+    private boolean session(Random random, ScriptedSession.ErrorSink sink) {
+       int percent = random.nextInt(100);
+       if (percent < CUSTOMER_PERCENT)
+          return customer(pick(this._customers, random), random, sink);
+       if (percent < CUSTOMER_PERCENT + DRIVER_PERCENT)
+          return driver(pick(this._drivers, random), random, sink);
+       return manager(pick(this._managers, random), random, sink);
+    }
+
+    // browse the menu, place an order, check on orders
+    private boolean customer(User user, Random random, ScriptedSession.ErrorSink sink) {
+       boolean ok = step("login", user, sink, user.login, user.password);
+       ok &= step("viewMenu", user, sink, random.nextBoolean() ? "1" : "4");
+       ok &= step("placeOrder", user, sink, orderScript(random));
+       ok &= step("viewRecentOrders", user, sink);
+       if (user.lastOrderID != 0)
+          ok &= step("viewOrderInfo", user, sink, Integer.toString(user.lastOrderID));
+       return ok;
+    }
+
+    // look at the newest orders and move an open one to its next status
+    private boolean driver(User user, Random random, ScriptedSession.ErrorSink sink) {
+       boolean ok = step("login", user, sink, user.login, user.password);
+       ok &= step("viewAllOrders", user, sink, "1", "q");
+       List<OpenOrderQueue.OpenOrder> open;
+       try {
+          open = this._esql.openOrders().list(0);
+       } catch (java.sql.SQLException e) {
+          return false;
+       }
+       if (open.isEmpty())
+          return ok;
+       OpenOrderQueue.OpenOrder order = open.get(random.nextInt(open.size()));
+       String next = OrderTransitions.next(order.orderStatus);
+       ok &= step("updateOrderStatus", user, sink, Integer.toString(order.orderID),
+                  Integer.toString(OrderTransitions.STATUSES.indexOf(next) + 1));
+       return ok;
+    }
+
+    // review orders and stores
+    private boolean manager(User user, Random random, ScriptedSession.ErrorSink sink) {
+       boolean ok = step("login", user, sink, user.login, user.password);
+       ok &= step("viewAllOrders", user, sink, "1", "q");
+       ok &= step("viewStores", user, sink, "", "yes", "q");
+       int orderID = this._recentOrders.get(random.nextInt(this._recentOrders.size()));
+       ok &= step("viewOrderInfo", user, sink, Integer.toString(orderID));
+       return ok;
+    }
+
+    // runs one handler as the user and records its latency
+    private boolean step(String operation, User user, ScriptedSession.ErrorSink sink, String... input) {
+       Session session = ScriptedSession.create(operation.equals("login") ? null : user.login,
+                                                operation.equals("login") ? null : user.role,
+                                                sink.stream, input);
+       long begin = System.nanoTime();
+       boolean failed = false;
+       this._esql.metrics().enter(operation);
+       try {
+          switch (operation) {
+             case "login": failed = PizzaStore.LogIn(this._esql, session) == null; break;
+             case "viewMenu": PizzaStore.viewMenu(this._esql, session); break;
+             case "placeOrder": PizzaStore.placeOrder(this._esql, session); break;
+             case "viewRecentOrders": PizzaStore.viewRecentOrders(this._esql, session); break;
+             case "viewOrderInfo": PizzaStore.viewOrderInfo(this._esql, session); break;
+             case "viewAllOrders": PizzaStore.viewAllOrders(this._esql, session); break;
+             case "viewStores": PizzaStore.viewStores(this._esql, session); break;
+             case "updateOrderStatus": PizzaStore.updateOrderStatus(this._esql, session); break;
+             default: throw new IllegalArgumentException("Unknown operation " + operation);
+          }
+       } catch (RuntimeException e) {
+          failed = true;
+       } finally {
+          this._esql.metrics().exit();
+       }
+       failed |= sink.reset();
+       record(operation, begin, failed);
+       return !failed;
+    }//end step
+
+    private void record(String operation, long begin, boolean failed) {
+       if (begin < this._measureFrom)
+          return;
+       Stats stats = this._stats.get(operation);
+       stats.histogram.record(System.nanoTime() - begin);
+       if (failed)
+          stats.errors.incrementAndGet();
+    }
+
+    // the input placeOrder reads for a small order of popular items
+    private String[] orderScript(Random random) {
+       List<String> lines = new ArrayList<String>();
+       lines.add(Integer.toString(this._openStores.get(this._storeRank.next(random))));
+       int items = 1 + random.nextInt(4);
+       for (int i = 0; i < items; ++i) {
+          lines.add(this._itemNames.get(this._itemRank.next(random)));
+          lines.add(Integer.toString(1 + random.nextInt(3)));
+          lines.add(i + 1 < items ? "yes" : "no");
+       }
+       return lines.toArray(new String[lines.size()]);
+    }
+
+    // the sampled users are in login order; skew towards a few busy ones
+    private static User pick(List<User> users, Random random) {
+       int index = (int) (users.size() * Math.pow(random.nextDouble(), 3));
+       return users.get(Math.min(index, users.size() - 1));
+    }
+
+    /**
+     * Runs the load.
+     *
+     * @param args <dbname> <port> <user>
+     */
+    public static void main(String[] args) {
+       if (args.length != 3) {
+          System.err.println (
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             LoadDriver.class.getName () +
+             " <dbname> <port> <user>");
+          return;
+       }//end if
+
+       PizzaStore esql = null;
+       try {
+          Class.forName ("org.postgresql.Driver").newInstance ();
+          esql = new PizzaStore (args[0], args[1], args[2], "");
+          new LoadDriver(esql).run(System.out);
+       } catch (Exception e) {
+          System.err.println (e.getMessage ());
+       } finally {
+          if (esql != null)
+             esql.cleanup ();
+       }//end try
+    }//end main
+ }//end LoadDriver
@@ -0,0 +1,267 @@
+ import java.io.PrintStream;
+ import java.util.ArrayList;
+ import java.util.Arrays;
+ import java.util.LinkedHashMap;
+ import java.util.List;
+ import java.util.Map;
+ import java.util.concurrent.atomic.AtomicLong;
+
+ /**
+  * This class benchmarks the PizzaStore data-access paths the way a client
+  * exercises them: every operation runs the real menu handler against a
+  * scripted Session whose output is discarded, so SQL, caches, pooling and
+  * printing are all measured together.  Each benchmark warms up, then runs
+  * for a fixed time on a number of threads and reports throughput and
+  * latency percentiles.  Operations write to the database (orders are
+  * placed, statuses change), so run it against a scratch copy loaded by
+  * sql/scripts/create_db.sh.
+  *
+  * Settings, as -Dpizzastore.bench.<name>=<value>: warmupSeconds (5),
+  * measureSeconds (10), threads (1).
+  *
+  */
+ public class PizzaStoreBenchmark {
+
+    private static final int WARMUP_SECONDS = Integer.getInteger("pizzastore.bench.warmupSeconds", 5);
+    private static final int MEASURE_SECONDS = Integer.getInteger("pizzastore.bench.measureSeconds", 10);
+    private static final int THREADS = Integer.getInteger("pizzastore.bench.threads", 1);
+
+    /**
+     * One benchmarked operation.
+     */
+    private interface Operation {
+       /**
+        * Runs the operation once.
+        *
+        * @param iteration a per-thread counter, to vary the input
+        * @param err the stream the handler reports errors to
+        */
+       void run(long iteration, PrintStream err) throws Exception;
+    }
+
+    private final PizzaStore _esql;
+    private final Map<String, Operation> _benchmarks = new LinkedHashMap<String, Operation>();
+
+    // fixture data read from the database before the run
+    private String _customer;
+    private String _customerPassword;
+    private String _customerRole;
+    private String _manager;
+    private String _managerRole;
+    private int _storeID;
+    private int _customerOrderID;
+    private List<String> _itemNames = new ArrayList<String>();
+    private List<Integer> _orderIDs = new ArrayList<Integer>();
+    private String _orderIDList;
+
+    /**
+     * Creates the benchmarks, reading fixture data from the database
+     *
+     * @param esql the data-access object under test
+     * @throws java.sql.SQLException when the fixture data cannot be read
+     */
+    public PizzaStoreBenchmark(PizzaStore esql) throws java.sql.SQLException {
+       this._esql = esql;
+       loadFixtures();
+       define();
+    }
+
+    private void loadFixtures() throws java.sql.SQLException {
+       ColumnarResult users = this._esql.executeQueryAndReturnColumns(
+          "SELECT login, password, role FROM Users WHERE TRIM(role) = ? ORDER BY login LIMIT 1", "customer");
+       ColumnarResult managers = this._esql.executeQueryAndReturnColumns(
+          "SELECT login, role FROM Users WHERE TRIM(role) = ? ORDER BY login LIMIT 1", "manager");
+       if (users.rowCount() == 0 || managers.rowCount() == 0)
+          throw new IllegalStateException("The database needs at least one customer and one manager");
+       this._customer = users.getString(0, 0);
+       this._customerPassword = users.getString(0, 1);
+       this._customerRole = users.getString(0, 2);
+       this._manager = managers.getString(0, 0);
+       this._managerRole = managers.getString(0, 1);
+
+       List<StoreDirectory.Store> open = this._esql.stores().list(null, null, true);
+       if (open.isEmpty())
+          throw new IllegalStateException("The database needs at least one open store");
+       this._storeID = open.get(0).storeID;
+
+       for (MenuCatalog.MenuItem item : this._esql.menu().byName())
+          this._itemNames.add(item.itemName);
+
+       ColumnarResult orders = this._esql.executeQueryAndReturnColumns(
+          "SELECT orderID FROM FoodOrder ORDER BY placedAt DESC, orderID DESC LIMIT 1000");
+       for (int row = 0; row < orders.rowCount(); ++row)
+          this._orderIDs.add(orders.getInt(row, 0));
+       ColumnarResult own = this._esql.executeQueryAndReturnColumns(
+          "SELECT orderID FROM FoodOrder WHERE login = ? ORDER BY orderID LIMIT 1", this._customer);
+       if (this._orderIDs.isEmpty() || own.rowCount() == 0)
+          throw new IllegalStateException("The database needs orders placed by " + this._customer);
+       StringBuilder ids = new StringBuilder();
+       for (int orderID : this._orderIDs)
+          ids.append(ids.length() == 0 ? "" : ", ").append(orderID);
+       this._orderIDList = ids.toString();
+       this._customerOrderID = own.getInt(0, 0);
+    }//end loadFixtures
+
+    private void define() {
+       this._benchmarks.put("login", new Operation() {
+          public void run(long iteration, PrintStream err) throws Exception {
+             PizzaStore.LogIn(_esql, ScriptedSession.create(null, null, err, _customer, _customerPassword));
+          }
+       });
+       this._benchmarks.put("menuBrowse", new Operation() {
+          public void run(long iteration, PrintStream err) throws Exception {
+             // alternate between the full menu and the price-sorted view
+             PizzaStore.viewMenu(_esql, ScriptedSession.create(_customer, _customerRole, err, iteration % 2 == 0 ? "1" : "4"));
+          }
+       });
+       for (final int items : new int[] {1, 10, 100}) {
+          this._benchmarks.put("placeOrder" + items, new Operation() {
+             public void run(long iteration, PrintStream err) throws Exception {
+                PizzaStore.placeOrder(_esql, ScriptedSession.create(_customer, _customerRole, err, orderScript(items, iteration)));
+             }
+          });
+       }
+       this._benchmarks.put("updateOrderStatus", new Operation() {
+          public void run(long iteration, PrintStream err) throws Exception {
+             // each pass over the orders moves them one step, Preparing through
+             // Delivered; before the first of every four passes they are put back
+             // to Placed with one statement
+             int orderID = _orderIDs.get((int) (iteration % _orderIDs.size()));
+             long pass = iteration / _orderIDs.size();
+             if (iteration % (4L * _orderIDs.size()) == 0)
+                _esql.executeUpdate("UPDATE FoodOrder SET orderStatus = ? WHERE orderID IN (" + _orderIDList + ")",
+                                    "Placed");
+             int status = (int) (pass % 4) + 2;
+             PizzaStore.updateOrderStatus(_esql, ScriptedSession.create(_manager, _managerRole, err,
+                Integer.toString(orderID), Integer.toString(status)));
+          }
+       });
+       this._benchmarks.put("orderInfo", new Operation() {
+          public void run(long iteration, PrintStream err) throws Exception {
+             PizzaStore.viewOrderInfo(_esql, ScriptedSession.create(_customer, _customerRole, err, Integer.toString(_customerOrderID)));
+          }
+       });
+       this._benchmarks.put("historyScan", new Operation() {
+          public void run(long iteration, PrintStream err) throws Exception {
+             // every order in the system, streamed through the cursor
+             PizzaStore.viewAllOrders(_esql, ScriptedSession.create(_manager, _managerRole, err, "1", "a"));
+          }
+       });
+    }//end define
+
+    // the input placeOrder reads for an order of the given number of lines
+    private String[] orderScript(int items, long iteration) {
+       List<String> lines = new ArrayList<String>();
+       lines.add(Integer.toString(this._storeID));
+       for (int i = 0; i < items; ++i) {
+          lines.add(this._itemNames.get((int) ((iteration + i) % this._itemNames.size())));
+          lines.add(Integer.toString(1 + i % 3));
+          lines.add(i + 1 < items ? "yes" : "no");
+       }
+       return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Runs one benchmark: a warmup phase whose timings are dropped, then
+     * the measured phase.
+     *
+     * @param name the benchmark to run
+     * @param out the stream the result line is printed to
+     */
+    public void run(String name, PrintStream out) throws InterruptedException {
+       Operation operation = this._benchmarks.get(name);
+       if (operation == null)
+          throw new IllegalArgumentException("Unknown benchmark " + name + ", expected one of " + this._benchmarks.keySet());
+       LatencyHistogram histogram = new LatencyHistogram();
+       AtomicLong errors = new AtomicLong();
+       phase(operation, WARMUP_SECONDS, histogram, errors);
+       histogram.reset();
+       errors.set(0);
+       long elapsed = phase(operation, MEASURE_SECONDS, histogram, errors);
+       out.println(String.format("%-18s %3d %9d %11.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %7d",
+                                 name, THREADS, histogram.count(),
+                                 histogram.count() * 1e9 / elapsed,
+                                 histogram.mean() / 1e6,
+                                 histogram.percentile(0.50) / 1e6,
+                                 histogram.percentile(0.90) / 1e6,
+                                 histogram.percentile(0.99) / 1e6,
+                                 histogram.percentile(0.999) / 1e6,
+                                 histogram.max() / 1e6,
+                                 errors.get()));
+    }//end run
+
+    // runs the operation on every thread for the given time, returns the elapsed nanoseconds
+    private long phase(final Operation operation, int seconds, final LatencyHistogram histogram,
+                       final AtomicLong errors) throws InterruptedException {
+       final long start = System.nanoTime();
+       final long deadline = start + seconds * 1000000000L;
+       Thread[] threads = new Thread[THREADS];
+       for (int t = 0; t < threads.length; ++t) {
+          final long offset = t * 1000003L;
+          threads[t] = new Thread("benchmark-" + t) {
+             public void run() {
+                ScriptedSession.ErrorSink sink = new ScriptedSession.ErrorSink();
+                for (long i = offset; System.nanoTime() < deadline; ++i) {
+                   long begin = System.nanoTime();
+                   boolean failed = false;
+                   try {
+                      operation.run(i, sink.stream);
+                   } catch (Exception e) {
+                      failed = true;
+                   }
+                   histogram.record(System.nanoTime() - begin);
+                   if (sink.reset() || failed)
+                      errors.incrementAndGet();
+                }
+             }
+          };
+          threads[t].start();
+       }
+       for (Thread thread : threads)
+          thread.join();
+       return System.nanoTime() - start;
+    }//end phase
+
+    /**
+     * @return the benchmark names, in run order
+     */
+    public List<String> names() {
+       return new ArrayList<String>(this._benchmarks.keySet());
+    }
+
+    /**
+     * Runs the benchmarks named on the command line, or all of them.
+     *
+     * @param args <dbname> <port> <user> [benchmark ...]
+     */
+    public static void main(String[] args) {
+       if (args.length < 3) {
+          System.err.println (
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             PizzaStoreBenchmark.class.getName () +
+             " <dbname> <port> <user> [benchmark ...]");
+          return;
+       }//end if
+
+       PizzaStore esql = null;
+       try {
+          Class.forName ("org.postgresql.Driver").newInstance ();
+          esql = new PizzaStore (args[0], args[1], args[2], "");
+          PizzaStoreBenchmark benchmark = new PizzaStoreBenchmark(esql);
+          List<String> names = args.length > 3
+             ? Arrays.asList(args).subList(3, args.length) : benchmark.names();
+          System.out.println("warmup " + WARMUP_SECONDS + "s, measurement " + MEASURE_SECONDS + "s, latencies in ms");
+          System.out.println(String.format("%-18s %3s %9s %11s %9s %9s %9s %9s %9s %9s %7s",
+                                           "benchmark", "thr", "ops", "ops/s", "mean", "p50", "p90",
+                                           "p99", "p99.9", "max", "errors"));
+          for (String name : names)
+             benchmark.run(name, System.out);
+       } catch (Exception e) {
+          System.err.println (e.getMessage ());
+       } finally {
+          if (esql != null)
+             esql.cleanup ();
+       }//end try
+    }//end main
+ }//end PizzaStoreBenchmark
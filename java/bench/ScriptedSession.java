@@ -0,0 +1,62 @@
+ import java.io.BufferedReader;
+ import java.io.OutputStream;
+ import java.io.PrintStream;
+ import java.io.StringReader;
+
+ /**
+  * This class builds Sessions that read a fixed script of input lines and
+  * throw their output away, so the menu handlers can be driven by the
+  * benchmarks and the load driver exactly as a client drives them.  Errors
+  * the handlers report are noticed through an ErrorSink.
+  *
+  */
+ public class ScriptedSession {
+
+    // output of the handlers is thrown away
+    public static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    /**
+     * An error stream that remembers whether anything was written to it
+     * since the last reset.
+     */
+    public static class ErrorSink extends OutputStream {
+       private volatile boolean _written = false;
+       public final PrintStream stream = new PrintStream(this, true);
+
+       public void write(int b) { this._written = true; }
+       public void write(byte[] b, int off, int len) { if (len > 0) this._written = true; }
+
+       /**
+        * @return true when an error was reported since the last call,
+        *         which also resets the sink
+        */
+       public boolean reset() {
+          boolean written = this._written;
+          this._written = false;
+          return written;
+       }
+    }//end ErrorSink
+
+    private ScriptedSession() {
+    }
+
+    /**
+     * Creates a session that is already logged in and answers every prompt
+     * with the next line of input.
+     *
+     * @param user the logged-in user, or null
+     * @param role the user's role, or null
+     * @param err the stream errors are reported to
+     * @param input the lines read by the handler, in order
+     * @return the session
+     */
+    public static Session create(String user, String role, PrintStream err, String... input) {
+       StringBuilder script = new StringBuilder();
+       for (String line : input)
+          script.append(line).append('\n');
+       Session session = new Session(new BufferedReader(new StringReader(script.toString())), DISCARD, err);
+       session.currentUser = user;
+       session.currentRole = role;
+       return session;
+    }
+ }//end ScriptedSession
@@ -0,0 +1,285 @@
+ import java.io.BufferedReader;
+ import java.io.BufferedWriter;
+ import java.io.File;
+ import java.io.FileReader;
+ import java.io.FileWriter;
+ import java.io.IOException;
+ import java.io.Writer;
+ import java.math.BigDecimal;
+ import java.nio.file.Files;
+ import java.nio.file.StandardCopyOption;
+ import java.time.LocalDateTime;
+ import java.time.format.DateTimeFormatter;
+ import java.util.ArrayList;
+ import java.util.Arrays;
+ import java.util.List;
+ import java.util.Random;
+
+ /**
+  * This class writes a synthetic data set in the layout of data/*.csv, so
+  * load_data.sql can load it unchanged.  The menu is taken from the real
+  * items.csv; users, stores, orders and order lines are generated at any
+  * volume.  Traffic is skewed the way it is in production: orders follow a
+  * Zipf distribution over customers, stores and menu items, a few roles
+  * are staff, and only the most recent orders are still in progress.  The
+  * output is deterministic for a given seed.
+  *
+  */
+ public class WorkloadGenerator {
+
+    // skew of the Zipf distributions; larger means a few favourites dominate
+    private static final double STORE_SKEW = 1.1;
+    private static final double CUSTOMER_SKEW = 0.9;
+    private static final double ITEM_SKEW = 1.2;
+
+    // percentage of users in each staff role, the rest are customers
+    private static final int MANAGER_PERCENT = 3;
+    private static final int DRIVER_PERCENT = 7;
+
+    // orders span this many days before now; the last day is still in progress
+    private static final int HISTORY_DAYS = 3 * 365;
+    private static final String[] OPEN_STATUSES = {"Placed", "Preparing", "Ready", "Delivering"};
+
+    private static final int FIRST_ORDER_ID = 10000;
+    private static final int MAX_LINES_PER_ORDER = 6;
+
+    private static final String[][] LOCATIONS = {
+       {"Riverside", "California"}, {"San Diego", "California"}, {"Los Angeles", "California"},
+       {"Austin", "Texas"}, {"Spring", "Texas"}, {"Houston", "Texas"},
+       {"New York", "New York"}, {"Buffalo", "New York"}, {"Seattle", "Washington"},
+       {"Miami", "Florida"}, {"Orlando", "Florida"}, {"Chicago", "Illinois"}
+    };
+    private static final String[] STREETS = {
+       "Main Street", "Hallows Center", "Bunker Hill Avenue", "University Avenue",
+       "Oak Drive", "Lake Road", "Pine Court", "Market Street"
+    };
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Random _random;
+    private final List<String> _itemNames = new ArrayList<String>();
+    private final List<Long> _itemCents = new ArrayList<Long>();
+
+    /**
+     * Creates a generator for the menu in the given items.csv
+     *
+     * @param items the items.csv to take the menu from
+     * @param seed the random seed
+     * @throws java.io.IOException when the menu cannot be read
+     */
+    public WorkloadGenerator(File items, long seed) throws IOException {
+       this._random = new Random(seed);
+       BufferedReader in = new BufferedReader(new FileReader(items));
+       try {
+          in.readLine(); // header
+          String line;
+          while ((line = in.readLine()) != null) {
+             if (line.trim().isEmpty())
+                continue;
+             List<String> fields = parseCsvLine(line);
+             this._itemNames.add(fields.get(0));
+             this._itemCents.add(new BigDecimal(fields.get(3).trim()).movePointRight(2).longValueExact());
+          }
+       } finally {
+          in.close();
+       }
+       if (this._itemNames.isEmpty())
+          throw new IOException(items + " has no menu items");
+    }//end WorkloadGenerator
+
+    /**
+     * Writes users.csv, items.csv, store.csv, foodorder.csv and
+     * itemsinorder.csv into a directory.
+     *
+     * @param items the items.csv copied into the output
+     * @param dir the output directory, created if missing
+     * @param users the number of users
+     * @param stores the number of stores
+     * @param orders the number of orders
+     * @throws java.io.IOException when a file cannot be written
+     */
+    public void generate(File items, File dir, int users, int stores, int orders) throws IOException {
+       dir.mkdirs();
+       Files.copy(items.toPath(), new File(dir, "items.csv").toPath(), StandardCopyOption.REPLACE_EXISTING);
+       List<String> customers = writeUsers(new File(dir, "users.csv"), users);
+       if (customers.isEmpty())
+          throw new IllegalArgumentException("Too few users to have any customers");
+       writeStores(new File(dir, "store.csv"), stores);
+       writeOrders(new File(dir, "foodorder.csv"), new File(dir, "itemsinorder.csv"), customers, stores, orders);
+    }//end generate
+
+    // writes the users and returns the customer logins
+    private List<String> writeUsers(File file, int users) throws IOException {
+       List<String> customers = new ArrayList<String>();
+       ZipfSampler favorites = new ZipfSampler(this._itemNames.size(), ITEM_SKEW);
+       Writer out = open(file);
+       try {
+          out.write("login,password,role,favoriteItems,phoneNum\n");
+          StringBuilder row = new StringBuilder();
+          for (int i = 0; i < users; ++i) {
+             String login = "user" + i;
+             int percent = this._random.nextInt(100);
+             String role = percent < MANAGER_PERCENT ? "manager"
+                : percent < MANAGER_PERCENT + DRIVER_PERCENT ? "driver" : "customer";
+             if (role.equals("customer"))
+                customers.add(login);
+             row.setLength(0);
+             row.append(login).append(',')
+                .append("pw").append(Integer.toString(this._random.nextInt(1 << 30), 36)).append(',')
+                .append(role).append(',')
+                .append(this._itemNames.get(favorites.next(this._random))).append(',')
+                .append(String.format("%03d-%03d-%04d", 200 + this._random.nextInt(800),
+                                      this._random.nextInt(1000), this._random.nextInt(10000)))
+                .append('\n');
+             out.write(row.toString());
+          }
+       } finally {
+          out.close();
+       }
+       return customers;
+    }//end writeUsers
+
+    private void writeStores(File file, int stores) throws IOException {
+       Writer out = open(file);
+       try {
+          out.write("storeID,address,city,state,isOpen,reviewScore\n");
+          for (int id = 1; id <= stores; ++id) {
+             String[] location = LOCATIONS[this._random.nextInt(LOCATIONS.length)];
+             out.write(id + "," + (1 + this._random.nextInt(99999)) + " " + STREETS[this._random.nextInt(STREETS.length)]
+                       + "," + location[0] + "," + location[1]
+                       + "," + (this._random.nextInt(10) == 0 ? "no" : "yes")
+                       + "," + (1 + this._random.nextInt(5)) + "\n");
+          }
+       } finally {
+          out.close();
+       }
+    }//end writeStores
+
+    private void writeOrders(File orderFile, File lineFile, List<String> customers, int stores, int orders)
+       throws IOException {
+       ZipfSampler customerRank = new ZipfSampler(customers.size(), CUSTOMER_SKEW);
+       ZipfSampler storeRank = new ZipfSampler(stores, STORE_SKEW);
+       ZipfSampler itemRank = new ZipfSampler(this._itemNames.size(), ITEM_SKEW);
+       // popularity is by rank; shuffle which store and customer hold each rank
+       int[] storeIds = shuffled(stores, 1);
+       int[] customerIndex = shuffled(customers.size(), 0);
+
+       LocalDateTime now = LocalDateTime.now().withNano(0);
+       long spanSeconds = HISTORY_DAYS * 86400L;
+       LocalDateTime start = now.minusSeconds(spanSeconds);
+       long inProgressAfter = spanSeconds - 86400L;
+
+       Writer orderOut = open(orderFile);
+       Writer lineOut = open(lineFile);
+       try {
+          orderOut.write("orderID,login,storeID,totalPrice,\"orderTimestamp\",orderStatus\n");
+          lineOut.write("orderID,itemName,quantity\n");
+          StringBuilder lines = new StringBuilder();
+          boolean[] chosen = new boolean[this._itemNames.size()];
+          int lineLimit = Math.min(MAX_LINES_PER_ORDER, this._itemNames.size());
+          for (int i = 0; i < orders; ++i) {
+             int orderID = FIRST_ORDER_ID + i;
+             // orders are written in time order, evenly spread with some jitter
+             long offset = (long) ((i + this._random.nextDouble()) * spanSeconds / orders);
+             String timestamp = start.plusSeconds(offset).format(TIMESTAMP);
+             String status = offset >= inProgressAfter
+                ? OPEN_STATUSES[this._random.nextInt(OPEN_STATUSES.length)] : "Delivered";
+
+             // mostly one or two lines, occasionally a big order
+             int lineCount = 1 + Math.min(lineLimit - 1, (int) (-Math.log(1.0 - this._random.nextDouble()) * 1.2));
+             long totalCents = 0;
+             lines.setLength(0);
+             for (int l = 0; l < lineCount; ++l) {
+                int item = itemRank.next(this._random);
+                while (chosen[item])
+                   item = (item + 1) % chosen.length;
+                chosen[item] = true;
+                int quantity = 1 + (this._random.nextInt(4) == 0 ? this._random.nextInt(4) : 0);
+                totalCents += quantity * this._itemCents.get(item);
+                lines.append(orderID).append(',').append(this._itemNames.get(item)).append(',').append(quantity).append('\n');
+             }
+             Arrays.fill(chosen, false);
+             lineOut.write(lines.toString());
+
+             orderOut.write(orderID + "," + customers.get(customerIndex[customerRank.next(this._random)])
+                            + "," + storeIds[storeRank.next(this._random)]
+                            + "," + BigDecimal.valueOf(totalCents, 2).toPlainString()
+                            + ",\"" + timestamp + "\"," + status + "\n");
+          }
+       } finally {
+          orderOut.close();
+          lineOut.close();
+       }
+    }//end writeOrders
+
+    // the values first..first+n-1 in random order
+    private int[] shuffled(int n, int first) {
+       int[] values = new int[n];
+       for (int i = 0; i < n; ++i)
+          values[i] = first + i;
+       for (int i = n - 1; i > 0; --i) {
+          int j = this._random.nextInt(i + 1);
+          int swap = values[i];
+          values[i] = values[j];
+          values[j] = swap;
+       }
+       return values;
+    }
+
+    private static Writer open(File file) throws IOException {
+       return new BufferedWriter(new FileWriter(file), 1 << 20);
+    }
+
+    // splits one CSV line, honouring double-quoted fields
+    private static List<String> parseCsvLine(String line) {
+       List<String> fields = new ArrayList<String>();
+       StringBuilder field = new StringBuilder();
+       boolean quoted = false;
+       for (int i = 0; i < line.length(); ++i) {
+          char c = line.charAt(i);
+          if (c == '"') {
+             if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                field.append('"');
+                ++i;
+             } else {
+                quoted = !quoted;
+             }
+          } else if (c == ',' && !quoted) {
+             fields.add(field.toString());
+             field.setLength(0);
+          } else {
+             field.append(c);
+          }
+       }
+       fields.add(field.toString());
+       return fields;
+    }//end parseCsvLine
+
+    /**
+     * Generates a data set.
+     *
+     * @param args <items.csv> <outdir> <users> <stores> <orders> [seed]
+     */
+    public static void main(String[] args) {
+       if (args.length < 5) {
+          System.err.println (
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             WorkloadGenerator.class.getName () +
+             " <items.csv> <outdir> <users> <stores> <orders> [seed]");
+          return;
+       }//end if
+       try {
+          File items = new File(args[0]);
+          File dir = new File(args[1]);
+          long seed = args.length > 5 ? Long.parseLong(args[5]) : 166L;
+          long start = System.nanoTime();
+          new WorkloadGenerator(items, seed).generate(items, dir, Integer.parseInt(args[2]),
+                                                      Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+          System.out.println(String.format("Wrote %s in %.1fs; point the paths in load_data.sql at it",
+                                           dir.getAbsolutePath(), (System.nanoTime() - start) / 1e9));
+       } catch (Exception e) {
+          System.err.println (e.getMessage ());
+       }
+    }//end main
+ }//end WorkloadGenerator
@@ -0,0 +1,57 @@
+ import java.util.Random;
+
+ /**
+  * This class draws ranks 0..n-1 with a Zipf distribution: rank k is drawn
+  * with probability proportional to 1/(k+1)^exponent, so a few popular
+  * stores, items or customers account for most of the traffic, as they do
+  * in production.  The cumulative distribution is computed once and each
+  * draw is a binary search.
+  *
+  */
+ public class ZipfSampler {
+
+    private final double[] _cumulative;
+
+    /**
+     * Creates a sampler over n ranks
+     *
+     * @param n the number of ranks, at least 1
+     * @param exponent the skew, 0 is uniform and larger is more skewed
+     */
+    public ZipfSampler(int n, double exponent) {
+       if (n < 1)
+          throw new IllegalArgumentException("A Zipf sampler needs at least one rank");
+       this._cumulative = new double[n];
+       double total = 0.0;
+       for (int k = 0; k < n; ++k) {
+          total += 1.0 / Math.pow(k + 1, exponent);
+          this._cumulative[k] = total;
+       }
+       for (int k = 0; k < n; ++k)
+          this._cumulative[k] /= total;
+    }//end ZipfSampler
+
+    /**
+     * @return the number of ranks
+     */
+    public int size() {
+       return this._cumulative.length;
+    }
+
+    /**
+     * @param random the source of randomness
+     * @return a rank in 0..size()-1, rank 0 being the most likely
+     */
+    public int next(Random random) {
+       double u = random.nextDouble();
+       int lo = 0, hi = this._cumulative.length - 1;
+       while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          if (this._cumulative[mid] < u)
+             lo = mid + 1;
+          else
+             hi = mid;
+       }
+       return lo;
+    }//end next
+ }//end ZipfSampler
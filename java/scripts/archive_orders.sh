@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#create the coming months of FoodOrder and ItemsInOrder and move months
+#older than -Dpizzastore.archive.keepMonths (12) into gzip CSV files;
+#meant for a daily cron entry, e.g.
+#  15 3 * * * JAVA_OPTS=-Dpizzastore.archive.keepMonths=24 /path/to/archive_orders.sh
+#usage: archive_orders.sh [archivedir]
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderArchiver $USER"_project_phase_3_DB" $PGPORT $USER ${1:-$DIR/../../archive}
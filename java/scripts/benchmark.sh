@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program and the benchmarks
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
+
+#run the benchmarks named on the command line, or all of them; the benchmarks
+#place orders and change statuses, so point them at a scratch database
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStoreBenchmark $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program and the benchmarks
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
+
+#write a synthetic data set in the data/*.csv layout, then point the paths in
+#sql/src/load_data.sql at the output directory and run sql/scripts/create_db.sh
+#usage: generate_data.sh <outdir> [users] [stores] [orders] [seed]
+java -cp $DIR/../classes WorkloadGenerator $DIR/../../data/items.csv ${1:-$DIR/../../data/generated} ${2:-100000} ${3:-1000} ${4:-2000000} ${5:-166}
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#load data/*.csv (or another directory in that layout) from this machine into
+#tables made by sql/src/create_tables.sql, instead of running load_data.sql;
+#the indexes of create_indexes.sql are rebuilt after the load
+#usage: load_data.sh [datadir]
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER ${1:-$DIR/../../data} $DIR/../../sql/src/create_indexes.sql
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program and the benchmarks
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
+
+#replay mixed customer/driver/manager sessions; the sessions place orders and
+#change statuses, so point it at a scratch database. Tune with e.g.
+#JAVA_OPTS="-Dpizzastore.load.threads=32 -Dpizzastore.pool.max=32"
+#Add -Dpizzastore.ingest.enabled=true to group-commit the placed orders.
+#Use your database name, port number and login
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadDriver $USER"_project_phase_3_DB" $PGPORT $USER
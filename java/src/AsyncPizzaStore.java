@@ -0,0 +1,278 @@
+ import java.sql.SQLException;
+ import java.util.Collection;
+ import java.util.List;
+ import java.util.concurrent.ArrayBlockingQueue;
+ import java.util.concurrent.CompletableFuture;
+ import java.util.concurrent.Executors;
+ import java.util.concurrent.RejectedExecutionException;
+ import java.util.concurrent.ScheduledExecutorService;
+ import java.util.concurrent.ScheduledFuture;
+ import java.util.concurrent.ThreadFactory;
+ import java.util.concurrent.ThreadPoolExecutor;
+ import java.util.concurrent.TimeUnit;
+ import java.util.concurrent.TimeoutException;
+ import java.util.concurrent.atomic.AtomicInteger;
+
+ /**
+  * This class runs PizzaStore calls in the background and returns their
+  * results as CompletableFutures, so a caller can start several lookups at
+  * once and a server front end does not need one blocked thread per query.
+  *
+  * Calls run on a fixed set of worker threads, one per pooled connection,
+  * fed by a bounded queue; a call that does not fit in the queue fails at
+  * once with a RejectedExecutionException.  Each call has a timeout.
+  * Cancelling its future or letting it time out stops the statement it is
+  * running on the server and fails its later statements, so an abandoned
+  * transaction rolls back.  A call runs entirely on one worker thread, so
+  * it may use beginTransaction() and commit() like a session does.
+  *
+  * Settings, as -Dpizzastore.async.<name>=<value>: queueSize (1000),
+  * timeoutMs (30000).
+  *
+  */
+ public class AsyncPizzaStore {
+
+    private static final int QUEUE_SIZE = Integer.getInteger("pizzastore.async.queueSize", 1000);
+    private static final long TIMEOUT_MS = Long.getLong("pizzastore.async.timeoutMs", 30000L);
+
+    /**
+     * Work done with the data-access object on a worker thread.
+     *
+     * @param <T> the result type
+     */
+    public interface Call<T> {
+       T call(PizzaStore esql) throws SQLException;
+    }
+
+    // a call's future; cancelling it stops the call's statement
+    private class Task<T> extends CompletableFuture<T> implements Runnable {
+       private final Call<T> _call;
+       // guarded by this; the worker running the call, null while queued and after it ends
+       private Thread _worker = null;
+       private volatile ScheduledFuture<?> _timeout = null;
+
+       Task(Call<T> call) {
+          this._call = call;
+       }
+
+       public void run() {
+          // cancelled or timed out while queued
+          if (isDone())
+             return;
+          synchronized (this) {
+             // cancelled or timed out since the check above
+             if (isDone())
+                return;
+             this._worker = Thread.currentThread();
+          }
+          try {
+             complete(this._call.call(_esql));
+          } catch (Throwable e) {
+             completeExceptionally(e);
+          } finally {
+             // once stop() is past this point it cannot reach the worker's next call
+             synchronized (this) {
+                this._worker = null;
+                _esql.resetCancel();
+             }
+             // a call ending before its deadline leaves the timer nothing to do
+             ScheduledFuture<?> timeout = this._timeout;
+             if (timeout != null)
+                timeout.cancel(false);
+          }
+       }//end run
+
+       public boolean cancel(boolean mayInterruptIfRunning) {
+          boolean cancelled = super.cancel(mayInterruptIfRunning);
+          if (cancelled)
+             stop();
+          return cancelled;
+       }
+
+       void expire(long timeoutMs) {
+          if (completeExceptionally(new TimeoutException("Timed out after " + timeoutMs + " ms")))
+             stop();
+       }
+
+       // stops the call's statements, if it has started
+       private synchronized void stop() {
+          Thread worker = this._worker;
+          if (worker == null)
+             return;
+          try {
+             _esql.cancel(worker);
+          } catch (SQLException e) {
+             // the running statement goes on; the call's later ones still fail
+             System.err.println("Error cancelling a query: " + e.getMessage());
+          }
+       }
+    }//end Task
+
+    private final PizzaStore _esql;
+    private final ThreadPoolExecutor _workers;
+    private final ScheduledExecutorService _timer;
+
+    /**
+     * Starts the worker threads
+     *
+     * @param esql the data-access object the calls use
+     * @param threads the number of workers; more than the connection pool
+     *        size only makes calls wait for connections
+     */
+    public AsyncPizzaStore(PizzaStore esql, int threads) {
+       this._esql = esql;
+       this._workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), daemonThreads("pizzastore-async-"));
+       this._timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("pizzastore-async-timer-"));
+    }
+
+    /**
+     * Runs a call in the background with the default timeout.
+     *
+     * @param call the work to do
+     * @return the call's result
+     */
+    public <T> CompletableFuture<T> submit(Call<T> call) {
+       return submit(call, TIMEOUT_MS);
+    }
+
+    /**
+     * Runs a call in the background.
+     *
+     * @param call the work to do
+     * @param timeoutMs how long the call may take, counted from now,
+     *        before it fails with a TimeoutException; 0 for no limit
+     * @return the call's result
+     */
+    public <T> CompletableFuture<T> submit(Call<T> call, final long timeoutMs) {
+       final Task<T> task = new Task<T>(call);
+       try {
+          this._workers.execute(task);
+       } catch (RejectedExecutionException e) {
+          task.completeExceptionally(e);
+          return task;
+       }
+       if (timeoutMs > 0) {
+          task._timeout = this._timer.schedule(new Runnable() {
+             public void run() { task.expire(timeoutMs); }
+          }, timeoutMs, TimeUnit.MILLISECONDS);
+          // the call may have ended before the timer was stored
+          if (task.isDone())
+             task._timeout.cancel(false);
+       }
+       return task;
+    }//end submit
+
+    /**
+     * @see PizzaStore#executeQueryAndReturnResult(String, Object...)
+     */
+    public CompletableFuture<List<List<String>>> executeQueryAndReturnResult(final String query,
+                                                                            final Object... params) {
+       return submit(new Call<List<List<String>>>() {
+          public List<List<String>> call(PizzaStore esql) throws SQLException {
+             return esql.executeQueryAndReturnResult(query, params);
+          }
+       });
+    }
+
+    /**
+     * @see PizzaStore#executeQueryAndReturnColumns(String, Object...)
+     */
+    public CompletableFuture<ColumnarResult> executeQueryAndReturnColumns(final String query,
+                                                                         final Object... params) {
+       return submit(new Call<ColumnarResult>() {
+          public ColumnarResult call(PizzaStore esql) throws SQLException {
+             return esql.executeQueryAndReturnColumns(query, params);
+          }
+       });
+    }
+
+    /**
+     * @see PizzaStore#executeUpdate(String, Object...)
+     */
+    public CompletableFuture<Integer> executeUpdate(final String sql, final Object... params) {
+       return submit(new Call<Integer>() {
+          public Integer call(PizzaStore esql) throws SQLException {
+             return esql.executeUpdate(sql, params);
+          }
+       });
+    }
+
+    /**
+     * @see PizzaStore#submitOrder(int, String, int, List, List)
+     */
+    public CompletableFuture<Float> submitOrder(final int orderID, final String login, final int storeID,
+                                                final List<String> itemNames, final List<Integer> quantities) {
+       return submit(new Call<Float>() {
+          public Float call(PizzaStore esql) throws SQLException {
+             return esql.submitOrder(orderID, login, storeID, itemNames, quantities);
+          }
+       });
+    }
+
+    /**
+     * @see OrderTransitions#move(Collection, String)
+     */
+    public CompletableFuture<OrderTransitions.Result> moveOrders(final Collection<Integer> orderIDs,
+                                                                 final String toStatus) {
+       return submit(new Call<OrderTransitions.Result>() {
+          public OrderTransitions.Result call(PizzaStore esql) throws SQLException {
+             return esql.transitions().move(orderIDs, toStatus);
+          }
+       });
+    }
+
+    /**
+     * @see OrderDetails#find(String, Collection)
+     */
+    public CompletableFuture<List<OrderDetails.Detail>> orderDetails(final String login,
+                                                                    final Collection<Integer> orderIDs) {
+       return submit(new Call<List<OrderDetails.Detail>>() {
+          public List<OrderDetails.Detail> call(PizzaStore esql) throws SQLException {
+             return esql.orderDetails().find(login, orderIDs);
+          }
+       });
+    }
+
+    /**
+     * @see MenuCatalog#byName()
+     */
+    public CompletableFuture<List<MenuCatalog.MenuItem>> menu() {
+       return submit(new Call<List<MenuCatalog.MenuItem>>() {
+          public List<MenuCatalog.MenuItem> call(PizzaStore esql) throws SQLException {
+             return esql.menu().byName();
+          }
+       });
+    }
+
+    /**
+     * @return the number of calls waiting for a worker
+     */
+    public int queued() {
+       return this._workers.getQueue().size();
+    }
+
+    /**
+     * Stops taking calls and waits for the queued ones to finish.
+     *
+     * @param waitMs how long to wait
+     * @return true when every call finished in time
+     */
+    public boolean close(long waitMs) throws InterruptedException {
+       this._workers.shutdown();
+       boolean finished = this._workers.awaitTermination(waitMs, TimeUnit.MILLISECONDS);
+       this._timer.shutdownNow();
+       return finished;
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+       final AtomicInteger count = new AtomicInteger();
+       return new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+             Thread thread = new Thread(r, prefix + count.incrementAndGet());
+             thread.setDaemon(true);
+             return thread;
+          }
+       };
+    }
+ }//end AsyncPizzaStore
@@ -0,0 +1,644 @@
+ import java.io.File;
+ import java.io.IOException;
+ import java.io.InputStream;
+ import java.io.RandomAccessFile;
+ import java.lang.reflect.InvocationTargetException;
+ import java.lang.reflect.Method;
+ import java.nio.ByteBuffer;
+ import java.nio.MappedByteBuffer;
+ import java.nio.channels.FileChannel;
+ import java.nio.charset.StandardCharsets;
+ import java.nio.file.Files;
+ import java.sql.Connection;
+ import java.sql.PreparedStatement;
+ import java.sql.ResultSet;
+ import java.sql.ResultSetMetaData;
+ import java.sql.SQLException;
+ import java.sql.Statement;
+ import java.util.ArrayList;
+ import java.util.Calendar;
+ import java.util.List;
+ import java.util.Locale;
+ import java.util.TimeZone;
+ import java.util.concurrent.Callable;
+ import java.util.concurrent.CancellationException;
+ import java.util.concurrent.ExecutionException;
+ import java.util.concurrent.ExecutorService;
+ import java.util.concurrent.Executors;
+ import java.util.concurrent.Future;
+ import java.util.concurrent.atomic.AtomicLong;
+ import java.util.regex.Matcher;
+ import java.util.regex.Pattern;
+
+ /**
+  * This class loads the data/*.csv files from the client machine into
+  * freshly created tables, replacing the server-side COPY of
+  * load_data.sql, which needs the files on the database host at a fixed
+  * path.
+  *
+  * Each file is memory-mapped and cut into chunks at record boundaries;
+  * chunks are loaded in parallel, one connection and one transaction each.
+  * Tables that do not reference each other load at the same time, in
+  * foreign-key order: Users, Items and Store, then FoodOrder, then
+  * ItemsInOrder.  A chunk is streamed through client-side COPY when the
+  * JDBC driver has a CopyManager, and otherwise sent as multi-row INSERTs.
+  * The indexes of create_indexes.sql are dropped before the load and built
+  * afterwards, in parallel, and the user triggers (order totals, phone
+  * validation, notifications) are disabled while loading, so the totals in
+  * the files are kept as they are; the sales rollups are rebuilt and the
+  * favorites moved into FavoriteItems at the end.
+  *
+  * Partitioned tables (FoodOrder and ItemsInOrder, by month placed) are
+  * loaded into an UNLOGGED staging table first and then moved into place
+  * one month per worker: FoodOrder once the monthly partitions its rows
+  * need exist and its order IDs are in OrderIds, and ItemsInOrder together
+  * with the placedAt of each item's order, which picks its partition.  A
+  * file without a placedAt column places each order at its
+  * orderTimestamp, and one without a unitPrice column prices each line at
+  * the current menu price.
+  *
+  * Settings, as -Dpizzastore.load.<name>=<value>: workers (4), the
+  * number of parallel connections.
+  *
+  */
+ public class BulkLoader {
+
+    private static final int WORKERS = Integer.getInteger("pizzastore.load.workers", 4);
+
+    // files are cut into chunks of at least MIN_CHUNK and at most MAX_CHUNK bytes
+    private static final long MIN_CHUNK = 8L << 20;
+    private static final long MAX_CHUNK = 64L << 20;
+
+    // rows sent per INSERT when COPY is not available
+    private static final int ROWS_PER_INSERT = 500;
+
+    // tables in load order; the tables of one wave do not reference each other
+    private static final String[][] WAVES = {
+       {"Users", "Items", "Store"},
+       {"FoodOrder"},
+       {"ItemsInOrder"}
+    };
+
+    private static final Pattern CREATE_INDEX =
+       Pattern.compile("CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The rows loaded into one table.
+     */
+    private static class Table {
+       final String name;
+       final File file;
+       final AtomicLong rows = new AtomicLong();
+       long startNanos;
+       long endNanos;
+       String columns;
+       // the table the chunks are loaded into: name, or its staging table
+       String target;
+
+       Table(String name, File file) {
+          this.name = name;
+          this.file = file;
+          this.target = name;
+       }
+    }//end Table
+
+    private final ConnectionPool _pool;
+    private final File _dataDir;
+    private final File _indexFile;
+
+    /**
+     * Creates a loader
+     *
+     * @param pool the pool the workers borrow their connections from
+     * @param dataDir the directory holding the CSV files
+     * @param indexFile create_indexes.sql, or null to leave indexes alone
+     */
+    public BulkLoader(ConnectionPool pool, File dataDir, File indexFile) {
+       this._pool = pool;
+       this._dataDir = dataDir;
+       this._indexFile = indexFile;
+    }
+
+    /**
+     * Loads every table and prints its row count and rate.
+     *
+     * @throws java.lang.Exception when a file cannot be read or a chunk
+     *         fails to load; indexes and triggers are restored regardless
+     */
+    public void run() throws Exception {
+       List<String> indexes = this._indexFile == null ? new ArrayList<String>() : indexStatements();
+       List<Table> tables = new ArrayList<Table>();
+       ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+       long start = System.nanoTime();
+       try {
+          for (String index : indexes) {
+             Matcher name = CREATE_INDEX.matcher(index);
+             name.find();
+             execute("DROP INDEX IF EXISTS " + name.group(1));
+          }
+          for (String[] wave : WAVES)
+             for (String table : wave)
+                execute("ALTER TABLE " + table + " DISABLE TRIGGER USER");
+
+          for (String[] wave : WAVES) {
+             List<Future<?>> chunks = new ArrayList<Future<?>>();
+             List<Table> loading = new ArrayList<Table>();
+             for (String name : wave) {
+                Table table = new Table(name, new File(this._dataDir, name.toLowerCase(Locale.ROOT) + ".csv"));
+                tables.add(table);
+                loading.add(table);
+                table.startNanos = System.nanoTime();
+                List<long[]> ranges = chunks(table);
+                if (isPartitioned(name)) {
+                   table.target = name + "_load";
+                   execute("DROP TABLE IF EXISTS " + table.target);
+                   execute("CREATE UNLOGGED TABLE " + table.target + " AS SELECT " + table.columns
+                           + " FROM " + name + " WITH NO DATA");
+                }
+                for (final long[] range : ranges) {
+                   final Table target = table;
+                   chunks.add(workers.submit(new Callable<Void>() {
+                      public Void call() throws Exception {
+                         load(target, range[0], range[1]);
+                         return null;
+                      }
+                   }));
+                }
+             }
+             await(chunks);
+             for (Table table : loading) {
+                if (!table.target.equals(table.name))
+                   publish(table, workers);
+                table.endNanos = System.nanoTime();
+             }
+          }
+       } finally {
+          try {
+             for (Table table : tables)
+                if (!table.target.equals(table.name))
+                   execute("DROP TABLE IF EXISTS " + table.target);
+             List<Future<?>> builds = new ArrayList<Future<?>>();
+             for (final String index : indexes) {
+                builds.add(workers.submit(new Callable<Void>() {
+                   public Void call() throws Exception {
+                      execute(index);
+                      return null;
+                   }
+                }));
+             }
+             await(builds);
+             for (String[] wave : WAVES)
+                for (String table : wave)
+                   execute("ALTER TABLE " + table + " ENABLE TRIGGER USER");
+          } finally {
+             workers.shutdownNow();
+          }
+       }
+       execute("SELECT setval('foodorder_orderid_seq', (SELECT COALESCE(MAX(orderID), 0) + 1 FROM OrderIds), false)");
+       // the sales rollup triggers were off during the load
+       if (functionExists("rebuild_sales_rollups"))
+          execute("SELECT rebuild_sales_rollups()");
+       // users.csv carries favorites in Users.favoriteItems
+       if (functionExists("migrate_favorite_items"))
+          execute("SELECT migrate_favorite_items()");
+       for (Table table : tables)
+          execute("ANALYZE " + table.name);
+
+       long total = 0;
+       System.out.println(String.format("%-14s %12s %9s %12s", "table", "rows", "seconds", "rows/s"));
+       for (Table table : tables) {
+          double seconds = (table.endNanos - table.startNanos) / 1e9;
+          total += table.rows.get();
+          System.out.println(String.format(Locale.ROOT, "%-14s %12d %9.2f %12.0f",
+                                           table.name, table.rows.get(), seconds, table.rows.get() / seconds));
+       }
+       double seconds = (System.nanoTime() - start) / 1e9;
+       System.out.println(String.format(Locale.ROOT, "%-14s %12d %9.2f %12.0f  (%d index(es) rebuilt)",
+                                        "total", total, seconds, total / seconds, indexes.size()));
+    }//end run
+
+    // the CREATE INDEX statements of the index file
+    private List<String> indexStatements() throws IOException {
+       String text = new String(Files.readAllBytes(this._indexFile.toPath()), StandardCharsets.UTF_8);
+       List<String> statements = new ArrayList<String>();
+       for (String statement : text.replaceAll("--[^\\n]*", "").split(";")) {
+          if (CREATE_INDEX.matcher(statement).find())
+             statements.add(statement.trim());
+       }
+       return statements;
+    }//end indexStatements
+
+    // whether the table is partitioned (see ensure_order_partitions in create_tables.sql)
+    private boolean isPartitioned(String table) throws SQLException {
+       return query("SELECT COUNT(*) FROM pg_partitioned_table p JOIN pg_class c ON c.oid = p.partrelid "
+                    + "WHERE c.relname = '" + table.toLowerCase(Locale.ROOT) + "'").get(0) > 0;
+    }
+
+    /*
+     * Moves a staged table into its partitioned table, one month per
+     * worker, and checks that every staged row arrived.  FoodOrder rows
+     * carry their placedAt, or else their timestamp; an ItemsInOrder row
+     * takes its order's, and its unitPrice, when not in the file, from the
+     * menu.
+     **/
+    private void publish(Table table, ExecutorService workers) throws Exception {
+       String columns = ", " + table.columns.toLowerCase(Locale.ROOT) + ",";
+       final String insert;
+       List<Long> months;
+       if (columns.contains(", ordertimestamp,")) {
+          String placedAt = columns.contains(", placedat,") ? "placedAt" : "orderTimestamp";
+          String inserted = columns.contains(", placedat,") ? table.columns : table.columns + ", placedAt";
+          String selected = columns.contains(", placedat,") ? table.columns : table.columns + ", orderTimestamp";
+          execute("SELECT ensure_order_partitions(MIN(" + placedAt + "), MAX(" + placedAt + ")) FROM " + table.target);
+          execute("INSERT INTO OrderIds (orderID, placedAt) SELECT orderID, " + placedAt + " FROM " + table.target);
+          insert = "INSERT INTO " + table.name + " (" + inserted + ") SELECT " + selected
+             + " FROM " + table.target + " WHERE " + placedAt + " >= ? AND " + placedAt + " < ?";
+          months = query("SELECT DISTINCT CAST(EXTRACT(EPOCH FROM date_trunc('month', " + placedAt + ")) AS bigint) "
+                         + "FROM " + table.target);
+       } else {
+          StringBuilder staged = new StringBuilder();
+          for (String column : table.columns.split(",\\s*"))
+             staged.append("l.").append(column).append(", ");
+          // triggers are off, so unpriced lines take the current menu price here
+          boolean priced = columns.contains(", unitprice,");
+          insert = "INSERT INTO " + table.name + " (" + table.columns + (priced ? "" : ", unitPrice")
+             + ", placedAt) SELECT " + staged + (priced ? "" : "i.price, ")
+             + "f.placedAt FROM " + table.target + " l JOIN FoodOrder f ON f.orderID = l.orderID "
+             + (priced ? "" : "JOIN Items i ON i.itemName = l.itemName ")
+             + "WHERE f.placedAt >= ? AND f.placedAt < ?";
+          months = query("SELECT DISTINCT CAST(EXTRACT(EPOCH FROM date_trunc('month', placedAt)) AS bigint) "
+                         + "FROM FoodOrder");
+       }
+       final AtomicLong moved = new AtomicLong();
+       List<Future<?>> moves = new ArrayList<Future<?>>();
+       for (final long month : months) {
+          moves.add(workers.submit(new Callable<Void>() {
+             public Void call() throws Exception {
+                moved.addAndGet(moveMonth(insert, month));
+                return null;
+             }
+          }));
+       }
+       await(moves);
+       if (moved.get() != table.rows.get())
+          throw new SQLException(table.name + ": " + (table.rows.get() - moved.get())
+                                 + " staged row(s) have no order to take a placedAt from, or no menu item to price");
+    }//end publish
+
+    // runs one month of publish() in its own transaction; returns the rows moved
+    private int moveMonth(String insert, long monthEpochSeconds) throws SQLException {
+       Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+       start.setTimeInMillis(monthEpochSeconds * 1000);
+       Calendar end = (Calendar) start.clone();
+       end.add(Calendar.MONTH, 1);
+       ConnectionPool.PooledConnection conn = this._pool.borrow();
+       try {
+          PreparedStatement stmt = conn.connection.prepareStatement(insert);
+          try {
+             // the bounds are wall-clock times, like placedAt
+             stmt.setString(1, String.format(Locale.ROOT, "%tF %<tT", start));
+             stmt.setString(2, String.format(Locale.ROOT, "%tF %<tT", end));
+             return stmt.executeUpdate();
+          } finally {
+             stmt.close();
+          }
+       } finally {
+          this._pool.release(conn);
+       }
+    }//end moveMonth
+
+    // the first column of every row of a query, as numbers
+    private List<Long> query(String sql) throws SQLException {
+       ConnectionPool.PooledConnection conn = this._pool.borrow();
+       try {
+          Statement stmt = conn.connection.createStatement();
+          try {
+             ResultSet rs = stmt.executeQuery(sql);
+             List<Long> values = new ArrayList<Long>();
+             while (rs.next())
+                values.add(rs.getLong(1));
+             return values;
+          } finally {
+             stmt.close();
+          }
+       } finally {
+          this._pool.release(conn);
+       }
+    }//end query
+
+    // whether triggers.sql has created the function
+    private boolean functionExists(String name) throws SQLException {
+       ConnectionPool.PooledConnection conn = this._pool.borrow();
+       try {
+          PreparedStatement stmt = conn.connection.prepareStatement("SELECT 1 FROM pg_proc WHERE proname = ?");
+          try {
+             stmt.setString(1, name);
+             return stmt.executeQuery().next();
+          } finally {
+             stmt.close();
+          }
+       } finally {
+          this._pool.release(conn);
+       }
+    }//end functionExists
+
+    private void execute(String sql) throws SQLException {
+       ConnectionPool.PooledConnection conn = this._pool.borrow();
+       try {
+          Statement stmt = conn.connection.createStatement();
+          try {
+             stmt.execute(sql);
+          } finally {
+             stmt.close();
+          }
+       } finally {
+          this._pool.release(conn);
+       }
+    }//end execute
+
+    // waits for every task, rethrowing the first failure
+    private static void await(List<Future<?>> tasks) throws Exception {
+       Exception failure = null;
+       for (Future<?> task : tasks) {
+          try {
+             task.get();
+          } catch (ExecutionException e) {
+             if (failure == null) {
+                failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                for (Future<?> other : tasks)
+                   other.cancel(true);
+             }
+          } catch (CancellationException e) {
+             // cancelled after an earlier failure
+          }
+       }
+       if (failure != null)
+          throw failure;
+    }//end await
+
+    /*
+     * Reads the header of a table's file and cuts the rest into byte ranges
+     * that each end at a record boundary.  Newlines inside quoted fields are
+     * skipped by tracking the quotes in one pass over the file.
+     **/
+    private static List<long[]> chunks(Table table) throws IOException {
+       RandomAccessFile raf = new RandomAccessFile(table.file, "r");
+       try {
+          FileChannel channel = raf.getChannel();
+          long size = channel.size();
+          long chunkSize = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size / WORKERS + 1));
+          List<long[]> ranges = new ArrayList<long[]>();
+          long start = -1;
+          long target = 0;
+          boolean quoted = false;
+          for (long windowStart = 0; windowStart < size; windowStart += MAX_CHUNK) {
+             MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                                                   Math.min(MAX_CHUNK, size - windowStart));
+             for (int i = 0; i < window.limit(); ++i) {
+                byte b = window.get(i);
+                if (b == '"') {
+                   quoted = !quoted;
+                } else if (b == '\n' && !quoted) {
+                   long end = windowStart + i + 1;
+                   if (start < 0) {
+                      // the header ends here
+                      byte[] header = new byte[(int) end];
+                      channel.read(ByteBuffer.wrap(header), 0);
+                      table.columns = columnList(new String(header, StandardCharsets.UTF_8));
+                      start = end;
+                      target = start + chunkSize;
+                   } else if (end >= target) {
+                      ranges.add(new long[] {start, end});
+                      start = end;
+                      target = start + chunkSize;
+                   }
+                }
+             }
+          }
+          if (start < 0)
+             throw new IOException(table.file + " has no header line");
+          if (start < size)
+             ranges.add(new long[] {start, size});
+          return ranges;
+       } finally {
+          raf.close();
+       }
+    }//end chunks
+
+    // "a,\"b\",c\n" -> "a, b, c"
+    private static String columnList(String header) {
+       StringBuilder columns = new StringBuilder();
+       for (String column : parseRecord(header.trim()))
+          columns.append(columns.length() == 0 ? "" : ", ").append(column.trim());
+       return columns.toString();
+    }
+
+    // loads one byte range of a table's file in one transaction
+    private void load(Table table, long start, long end) throws Exception {
+       ConnectionPool.PooledConnection conn = this._pool.borrow();
+       boolean committed = false;
+       try {
+          conn.connection.setAutoCommit(false);
+          RandomAccessFile raf = new RandomAccessFile(table.file, "r");
+          try {
+             MappedByteBuffer chunk = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+             Object copyManager = copyManager(conn.connection);
+             long rows = copyManager != null ? copy(copyManager, table, chunk) : insert(conn, table, chunk);
+             conn.connection.commit();
+             committed = true;
+             table.rows.addAndGet(rows);
+          } finally {
+             raf.close();
+          }
+       } finally {
+          try {
+             if (!committed)
+                conn.connection.rollback();
+             conn.connection.setAutoCommit(true);
+          } catch (SQLException e) {
+             // the pool discards connections it cannot reset
+          }
+          this._pool.release(conn);
+       }
+    }//end load
+
+    /*
+     * Returns the driver's CopyManager for the connection, or null when the
+     * driver has none (pg73jdbc3.jar predates it).  Reflection keeps this
+     * class compiling against either driver.
+     **/
+    private static Object copyManager(Connection connection) {
+       try {
+          Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+          Object pg = pgConnection.isInstance(connection) ? connection : connection.unwrap(pgConnection);
+          return pgConnection.getMethod("getCopyAPI").invoke(pg);
+       } catch (Exception e) {
+          return null;
+       } catch (LinkageError e) {
+          return null;
+       }
+    }//end copyManager
+
+    // streams the chunk through COPY FROM STDIN; returns the rows copied
+    private static long copy(Object copyManager, Table table, final MappedByteBuffer chunk) throws Exception {
+       Method copyIn = copyManager.getClass().getMethod("copyIn", String.class, InputStream.class);
+       InputStream in = new InputStream() {
+          public int read() {
+             return chunk.hasRemaining() ? chunk.get() & 0xff : -1;
+          }
+
+          public int read(byte[] buffer, int offset, int length) {
+             if (!chunk.hasRemaining())
+                return -1;
+             int count = Math.min(length, chunk.remaining());
+             chunk.get(buffer, offset, count);
+             return count;
+          }
+       };
+       try {
+          return (Long) copyIn.invoke(copyManager,
+                                      "COPY " + table.target + " (" + table.columns + ") FROM STDIN WITH CSV", in);
+       } catch (InvocationTargetException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+       }
+    }//end copy
+
+    // sends the chunk as multi-row INSERTs; returns the rows inserted
+    private static long insert(ConnectionPool.PooledConnection conn, Table table, MappedByteBuffer chunk)
+       throws SQLException {
+       // cast every value from text the way COPY would
+       String[] casts = columnTypes(conn.connection, table);
+       StringBuilder group = new StringBuilder("(");
+       for (int i = 0; i < casts.length; ++i)
+          group.append(i == 0 ? "" : ", ").append("CAST(? AS ").append(casts[i]).append(')');
+       group.append(')');
+       String prefix = "INSERT INTO " + table.target + " (" + table.columns + ") VALUES ";
+
+       List<Object> params = new ArrayList<Object>(ROWS_PER_INSERT * casts.length);
+       long rows = 0;
+       int pending = 0;
+       byte[] bytes = new byte[chunk.remaining()];
+       chunk.get(bytes);
+       String text = new String(bytes, StandardCharsets.UTF_8);
+       int position = 0;
+       while (position < text.length()) {
+          int end = recordEnd(text, position);
+          String record = text.substring(position, end).trim();
+          position = end + 1;
+          if (record.isEmpty())
+             continue;
+          List<String> fields = parseRecord(record);
+          if (fields.size() != casts.length)
+             throw new SQLException(table.file + ": expected " + casts.length + " fields but found "
+                                    + fields.size() + " in: " + record);
+          params.addAll(fields);
+          if (++pending == ROWS_PER_INSERT) {
+             rows += insertRows(conn, prefix, group.toString(), pending, params);
+             pending = 0;
+          }
+       }
+       if (pending > 0)
+          rows += insertRows(conn, prefix, group.toString(), pending, params);
+       return rows;
+    }//end insert
+
+    private static int insertRows(ConnectionPool.PooledConnection conn, String prefix, String group,
+                                  int count, List<Object> params) throws SQLException {
+       StringBuilder sql = new StringBuilder(prefix.length() + count * (group.length() + 2)).append(prefix);
+       for (int i = 0; i < count; ++i)
+          sql.append(i == 0 ? "" : ", ").append(group);
+       // full batches share one cached statement
+       PreparedStatement stmt = conn.statements.prepare(sql.toString());
+       StatementCache.bind(stmt, params.toArray());
+       params.clear();
+       return stmt.executeUpdate();
+    }//end insertRows
+
+    // the SQL type of every loaded column, in file order
+    private static String[] columnTypes(Connection connection, Table table) throws SQLException {
+       Statement stmt = connection.createStatement();
+       try {
+          ResultSetMetaData meta = stmt.executeQuery(
+             "SELECT " + table.columns + " FROM " + table.target + " LIMIT 0").getMetaData();
+          String[] types = new String[meta.getColumnCount()];
+          for (int i = 0; i < types.length; ++i)
+             types[i] = meta.getColumnTypeName(i + 1);
+          return types;
+       } finally {
+          stmt.close();
+       }
+    }//end columnTypes
+
+    // the index of the newline ending the record at position, or the text length
+    private static int recordEnd(String text, int position) {
+       boolean quoted = false;
+       for (int i = position; i < text.length(); ++i) {
+          char c = text.charAt(i);
+          if (c == '"')
+             quoted = !quoted;
+          else if (c == '\n' && !quoted)
+             return i;
+       }
+       return text.length();
+    }
+
+    /*
+     * Splits one CSV record the way COPY ... CSV does: double-quoted fields
+     * may hold commas, quotes doubled, and newlines; an unquoted empty field
+     * is NULL.
+     **/
+    private static List<String> parseRecord(String record) {
+       List<String> fields = new ArrayList<String>();
+       StringBuilder field = new StringBuilder();
+       boolean quoted = false;
+       boolean wasQuoted = false;
+       for (int i = 0; i < record.length(); ++i) {
+          char c = record.charAt(i);
+          if (c == '"') {
+             if (quoted && i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                field.append('"');
+                ++i;
+             } else {
+                quoted = !quoted;
+                wasQuoted = true;
+             }
+          } else if (c == ',' && !quoted) {
+             fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+             field.setLength(0);
+             wasQuoted = false;
+          } else if (c != '\r' || quoted) {
+             field.append(c);
+          }
+       }
+       fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+       return fields;
+    }//end parseRecord
+
+    /**
+     * Loads a data directory.
+     *
+     * @param args <dbname> <port> <user> <datadir> [create_indexes.sql]
+     */
+    public static void main(String[] args) {
+       if (args.length < 4) {
+          System.err.println (
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             BulkLoader.class.getName () +
+             " <dbname> <port> <user> <datadir> [create_indexes.sql]");
+          return;
+       }//end if
+       ConnectionPool pool = null;
+       try {
+          Class.forName ("org.postgresql.Driver").newInstance ();
+          String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+          pool = new ConnectionPool(url, args[2], "", 1, WORKERS + 1, 60000L, 600000L, 8);
+          new BulkLoader(pool, new File(args[3]), args.length > 4 ? new File(args[4]) : null).run();
+       } catch (Exception e) {
+          System.err.println (e.getMessage ());
+       } finally {
+          if (pool != null)
+             pool.close();
+       }
+    }//end main
+ }//end BulkLoader
@@ -0,0 +1,346 @@
+ import java.math.BigDecimal;
+ import java.sql.ResultSet;
+ import java.sql.ResultSetMetaData;
+ import java.sql.SQLException;
+ import java.sql.Timestamp;
+ import java.sql.Types;
+ import java.util.ArrayList;
+ import java.util.Arrays;
+ import java.util.BitSet;
+ import java.util.HashMap;
+ import java.util.List;
+
+ /**
+  * This class holds a query result column by column in primitive arrays.
+  * Integer, bigint, floating point and timestamp columns are read with the
+  * native JDBC getters and stored unboxed, and numeric columns as exact
+  * BigDecimals; text columns are dictionary encoded, so
+  * a repeated value (a status, a city, a login) is stored once.  It is the
+  * typed counterpart of the List&lt;List&lt;String&gt;&gt; returned by
+  * executeQueryAndReturnResult: there is no String per cell and nothing to
+  * parse back.  Rows and columns are numbered from 0.
+  *
+  */
+ public class ColumnarResult {
+
+    /**
+     * How a column is stored.
+     */
+    public enum Kind { INT, LONG, DOUBLE, DECIMAL, TIMESTAMP, STRING }
+
+    // one column of values; only the array matching kind is allocated
+    private static class Column {
+       final String name;
+       final Kind kind;
+       int[] ints;
+       long[] longs;
+       double[] doubles;
+       BigDecimal[] decimals;
+       final BitSet nulls = new BitSet();
+       // dictionary for STRING columns, ints holds the codes
+       List<String> dictionary;
+       HashMap<String, Integer> codes;
+
+       Column(String name, Kind kind, int capacity) {
+          this.name = name;
+          this.kind = kind;
+          switch (kind) {
+             case INT:
+             case STRING:
+                this.ints = new int[capacity];
+                break;
+             case LONG:
+             case TIMESTAMP:
+                this.longs = new long[capacity];
+                break;
+             case DOUBLE:
+                this.doubles = new double[capacity];
+                break;
+             case DECIMAL:
+                this.decimals = new BigDecimal[capacity];
+                break;
+          }
+          if (kind == Kind.STRING) {
+             this.dictionary = new ArrayList<String>();
+             this.codes = new HashMap<String, Integer>();
+          }
+       }
+
+       void grow(int capacity) {
+          if (this.ints != null) this.ints = Arrays.copyOf(this.ints, capacity);
+          if (this.longs != null) this.longs = Arrays.copyOf(this.longs, capacity);
+          if (this.doubles != null) this.doubles = Arrays.copyOf(this.doubles, capacity);
+          if (this.decimals != null) this.decimals = Arrays.copyOf(this.decimals, capacity);
+       }
+    }//end Column
+
+    private final Column[] _columns;
+    private int _rowCount = 0;
+    private int _capacity;
+    private long _byteCount = 0;
+
+    /**
+     * Reads every remaining row of the result set.
+     *
+     * @param rs the rows to read
+     * @throws java.sql.SQLException when the rows cannot be read
+     */
+    public ColumnarResult(ResultSet rs) throws SQLException {
+       ResultSetMetaData rsmd = rs.getMetaData ();
+       int numCol = rsmd.getColumnCount ();
+       this._capacity = 16;
+       this._columns = new Column[numCol];
+       for (int i = 0; i < numCol; ++i)
+          this._columns[i] = new Column(rsmd.getColumnName(i + 1), kindOf(rsmd.getColumnType(i + 1)), this._capacity);
+
+       while (rs.next()) {
+          if (this._rowCount == this._capacity) {
+             this._capacity *= 2;
+             for (Column column : this._columns)
+                column.grow(this._capacity);
+          }
+          int row = this._rowCount++;
+          for (int i = 0; i < numCol; ++i)
+             this._byteCount += read(rs, i + 1, this._columns[i], row);
+       }//end while
+    }//end ColumnarResult
+
+    /**
+     * @return the number of rows
+     */
+    public int rowCount() {
+       return this._rowCount;
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int columnCount() {
+       return this._columns.length;
+    }
+
+    /**
+     * @param col the column number
+     * @return the column name as reported by the driver
+     */
+    public String columnName(int col) {
+       return this._columns[col].name;
+    }
+
+    /**
+     * @param col the column number
+     * @return how the column is stored
+     */
+    public Kind kind(int col) {
+       return this._columns[col].kind;
+    }
+
+    /**
+     * @param name a column name, ignoring case
+     * @return the column number, or -1 when there is no such column
+     */
+    public int columnIndex(String name) {
+       for (int i = 0; i < this._columns.length; ++i) {
+          if (this._columns[i].name.equalsIgnoreCase(name))
+             return i;
+       }
+       return -1;
+    }
+
+    /**
+     * @return true when the value is SQL NULL
+     */
+    public boolean isNull(int row, int col) {
+       checkRow(row);
+       return this._columns[col].nulls.get(row);
+    }
+
+    /**
+     * @return the value of an INT column (0 for NULL)
+     */
+    public int getInt(int row, int col) {
+       checkRow(row);
+       Column column = this._columns[col];
+       switch (column.kind) {
+          case INT: return column.ints[row];
+          case LONG: return (int) column.longs[row];
+          case DOUBLE: return (int) column.doubles[row];
+          case DECIMAL: return column.decimals[row] == null ? 0 : column.decimals[row].intValue();
+          default: throw new IllegalStateException("Column " + column.name + " is not numeric");
+       }
+    }
+
+    /**
+     * @return the value of an INT or LONG column (0 for NULL)
+     */
+    public long getLong(int row, int col) {
+       checkRow(row);
+       Column column = this._columns[col];
+       switch (column.kind) {
+          case INT: return column.ints[row];
+          case LONG: return column.longs[row];
+          case DOUBLE: return (long) column.doubles[row];
+          case DECIMAL: return column.decimals[row] == null ? 0 : column.decimals[row].longValue();
+          default: throw new IllegalStateException("Column " + column.name + " is not numeric");
+       }
+    }
+
+    /**
+     * @return the value of a numeric column (0 for NULL)
+     */
+    public double getDouble(int row, int col) {
+       checkRow(row);
+       Column column = this._columns[col];
+       switch (column.kind) {
+          case INT: return column.ints[row];
+          case LONG: return column.longs[row];
+          case DOUBLE: return column.doubles[row];
+          case DECIMAL: return column.decimals[row] == null ? 0 : column.decimals[row].doubleValue();
+          default: throw new IllegalStateException("Column " + column.name + " is not numeric");
+       }
+    }
+
+    /**
+     * @return the value of a numeric column as a decimal, or null for NULL;
+     *         exact, as stored, for DECIMAL columns such as decimal(10,2)
+     *         prices
+     */
+    public BigDecimal getBigDecimal(int row, int col) {
+       if (isNull(row, col))
+          return null;
+       Column column = this._columns[col];
+       switch (column.kind) {
+          case DECIMAL: return column.decimals[row];
+          case DOUBLE: return BigDecimal.valueOf(column.doubles[row]);
+          default: return BigDecimal.valueOf(getLong(row, col));
+       }
+    }
+
+    /**
+     * @return the value of a TIMESTAMP column, or null for NULL
+     */
+    public Timestamp getTimestamp(int row, int col) {
+       checkRow(row);
+       Column column = this._columns[col];
+       if (column.kind != Kind.TIMESTAMP)
+          throw new IllegalStateException("Column " + column.name + " is not a timestamp");
+       if (column.nulls.get(row))
+          return null;
+       long micros = column.longs[row];
+       Timestamp ts = new Timestamp(Math.floorDiv(micros, 1000000L) * 1000L);
+       ts.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+       return ts;
+    }
+
+    /**
+     * @return the value of any column as text, or null for NULL
+     */
+    public String getString(int row, int col) {
+       if (isNull(row, col))
+          return null;
+       Column column = this._columns[col];
+       switch (column.kind) {
+          case INT: return Integer.toString(column.ints[row]);
+          case LONG: return Long.toString(column.longs[row]);
+          case DOUBLE: return BigDecimal.valueOf(column.doubles[row]).toPlainString();
+          case DECIMAL: return column.decimals[row].toPlainString();
+          case TIMESTAMP: return getTimestamp(row, col).toString();
+          default: return column.dictionary.get(column.ints[row]);
+       }
+    }
+
+    /**
+     * @return the bytes of values read: the native width of numbers and
+     *         timestamps, the unscaled digits of decimals, the length of
+     *         text
+     */
+    public long byteCount() {
+       return this._byteCount;
+    }
+
+    /**
+     * @return the number of distinct values stored for a STRING column
+     */
+    public int distinctValues(int col) {
+       Column column = this._columns[col];
+       return column.dictionary == null ? -1 : column.dictionary.size();
+    }
+
+    private static Kind kindOf(int sqlType) {
+       switch (sqlType) {
+          case Types.TINYINT:
+          case Types.SMALLINT:
+          case Types.INTEGER:
+             return Kind.INT;
+          case Types.BIGINT:
+             return Kind.LONG;
+          case Types.REAL:
+          case Types.FLOAT:
+          case Types.DOUBLE:
+             return Kind.DOUBLE;
+          case Types.NUMERIC:
+          case Types.DECIMAL:
+             return Kind.DECIMAL;
+          case Types.TIMESTAMP:
+             return Kind.TIMESTAMP;
+          default:
+             return Kind.STRING;
+       }
+    }//end kindOf
+
+    private static int read(ResultSet rs, int index, Column column, int row) throws SQLException {
+       int size = 0;
+       switch (column.kind) {
+          case INT:
+             column.ints[row] = rs.getInt(index);
+             size = 4;
+             break;
+          case LONG:
+             column.longs[row] = rs.getLong(index);
+             size = 8;
+             break;
+          case DOUBLE:
+             column.doubles[row] = rs.getDouble(index);
+             size = 8;
+             break;
+          case DECIMAL: {
+             BigDecimal value = rs.getBigDecimal(index);
+             column.decimals[row] = value;
+             if (value != null)
+                size = value.unscaledValue().bitLength() / 8 + 1;
+             break;
+          }
+          case TIMESTAMP: {
+             Timestamp ts = rs.getTimestamp(index);
+             if (ts != null)
+                column.longs[row] = Math.floorDiv(ts.getTime(), 1000L) * 1000000L + ts.getNanos() / 1000;
+             size = 8;
+             break;
+          }
+          case STRING: {
+             String value = rs.getString(index);
+             if (value != null) {
+                size = value.length();
+                Integer code = column.codes.get(value);
+                if (code == null) {
+                   code = column.dictionary.size();
+                   column.dictionary.add(value);
+                   column.codes.put(value, code);
+                }
+                column.ints[row] = code;
+             }
+             break;
+          }
+       }
+       if (rs.wasNull()) {
+          column.nulls.set(row);
+          return 0;
+       }
+       return size;
+    }//end read
+
+    private void checkRow(int row) {
+       if (row < 0 || row >= this._rowCount)
+          throw new IndexOutOfBoundsException("Row " + row + " of " + this._rowCount);
+    }
+ }//end ColumnarResult
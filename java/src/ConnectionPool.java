@@ -0,0 +1,398 @@
+ import java.sql.Connection;
+ import java.sql.DriverManager;
+ import java.sql.ResultSet;
+ import java.sql.SQLException;
+ import java.sql.Statement;
+ import java.util.ArrayDeque;
+ import java.util.Iterator;
+ import java.util.Timer;
+ import java.util.TimerTask;
+ import java.util.concurrent.TimeUnit;
+ import java.util.concurrent.locks.Condition;
+ import java.util.concurrent.locks.ReentrantLock;
+
+ /**
+  * This class defines a bounded pool of physical PostgreSQL connections.
+  * Each pooled connection carries its own statement cache, so prepared
+  * statements survive between borrows. Idle connections above the minimum
+  * size are closed after the idle timeout, and connections that sat idle
+  * for a while are validated before being handed out again.
+  *
+  */
+ public class ConnectionPool {
+
+    /**
+     * A physical connection together with the statements prepared on it.
+     */
+    public static class PooledConnection {
+       public final Connection connection;
+       public final StatementCache statements;
+       private long _lastUsed;
+       // the server process serving this connection, 0 until looked up
+       private int _backendPid = 0;
+       // taken by release() and cancel(), so a cancel never outlives the borrow it was meant for
+       private final ReentrantLock _useLock = new ReentrantLock();
+       // the borrows this connection has been released from
+       private long _generation = 0;
+
+       PooledConnection(Connection connection, int statementCacheSize) {
+          this.connection = connection;
+          this.statements = new StatementCache(connection, statementCacheSize);
+          this._lastUsed = System.currentTimeMillis();
+       }
+
+       /**
+        * The server process ID, looked up on the first call.  Only call it
+        * while holding the connection, not while a query runs on it.
+        *
+        * @return the process ID of the server backend of this connection
+        * @throws java.sql.SQLException when the lookup fails
+        */
+       public int backendPid() throws SQLException {
+          if (this._backendPid == 0) {
+             Statement stmt = this.connection.createStatement();
+             try {
+                ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()");
+                rs.next();
+                this._backendPid = rs.getInt(1);
+             } finally {
+                stmt.close();
+             }
+          }
+          return this._backendPid;
+       }
+
+       /**
+        * Identifies the current borrow of this connection, for cancel().
+        *
+        * @return a number that changes each time the connection is released
+        */
+       public long generation() {
+          this._useLock.lock();
+          try {
+             return this._generation;
+          } finally {
+             this._useLock.unlock();
+          }
+       }
+
+       void close() {
+          this.statements.close();
+          try {
+             this.connection.close();
+          } catch (SQLException e) {
+             // ignored.
+          }
+       }
+    }//end PooledConnection
+
+    // connections idle longer than this are checked with a round trip on borrow
+    private static final long VALIDATION_INTERVAL_MS = 5000;
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+    private final int _minSize;
+    private final int _maxSize;
+    private final long _idleTimeoutMs;
+    private final long _acquireTimeoutMs;
+    private final int _statementCacheSize;
+
+    // most recently released connection first, so hot connections stay hot
+    private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _available = _lock.newCondition();
+    private int _total = 0;
+    private boolean _closed = false;
+    private final Timer _evictor;
+
+    /**
+     * Creates a new pool and opens the minimum number of connections
+     *
+     * @param url the JDBC connection URL
+     * @param user the user name used to login to the database
+     * @param passwd the user login password
+     * @param minSize connections kept open even when idle
+     * @param maxSize upper bound on open connections
+     * @param idleTimeoutMs how long a connection above minSize may sit idle
+     * @param acquireTimeoutMs how long borrow() waits for a free connection
+     * @param statementCacheSize prepared statements cached per connection
+     * @throws java.sql.SQLException when the initial connections cannot be opened
+     */
+    public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                          long idleTimeoutMs, long acquireTimeoutMs, int statementCacheSize) throws SQLException {
+       if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+          throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+       this._url = url;
+       this._user = user;
+       this._passwd = passwd;
+       this._minSize = minSize;
+       this._maxSize = maxSize;
+       this._idleTimeoutMs = idleTimeoutMs;
+       this._acquireTimeoutMs = acquireTimeoutMs;
+       this._statementCacheSize = statementCacheSize;
+
+       for (int i = 0; i < minSize; ++i) {
+          this._idle.push(open());
+          ++this._total;
+       }
+
+       this._evictor = new Timer("connection-pool-evictor", true);
+       long period = Math.max(1000, idleTimeoutMs / 2);
+       this._evictor.schedule(new TimerTask() {
+          public void run() { evictIdle(); }
+       }, period, period);
+    }//end ConnectionPool
+
+    /**
+     * Takes a connection from the pool, opening a new one if none is idle
+     * and the pool is below its maximum size.
+     *
+     * @return a validated connection; hand it back with release()
+     * @throws java.sql.SQLException when no connection is available in time
+     */
+    public PooledConnection borrow() throws SQLException {
+       long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this._acquireTimeoutMs);
+       while (true) {
+          PooledConnection conn = null;
+          boolean create = false;
+          this._lock.lock();
+          try {
+             while (!this._closed && this._idle.isEmpty() && this._total >= this._maxSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                   throw new SQLException("Timed out after " + this._acquireTimeoutMs
+                                          + " ms waiting for a database connection");
+                this._available.awaitNanos(remaining);
+             }
+             if (this._closed)
+                throw new SQLException("Connection pool is closed");
+             if (!this._idle.isEmpty()) {
+                conn = this._idle.pop();
+             } else {
+                ++this._total;
+                create = true;
+             }
+          } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             throw new SQLException("Interrupted while waiting for a database connection");
+          } finally {
+             this._lock.unlock();
+          }
+
+          if (create) {
+             try {
+                return open();
+             } catch (SQLException e) {
+                discard(null);
+                throw e;
+             }
+          }
+          if (isValid(conn))
+             return conn;
+          // broken connection: drop it and try again
+          discard(conn);
+       }
+    }//end borrow
+
+    /**
+     * Returns a borrowed connection to the pool.
+     *
+     * @param conn the connection obtained from borrow()
+     */
+    public void release(PooledConnection conn) {
+       if (conn == null)
+          return;
+       boolean broken;
+       // waits for a cancel() under way, and turns away later ones
+       conn._useLock.lock();
+       try {
+          ++conn._generation;
+          broken = conn.connection.isClosed();
+          if (!broken && !conn.connection.getAutoCommit()) {
+             // never hand out a connection with a half finished transaction
+             conn.connection.rollback();
+             conn.connection.setAutoCommit(true);
+          }
+       } catch (SQLException e) {
+          broken = true;
+       } finally {
+          conn._useLock.unlock();
+       }
+       if (broken) {
+          discard(conn);
+          return;
+       }
+       conn._lastUsed = System.currentTimeMillis();
+       this._lock.lock();
+       try {
+          if (this._closed) {
+             --this._total;
+             conn.close();
+             return;
+          }
+          this._idle.push(conn);
+          this._available.signal();
+       } finally {
+          this._lock.unlock();
+       }
+    }//end release
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout,
+     * keeping at least the minimum number open.
+     */
+    public void evictIdle() {
+       long cutoff = System.currentTimeMillis() - this._idleTimeoutMs;
+       ArrayDeque<PooledConnection> evicted = new ArrayDeque<PooledConnection>();
+       this._lock.lock();
+       try {
+          // the least recently used connections sit at the tail of the deque
+          Iterator<PooledConnection> it = this._idle.descendingIterator();
+          while (it.hasNext() && this._total > this._minSize) {
+             PooledConnection conn = it.next();
+             if (conn._lastUsed > cutoff)
+                break;
+             it.remove();
+             --this._total;
+             evicted.add(conn);
+          }
+       } finally {
+          this._lock.unlock();
+       }
+       for (PooledConnection conn : evicted)
+          conn.close();
+    }//end evictIdle
+
+    /**
+     * @return the number of open connections, idle or borrowed
+     */
+    public int size() {
+       this._lock.lock();
+       try {
+          return this._total;
+       } finally {
+          this._lock.unlock();
+       }
+    }
+
+    /**
+     * @return the number of open connections not currently borrowed
+     */
+    public int idleCount() {
+       this._lock.lock();
+       try {
+          return this._idle.size();
+       } finally {
+          this._lock.unlock();
+       }
+    }
+
+    /**
+     * Opens a connection with the pool's settings that is not part of the
+     * pool, for long-lived uses such as LISTEN.  The caller closes it.
+     *
+     * @return a new physical connection
+     * @throws java.sql.SQLException when the connection cannot be opened
+     */
+    public Connection openConnection() throws SQLException {
+       return DriverManager.getConnection(this._url, this._user, this._passwd);
+    }
+
+    /**
+     * Asks the server to stop the statement running on a borrowed
+     * connection.  The 7.3 driver does not implement Statement.cancel, so
+     * the request falls back to pg_cancel_backend over a connection of its
+     * own, which also works while the pool is exhausted.  The request is
+     * sent only while the connection is still in the borrow it was taken
+     * from, and release() waits for it, so it cannot stop a statement of
+     * the next borrower.
+     *
+     * @param conn the connection the statement runs on
+     * @param generation conn.generation() when the statement started
+     * @param stmt the running statement
+     * @return false when the connection was released in the meantime
+     * @throws java.sql.SQLException when the request cannot be sent
+     */
+    public boolean cancel(PooledConnection conn, long generation, Statement stmt) throws SQLException {
+       conn._useLock.lock();
+       try {
+          if (conn._generation != generation)
+             return false;
+          try {
+             stmt.cancel();
+             return true;
+          } catch (SQLException e) {
+             // not implemented by the driver
+          }
+          if (conn._backendPid == 0)
+             throw new SQLException("The server process of the connection is not known");
+          Connection side = openConnection();
+          try {
+             Statement cancel = side.createStatement();
+             cancel.executeQuery("SELECT pg_cancel_backend(" + conn._backendPid + ")").close();
+             cancel.close();
+          } finally {
+             side.close();
+          }
+          return true;
+       } finally {
+          conn._useLock.unlock();
+       }
+    }//end cancel
+
+    /**
+     * Closes every idle connection. Borrowed connections are closed as
+     * they are released.
+     */
+    public void close() {
+       this._evictor.cancel();
+       this._lock.lock();
+       try {
+          this._closed = true;
+          while (!this._idle.isEmpty()) {
+             this._idle.pop().close();
+             --this._total;
+          }
+          this._available.signalAll();
+       } finally {
+          this._lock.unlock();
+       }
+    }//end close
+
+    private PooledConnection open() throws SQLException {
+       return new PooledConnection(DriverManager.getConnection(this._url, this._user, this._passwd),
+                                   this._statementCacheSize);
+    }
+
+    private boolean isValid(PooledConnection conn) {
+       try {
+          if (conn.connection.isClosed())
+             return false;
+          if (System.currentTimeMillis() - conn._lastUsed < VALIDATION_INTERVAL_MS)
+             return true;
+          // the 7.3 driver predates Connection.isValid, so ask the server
+          Statement stmt = conn.connection.createStatement();
+          try {
+             ResultSet rs = stmt.executeQuery("SELECT 1");
+             return rs.next();
+          } finally {
+             stmt.close();
+          }
+       } catch (SQLException e) {
+          return false;
+       }
+    }//end isValid
+
+    private void discard(PooledConnection conn) {
+       if (conn != null)
+          conn.close();
+       this._lock.lock();
+       try {
+          --this._total;
+          this._available.signal();
+       } finally {
+          this._lock.unlock();
+       }
+    }//end discard
+ }//end ConnectionPool
@@ -0,0 +1,167 @@
+ import java.sql.SQLException;
+ import java.util.ArrayList;
+ import java.util.Collection;
+ import java.util.LinkedHashMap;
+ import java.util.LinkedHashSet;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class reads and writes each user's favorite menu items, kept one
+  * row per user and item in FavoriteItems.  The primary key serves a
+  * user's own favorites; idx_favoriteitems_item_login serves the reverse
+  * lookup, the users who favor an item, one page at a time in login
+  * order, so neither direction scans Users.
+  *
+  * Changes are made in batches: one INSERT or DELETE per chunk of names,
+  * inside one transaction.
+  *
+  */
+ public class Favorites {
+
+    // rows bound into one statement
+    private static final int CHUNK_SIZE = StatementCache.MAX_LIST;
+
+    private final PizzaStore _esql;
+
+    /**
+     * @param esql the data-access object used to read and write FavoriteItems
+     */
+    public Favorites(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * @param login the user
+     * @return the user's favorite items, by name
+     */
+    public List<String> list(String login) throws SQLException {
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT itemName FROM FavoriteItems WHERE login = ? ORDER BY itemName", login);
+       List<String> names = new ArrayList<String>(rows.rowCount());
+       for (int row = 0; row < rows.rowCount(); ++row)
+          names.add(rows.getString(row, 0));
+       return names;
+    }
+
+    /**
+     * Adds favorites to one user.  Items already favored are left alone.
+     *
+     * @param login the user
+     * @param itemNames the items, by exact menu name
+     * @return the number of favorites added
+     * @throws java.lang.IllegalArgumentException when an item is not on the
+     *         menu; nothing is added
+     */
+    public int add(String login, Collection<String> itemNames) throws SQLException {
+       Map<String, Collection<String>> favorites = new LinkedHashMap<String, Collection<String>>();
+       favorites.put(login, itemNames);
+       return add(favorites);
+    }
+
+    /**
+     * Adds favorites to many users, e.g. when importing them.  Items
+     * already favored are left alone.
+     *
+     * @param favorites the items to add, by exact menu name, per login
+     * @return the number of favorites added
+     * @throws java.lang.IllegalArgumentException when an item is not on the
+     *         menu; nothing is added
+     * @throws java.sql.SQLException when a login does not exist or the rows
+     *         cannot be written; nothing is added
+     */
+    public int add(Map<String, ? extends Collection<String>> favorites) throws SQLException {
+       List<String[]> pairs = new ArrayList<String[]>();
+       for (Map.Entry<String, ? extends Collection<String>> entry : favorites.entrySet()) {
+          for (String itemName : new LinkedHashSet<String>(entry.getValue())) {
+             if (this._esql.menu().find(itemName) == null)
+                throw new IllegalArgumentException("Item " + itemName + " is not on the menu");
+             pairs.add(new String[] {entry.getKey(), itemName});
+          }
+       }
+       this._esql.beginTransaction();
+       try {
+          int added = 0;
+          for (int from = 0, rows; from < pairs.size(); from += rows) {
+             rows = StatementCache.rows(pairs.size() - from);
+             Object[] params = new Object[rows * 2];
+             for (int i = 0; i < rows; ++i) {
+                params[2 * i] = pairs.get(from + i)[0];
+                params[2 * i + 1] = pairs.get(from + i)[1];
+             }
+             added += this._esql.executeUpdate("INSERT INTO FavoriteItems (login, itemName) VALUES "
+                                               + StatementCache.list("(?, ?)", rows) + " ON CONFLICT DO NOTHING", params);
+          }
+          this._esql.commit();
+          return added;
+       } catch (SQLException e) {
+          this._esql.rollback();
+          throw e;
+       } catch (RuntimeException e) {
+          this._esql.rollback();
+          throw e;
+       }
+    }//end add
+
+    /**
+     * Removes favorites from one user.  Items not favored are ignored.
+     *
+     * @param login the user
+     * @param itemNames the items, by exact menu name
+     * @return the number of favorites removed
+     */
+    public int remove(String login, Collection<String> itemNames) throws SQLException {
+       List<String> names = new ArrayList<String>(new LinkedHashSet<String>(itemNames));
+       this._esql.beginTransaction();
+       try {
+          int removed = 0;
+          for (int from = 0; from < names.size(); from += CHUNK_SIZE) {
+             Object[] chunk = StatementCache.padded(names.subList(from, Math.min(names.size(), from + CHUNK_SIZE)));
+             Object[] params = new Object[chunk.length + 1];
+             params[0] = login;
+             System.arraycopy(chunk, 0, params, 1, chunk.length);
+             removed += this._esql.executeUpdate("DELETE FROM FavoriteItems WHERE login = ? AND itemName IN ("
+                                                 + StatementCache.list("?", chunk.length) + ")", params);
+          }
+          this._esql.commit();
+          return removed;
+       } catch (SQLException e) {
+          this._esql.rollback();
+          throw e;
+       } catch (RuntimeException e) {
+          this._esql.rollback();
+          throw e;
+       }
+    }//end remove
+
+    /**
+     * Reads one page of the users who favor an item.  Pass the last login
+     * of a page to read the next one.
+     *
+     * @param itemName the item, by exact menu name
+     * @param afterLogin the last login already read, or null for the first page
+     * @param limit the most logins to return
+     * @return the logins, in order
+     */
+    public List<String> fans(String itemName, String afterLogin, int limit) throws SQLException {
+       ColumnarResult rows = afterLogin == null
+          ? this._esql.executeQueryAndReturnColumns(
+               "SELECT login FROM FavoriteItems WHERE itemName = ? ORDER BY login LIMIT " + limit, itemName)
+          : this._esql.executeQueryAndReturnColumns(
+               "SELECT login FROM FavoriteItems WHERE itemName = ? AND login > ? ORDER BY login LIMIT " + limit,
+               itemName, afterLogin);
+       List<String> logins = new ArrayList<String>(rows.rowCount());
+       for (int row = 0; row < rows.rowCount(); ++row)
+          logins.add(rows.getString(row, 0));
+       return logins;
+    }//end fans
+
+    /**
+     * @param itemName the item, by exact menu name
+     * @return the number of users who favor the item
+     */
+    public long countFans(String itemName) throws SQLException {
+       return this._esql.executeQueryAndReturnColumns(
+          "SELECT COUNT(*) FROM FavoriteItems WHERE itemName = ?", itemName).getLong(0, 0);
+    }
+ }//end Favorites
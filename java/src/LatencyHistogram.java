@@ -0,0 +1,157 @@
+ import java.util.concurrent.atomic.AtomicLong;
+ import java.util.concurrent.atomic.AtomicLongArray;
+
+ /**
+  * This class records latencies (or any non-negative values) in log-linear
+  * buckets, in the style of HdrHistogram: values below 256 are counted
+  * exactly and every power-of-two range above that is split into 128 linear
+  * buckets, so any percentile is reported within 1% of the true value using
+  * a fixed amount of memory.  Recording is lock free and safe from many
+  * threads at once.
+  *
+  */
+ public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    /**
+     * Records one value.
+     *
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value) {
+       if (value < 0)
+          value = 0;
+       this._counts.incrementAndGet(indexOf(value));
+       this._count.incrementAndGet();
+       this._sum.addAndGet(value);
+       long max;
+       while (value > (max = this._max.get()) && !this._max.compareAndSet(max, value)) {
+          // retry until our value is stored or a larger one won
+       }
+    }//end record
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+       for (int i = 0; i < BUCKETS; ++i) {
+          long n = other._counts.get(i);
+          if (n != 0)
+             this._counts.addAndGet(i, n);
+       }
+       this._count.addAndGet(other._count.get());
+       this._sum.addAndGet(other._sum.get());
+       long max;
+       long otherMax = other._max.get();
+       while (otherMax > (max = this._max.get()) && !this._max.compareAndSet(max, otherMax)) {
+          // retry until our value is stored or a larger one won
+       }
+    }//end add
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+       for (int i = 0; i < BUCKETS; ++i)
+          this._counts.set(i, 0);
+       this._count.set(0);
+       this._sum.set(0);
+       this._max.set(0);
+    }//end reset
+
+    /**
+     * @return the number of values recorded
+     */
+    public long count() {
+       return this._count.get();
+    }
+
+    /**
+     * @return the sum of the values recorded
+     */
+    public long sum() {
+       return this._sum.get();
+    }
+
+    /**
+     * @return the largest value recorded, exactly
+     */
+    public long max() {
+       return this._max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 when empty
+     */
+    public double mean() {
+       long count = this._count.get();
+       return count == 0 ? 0.0 : (double) this._sum.get() / count;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded
+     * values fall, e.g. percentile(0.99) for p99.
+     *
+     * @param fraction between 0 and 1
+     * @return the highest value of the bucket holding that rank, 0 when empty
+     */
+    public long percentile(double fraction) {
+       long count = this._count.get();
+       if (count == 0)
+          return 0;
+       long rank = Math.max(1, (long) Math.ceil(fraction * count));
+       long seen = 0;
+       for (int i = 0; i < BUCKETS; ++i) {
+          seen += this._counts.get(i);
+          if (seen >= rank)
+             return Math.min(highestEquivalentValue(i), this._max.get());
+       }
+       return this._max.get();
+    }//end percentile
+
+    /**
+     * Calls the visitor for every non-empty bucket, in increasing order.
+     *
+     * @param visitor receives the bucket's highest value and its count
+     */
+    public void forEachBucket(BucketVisitor visitor) {
+       for (int i = 0; i < BUCKETS; ++i) {
+          long n = this._counts.get(i);
+          if (n != 0)
+             visitor.bucket(highestEquivalentValue(i), n);
+       }
+    }
+
+    /**
+     * Receives the non-empty buckets of a histogram.
+     */
+    public interface BucketVisitor {
+       void bucket(long upperValue, long count);
+    }
+
+    private static int indexOf(long value) {
+       if (value < SUB_BUCKET_COUNT)
+          return (int) value;
+       int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+       return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int index) {
+       if (index < SUB_BUCKET_COUNT)
+          return index;
+       int shift = index / SUB_BUCKET_HALF - 1;
+       long sub = index - (long) shift * SUB_BUCKET_HALF;
+       return ((sub + 1) << shift) - 1;
+    }
+ }//end LatencyHistogram
@@ -0,0 +1,260 @@
+ import java.io.PrintStream;
+ import java.math.BigDecimal;
+ import java.sql.SQLException;
+ import java.util.ArrayList;
+ import java.util.Collections;
+ import java.util.Comparator;
+ import java.util.HashMap;
+ import java.util.List;
+ import java.util.Map;
+ import java.util.TreeSet;
+
+ /**
+  * This class keeps the whole Items table in memory.  The menu is tiny and
+  * rarely changes, so it is loaded once and kept pre-sorted in every order
+  * the menu screens show it in; browsing, filtering and price lookups then
+  * need no database call.  updateMenu invalidates the catalog after every
+  * change, and changes made by other clients arrive as menu_changed
+  * notifications.
+  *
+  */
+ public class MenuCatalog {
+
+    // NOTIFY channel raised by the items_changed trigger
+    public static final String CHANNEL = "menu_changed";
+
+    /**
+     * One row of the Items table.
+     */
+    public static class MenuItem {
+       public final String itemName;
+       public final String ingredients;
+       public final String typeOfItem;
+       public final BigDecimal price;
+       public final String description;
+
+       MenuItem(String itemName, String ingredients, String typeOfItem, BigDecimal price, String description) {
+          this.itemName = itemName;
+          this.ingredients = ingredients;
+          this.typeOfItem = typeOfItem;
+          this.price = price;
+          this.description = description;
+       }
+    }//end MenuItem
+
+    // an immutable, fully sorted copy of the table
+    private static class Snapshot {
+       final List<MenuItem> byTypeAndName;
+       final List<MenuItem> byName;
+       final List<MenuItem> byPriceAscending;
+       final List<MenuItem> byPriceDescending;
+       final List<String> types;
+       final Map<String, MenuItem> byItemName;
+
+       Snapshot(List<MenuItem> items) {
+          this.byTypeAndName = sorted(items, new Comparator<MenuItem>() {
+             public int compare(MenuItem a, MenuItem b) {
+                int c = TEXT_ORDER.compare(a.typeOfItem, b.typeOfItem);
+                return c != 0 ? c : TEXT_ORDER.compare(a.itemName, b.itemName);
+             }
+          });
+          this.byName = sorted(items, NAME_ORDER);
+          this.byPriceAscending = sorted(items, new Comparator<MenuItem>() {
+             public int compare(MenuItem a, MenuItem b) {
+                int c = a.price.compareTo(b.price);
+                return c != 0 ? c : TEXT_ORDER.compare(a.itemName, b.itemName);
+             }
+          });
+          this.byPriceDescending = sorted(items, new Comparator<MenuItem>() {
+             public int compare(MenuItem a, MenuItem b) {
+                int c = b.price.compareTo(a.price);
+                return c != 0 ? c : TEXT_ORDER.compare(a.itemName, b.itemName);
+             }
+          });
+          TreeSet<String> types = new TreeSet<String>(TEXT_ORDER);
+          this.byItemName = new HashMap<String, MenuItem>();
+          for (MenuItem item : items) {
+             types.add(item.typeOfItem);
+             this.byItemName.put(item.itemName, item);
+          }
+          this.types = Collections.unmodifiableList(new ArrayList<String>(types));
+       }
+    }//end Snapshot
+
+    // close to the database's default text ordering for these names
+    private static final Comparator<String> TEXT_ORDER = new Comparator<String>() {
+       public int compare(String a, String b) {
+          int c = String.CASE_INSENSITIVE_ORDER.compare(a, b);
+          return c != 0 ? c : a.compareTo(b);
+       }
+    };
+
+    private static final Comparator<MenuItem> NAME_ORDER = new Comparator<MenuItem>() {
+       public int compare(MenuItem a, MenuItem b) {
+          return TEXT_ORDER.compare(a.itemName, b.itemName);
+       }
+    };
+
+    private final PizzaStore _esql;
+    private volatile Snapshot _snapshot = null;
+
+    // bumped on every invalidation so a load racing with one is not kept
+    private long _generation = 0;
+
+    /**
+     * Creates an empty catalog; it is loaded on first use
+     *
+     * @param esql the data-access object used to read Items
+     */
+    public MenuCatalog(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * Drops the cached menu so the next access reloads it.
+     */
+    public void invalidate() {
+       synchronized (this) {
+          ++this._generation;
+          this._snapshot = null;
+       }
+    }//end invalidate
+
+    /**
+     * @return every item ordered by type, then name
+     */
+    public List<MenuItem> byTypeAndName() throws SQLException {
+       return snapshot().byTypeAndName;
+    }
+
+    /**
+     * @return every item ordered by name
+     */
+    public List<MenuItem> byName() throws SQLException {
+       return snapshot().byName;
+    }
+
+    /**
+     * @return every item ordered by price (low to high), then name
+     */
+    public List<MenuItem> byPriceAscending() throws SQLException {
+       return snapshot().byPriceAscending;
+    }
+
+    /**
+     * @return every item ordered by price (high to low), then name
+     */
+    public List<MenuItem> byPriceDescending() throws SQLException {
+       return snapshot().byPriceDescending;
+    }
+
+    /**
+     * @return the distinct item types, sorted
+     */
+    public List<String> types() throws SQLException {
+       return snapshot().types;
+    }
+
+    /**
+     * @param itemName the exact item name
+     * @return the item, or null when it is not on the menu
+     */
+    public MenuItem find(String itemName) throws SQLException {
+       return snapshot().byItemName.get(itemName);
+    }
+
+    /**
+     * Finds the items whose type contains the filter text, ignoring case
+     * and surrounding blanks, ordered by name.
+     *
+     * @param type the text to look for in the item type
+     * @return the matching items
+     */
+    public List<MenuItem> ofType(String type) throws SQLException {
+       String filter = type.toLowerCase();
+       List<MenuItem> result = new ArrayList<MenuItem>();
+       for (MenuItem item : snapshot().byName) {
+          if (item.typeOfItem.trim().toLowerCase().contains(filter))
+             result.add(item);
+       }
+       return result;
+    }//end ofType
+
+    /**
+     * Finds the items priced within [minPrice, maxPrice], ordered by price.
+     *
+     * @param minPrice the lowest price, inclusive
+     * @param maxPrice the highest price, inclusive
+     * @return the matching items
+     */
+    public List<MenuItem> inPriceRange(BigDecimal minPrice, BigDecimal maxPrice) throws SQLException {
+       List<MenuItem> items = snapshot().byPriceAscending;
+       // binary search for the first item at or above minPrice
+       int lo = 0, hi = items.size();
+       while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          if (items.get(mid).price.compareTo(minPrice) < 0)
+             lo = mid + 1;
+          else
+             hi = mid;
+       }
+       int end = lo;
+       while (end < items.size() && items.get(end).price.compareTo(maxPrice) <= 0)
+          ++end;
+       return items.subList(lo, end);
+    }//end inPriceRange
+
+    /**
+     * Prints items the way executeQueryAndPrintResult prints rows.
+     *
+     * @param out the stream to print to
+     * @param items the items to print
+     * @param withDetails also print the type and description columns
+     * @return the number of items printed
+     */
+    public static int print(PrintStream out, List<MenuItem> items, boolean withDetails) {
+       if (items.isEmpty())
+          return 0;
+       StringBuilder text = new StringBuilder();
+       text.append(withDetails ? "itemname\ttypeofitem\tprice\tdescription\t\n" : "itemname\tprice\t\n");
+       for (MenuItem item : items) {
+          text.append(item.itemName).append('\t');
+          if (withDetails)
+             text.append(item.typeOfItem).append('\t');
+          text.append(item.price.toPlainString()).append('\t');
+          if (withDetails)
+             text.append(item.description).append('\t');
+          text.append('\n');
+       }
+       out.print(text);
+       return items.size();
+    }//end print
+
+    private Snapshot snapshot() throws SQLException {
+       Snapshot snapshot = this._snapshot;
+       if (snapshot != null)
+          return snapshot;
+       long generation;
+       synchronized (this) {
+          generation = this._generation;
+       }
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT itemName, ingredients, typeOfItem, price, description FROM Items");
+       List<MenuItem> items = new ArrayList<MenuItem>(rows.rowCount());
+       for (int row = 0; row < rows.rowCount(); ++row)
+          items.add(new MenuItem(rows.getString(row, 0), rows.getString(row, 1), rows.getString(row, 2),
+                                 rows.getBigDecimal(row, 3).setScale(2), rows.getString(row, 4)));
+       snapshot = new Snapshot(items);
+       synchronized (this) {
+          if (generation == this._generation)
+             this._snapshot = snapshot;
+       }
+       return snapshot;
+    }//end snapshot
+
+    private static List<MenuItem> sorted(List<MenuItem> items, Comparator<MenuItem> order) {
+       List<MenuItem> copy = new ArrayList<MenuItem>(items);
+       Collections.sort(copy, order);
+       return Collections.unmodifiableList(copy);
+    }
+ }//end MenuCatalog
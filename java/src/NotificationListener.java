@@ -0,0 +1,161 @@
+ import java.sql.Connection;
+ import java.sql.SQLException;
+ import java.sql.Statement;
+ import java.util.ArrayList;
+ import java.util.LinkedHashSet;
+ import java.util.List;
+ import java.util.Set;
+ import java.util.concurrent.ConcurrentHashMap;
+ import java.util.concurrent.CopyOnWriteArrayList;
+
+ /**
+  * This class listens for PostgreSQL NOTIFY events on a dedicated
+  * connection and hands them to the handlers registered for each channel.
+  * The 7.3 driver only collects notifications while a query runs, so the
+  * listener thread issues an empty query every poll interval and then drains
+  * whatever arrived; the handlers of a channel run once per poll however
+  * many notifications it brought, since notifications carry no payload.
+  * If the connection drops it is reopened and every channel is listened to
+  * again; notifications sent while it was down are lost, so every handler
+  * is then called once, as if each of its channels had been notified.
+  *
+  */
+ public class NotificationListener {
+
+    /**
+     * Called on the listener thread after a poll that brought one or more
+     * notifications on a channel.
+     */
+    public interface Handler {
+       void notified(String channel);
+    }
+
+    private final ConnectionPool _pool;
+    private final long _pollIntervalMs;
+    private final ConcurrentHashMap<String, List<Handler>> _handlers =
+       new ConcurrentHashMap<String, List<Handler>>();
+    private final Thread _thread;
+    private volatile boolean _running = true;
+
+    // only touched by the listener thread
+    private Connection _connection = null;
+    // a connection was lost, so the next one must report a change on every channel
+    private boolean _lost = false;
+    private final List<String> _listening = new ArrayList<String>();
+
+    /**
+     * Creates a listener and starts its background thread
+     *
+     * @param pool the pool used to open the dedicated connection
+     * @param pollIntervalMs how often the server is asked for new notifications
+     */
+    public NotificationListener(ConnectionPool pool, long pollIntervalMs) {
+       this._pool = pool;
+       this._pollIntervalMs = pollIntervalMs;
+       this._thread = new Thread(new Runnable() {
+          public void run() { listen(); }
+       }, "notification-listener");
+       this._thread.setDaemon(true);
+       this._thread.start();
+    }//end NotificationListener
+
+    /**
+     * Registers a handler for a channel.  The LISTEN is issued on the next
+     * poll.
+     *
+     * @param channel the NOTIFY channel name
+     * @param handler called after each poll that brought notifications on the channel
+     */
+    public void subscribe(String channel, Handler handler) {
+       List<Handler> handlers = this._handlers.get(channel);
+       if (handlers == null) {
+          this._handlers.putIfAbsent(channel, new CopyOnWriteArrayList<Handler>());
+          handlers = this._handlers.get(channel);
+       }
+       handlers.add(handler);
+    }//end subscribe
+
+    /**
+     * Stops the listener thread and closes its connection.
+     */
+    public void close() {
+       this._running = false;
+       this._thread.interrupt();
+    }//end close
+
+    private void listen() {
+       while (this._running) {
+          try {
+             if (this._connection == null) {
+                this._connection = this._pool.openConnection();
+                this._listening.clear();
+             }
+             boolean reconnected = this._lost;
+             Statement stmt = this._connection.createStatement();
+             try {
+                for (String channel : this._handlers.keySet()) {
+                   if (!this._listening.contains(channel)) {
+                      stmt.execute("LISTEN " + channel);
+                      this._listening.add(channel);
+                   }
+                }
+                // any round trip collects the notifications queued for us
+                stmt.executeQuery("SELECT 1").close();
+             } finally {
+                stmt.close();
+             }
+             Set<String> channels = channels(((org.postgresql.PGConnection) this._connection).getNotifications());
+             // whatever was sent while the connection was down is gone; let every cache catch up
+             if (reconnected)
+                channels.addAll(this._listening);
+             this._lost = false;
+             dispatch(channels);
+          } catch (SQLException e) {
+             System.err.println("Notification listener error: " + e.getMessage());
+             closeConnection();
+             this._lost = true;
+          }
+          try {
+             Thread.sleep(this._pollIntervalMs);
+          } catch (InterruptedException e) {
+             break;
+          }
+       }//end while
+       closeConnection();
+    }//end listen
+
+    // the channels notified; a burst of notifications on a channel is one change to the handlers
+    private static Set<String> channels(org.postgresql.PGNotification[] notifications) {
+       Set<String> channels = new LinkedHashSet<String>();
+       if (notifications != null)
+          for (int i = 0; i < notifications.length; ++i)
+             channels.add(notifications[i].getName());
+       return channels;
+    }
+
+    private void dispatch(Set<String> channels) {
+       for (String channel : channels) {
+          List<Handler> handlers = this._handlers.get(channel);
+          if (handlers == null)
+             continue;
+          for (Handler handler : handlers) {
+             try {
+                handler.notified(channel);
+             } catch (RuntimeException e) {
+                System.err.println("Error handling " + channel + " notification: " + e.getMessage());
+             }
+          }
+       }
+    }//end dispatch
+
+    private void closeConnection() {
+       if (this._connection == null)
+          return;
+       try {
+          this._connection.close();
+       } catch (SQLException e) {
+          // ignored.
+       }
+       this._connection = null;
+    }//end closeConnection
+ }//end NotificationListener
@@ -0,0 +1,316 @@
+ import java.io.PrintStream;
+ import java.sql.SQLException;
+ import java.sql.Timestamp;
+ import java.util.ArrayList;
+ import java.util.Arrays;
+ import java.util.Collections;
+ import java.util.Comparator;
+ import java.util.HashMap;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class keeps the open orders (Placed through Delivering) in memory,
+  * grouped by store, so dispatch screens list work without querying
+  * FoodOrder.  The orders_changed trigger sends NOTIFY order_changed when
+  * orders are placed or change status; the notification carries no
+  * payload, so the queue then fetches the orders stamped since the last
+  * change it saw (log_status_change stamps orderTimestamp on every status
+  * change).  The fetch looks back a little before that mark to catch
+  * transactions that committed late, and the whole queue is reloaded now
+  * and then to heal anything missed.  The mark, orderTimestamp and
+  * placedAt all come from the server's clock (orders are inserted with
+  * LOCALTIMESTAMP), so a client whose clock is off cannot skip changes.
+  *
+  * Both reads are bounded by placedAt, FoodOrder's partition key, so they
+  * skip the months that cannot hold open work: a reload reads the orders
+  * placed within a maximum age, and a fetch the orders placed since the
+  * oldest open order it knows or the new orders since the mark.  An old
+  * order set back to an open status by hand shows up on the next reload
+  * if it is within the age.
+  *
+  * Only the driver and manager screens use the queue, so PizzaStore
+  * subscribes it to order_changed on first use (see openOrders()); a
+  * client that never opens those screens never loads or fetches it.
+  *
+  * Callers waiting for work block in awaitChange() and wake up when a fetch
+  * changed the queue.
+  *
+  */
+ public class OpenOrderQueue {
+
+    // NOTIFY channel raised by the orders_changed trigger
+    public static final String CHANNEL = "order_changed";
+
+    // statuses of orders that still need work, in workflow order
+    public static final List<String> OPEN_STATUSES =
+       Collections.unmodifiableList(Arrays.asList("Placed", "Preparing", "Ready", "Delivering"));
+
+    // how far before the newest change seen each fetch looks
+    private static final long OVERLAP_MS = Long.getLong("pizzastore.orders.overlapMs", 60000L);
+
+    // the whole queue is reloaded after this long
+    private static final long RESYNC_MS = Long.getLong("pizzastore.orders.resyncMs", 300000L);
+
+    // orders placed longer ago than this are not open work
+    private static final long MAX_AGE_MS = Long.getLong("pizzastore.orders.maxAgeMs", 30L * 24 * 3600 * 1000);
+
+    // the predicate of idx_foodorder_open, spelled out so the planner can match the partial index
+    private static final String OPEN = "orderStatus IN ('Placed', 'Preparing', 'Ready', 'Delivering')";
+
+    private static final String COLUMNS =
+       "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, placedAt FROM FoodOrder ";
+
+    /**
+     * One open order.
+     */
+    public static class OpenOrder {
+       public final int orderID;
+       public final String login;
+       public final int storeID;
+       public final String totalPrice;
+       public final Timestamp orderTimestamp;
+       public final String orderStatus;
+       public final Timestamp placedAt;
+
+       OpenOrder(int orderID, String login, int storeID, String totalPrice,
+                 Timestamp orderTimestamp, String orderStatus, Timestamp placedAt) {
+          this.orderID = orderID;
+          this.login = login;
+          this.storeID = storeID;
+          this.totalPrice = totalPrice;
+          this.orderTimestamp = orderTimestamp;
+          this.orderStatus = orderStatus;
+          this.placedAt = placedAt;
+       }
+    }//end OpenOrder
+
+    // oldest first, the order work should be picked up in
+    private static final Comparator<OpenOrder> DISPATCH_ORDER = new Comparator<OpenOrder>() {
+       public int compare(OpenOrder a, OpenOrder b) {
+          int c = a.orderTimestamp.compareTo(b.orderTimestamp);
+          return c != 0 ? c : Integer.compare(a.orderID, b.orderID);
+       }
+    };
+
+    private final PizzaStore _esql;
+
+    // one fetch at a time, so an older read never overwrites a newer one
+    private final Object _fetching = new Object();
+
+    // guarded by this
+    private final Map<Integer, OpenOrder> _byId = new HashMap<Integer, OpenOrder>();
+    private final Map<Integer, Map<Integer, OpenOrder>> _byStore = new HashMap<Integer, Map<Integer, OpenOrder>>();
+    private boolean _loaded = false;
+    private long _loadedAt = 0;
+    private Timestamp _watermark = null;
+    private long _version = 0;
+
+    // whether notifications keep the queue current; if not, reads refresh it
+    private volatile boolean _live = false;
+
+    /**
+     * Creates an empty queue; it is loaded on first use
+     *
+     * @param esql the data-access object used to read FoodOrder
+     */
+    public OpenOrderQueue(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * Marks the queue as kept current by order_changed notifications.
+     */
+    public void setLive(boolean live) {
+       this._live = live;
+    }
+
+    /**
+     * Called for every order_changed notification: fetches the orders that
+     * changed, once the queue is in use.
+     */
+    public void changed() {
+       synchronized (this) {
+          if (!this._loaded)
+             return;
+       }
+       try {
+          refresh();
+       } catch (SQLException e) {
+          System.err.println("Error refreshing open orders: " + e.getMessage());
+       }
+    }//end changed
+
+    /**
+     * Lists the open orders of a store, oldest first.
+     *
+     * @param storeID the store, or 0 for every store
+     * @return the open orders
+     */
+    public List<OpenOrder> list(int storeID) throws SQLException {
+       current();
+       List<OpenOrder> orders = new ArrayList<OpenOrder>();
+       synchronized (this) {
+          if (storeID == 0) {
+             orders.addAll(this._byId.values());
+          } else {
+             Map<Integer, OpenOrder> store = this._byStore.get(storeID);
+             if (store != null)
+                orders.addAll(store.values());
+          }
+       }
+       Collections.sort(orders, DISPATCH_ORDER);
+       return orders;
+    }//end list
+
+    /**
+     * @return a number that changes every time the queue changes
+     */
+    public synchronized long version() {
+       return this._version;
+    }
+
+    /**
+     * Waits until the queue changes past the given version.
+     *
+     * @param version a value returned by version()
+     * @param timeoutMs the longest time to wait
+     * @return true if the queue changed
+     */
+    public boolean awaitChange(long version, long timeoutMs) throws SQLException, InterruptedException {
+       if (!this._live) {
+          // nothing pushes changes; look for them ourselves
+          Thread.sleep(timeoutMs);
+          refresh();
+          return version() != version;
+       }
+       long deadline = System.currentTimeMillis() + timeoutMs;
+       synchronized (this) {
+          long left;
+          while (this._version == version && (left = deadline - System.currentTimeMillis()) > 0)
+             wait(left);
+          return this._version != version;
+       }
+    }//end awaitChange
+
+    /**
+     * Prints orders the way executeQueryAndPrintResult prints FoodOrder rows.
+     *
+     * @param out the stream to print to
+     * @param orders the orders to print
+     * @return the number of orders printed
+     */
+    public static int print(PrintStream out, List<OpenOrder> orders) {
+       if (orders.isEmpty())
+          return 0;
+       StringBuilder text = new StringBuilder("orderid\tlogin\tstoreid\ttotalprice\tordertimestamp\torderstatus\t\n");
+       for (OpenOrder order : orders) {
+          text.append(order.orderID).append('\t')
+              .append(order.login).append('\t')
+              .append(order.storeID).append('\t')
+              .append(order.totalPrice).append('\t')
+              .append(order.orderTimestamp).append('\t')
+              .append(order.orderStatus).append("\t\n");
+       }
+       out.print(text);
+       return orders.size();
+    }//end print
+
+    // loads the queue, or brings it up to date when nothing else does
+    private void current() throws SQLException {
+       boolean loaded;
+       long loadedAt;
+       synchronized (this) {
+          loaded = this._loaded;
+          loadedAt = this._loadedAt;
+       }
+       if (!loaded || System.currentTimeMillis() - loadedAt > RESYNC_MS)
+          reload();
+       else if (!this._live)
+          refresh();
+    }//end current
+
+    // replaces the queue with every open order
+    private void reload() throws SQLException {
+       synchronized (this._fetching) {
+          // read the mark first, so changes made during the load are fetched again
+          ColumnarResult now = this._esql.executeQueryAndReturnColumns("SELECT LOCALTIMESTAMP");
+          Timestamp mark = now.getTimestamp(0, 0);
+          ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+             COLUMNS + "WHERE placedAt >= ? AND " + OPEN, new Timestamp(mark.getTime() - MAX_AGE_MS));
+          synchronized (this) {
+             this._byId.clear();
+             this._byStore.clear();
+             this._watermark = mark;
+             apply(rows);
+             this._loaded = true;
+             this._loadedAt = System.currentTimeMillis();
+             ++this._version;
+             notifyAll();
+          }
+       }
+    }//end reload
+
+    // applies the orders stamped since shortly before the last change seen
+    private void refresh() throws SQLException {
+       synchronized (this._fetching) {
+          Timestamp since;
+          Timestamp placedSince;
+          synchronized (this) {
+             if (!this._loaded) {
+                since = null;
+                placedSince = null;
+             } else {
+                since = new Timestamp(this._watermark.getTime() - OVERLAP_MS);
+                // a change is to an open order, or is a new order placed since the mark
+                placedSince = since;
+                for (OpenOrder order : this._byId.values())
+                   if (order.placedAt.before(placedSince))
+                      placedSince = order.placedAt;
+             }
+          }
+          if (since == null) {
+             reload();
+             return;
+          }
+          ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+             COLUMNS + "WHERE placedAt >= ? AND orderTimestamp >= ?", placedSince, since);
+          synchronized (this) {
+             if (apply(rows)) {
+                ++this._version;
+                notifyAll();
+             }
+          }
+       }
+    }//end refresh
+
+    // caller holds the lock; returns whether anything changed
+    private boolean apply(ColumnarResult rows) {
+       boolean changed = false;
+       for (int row = 0; row < rows.rowCount(); ++row) {
+          OpenOrder order = new OpenOrder(rows.getInt(row, 0), rows.getString(row, 1), rows.getInt(row, 2),
+                                          rows.getString(row, 3), rows.getTimestamp(row, 4),
+                                          rows.isNull(row, 5) ? "" : rows.getString(row, 5).trim(),
+                                          rows.getTimestamp(row, 6));
+          if (order.orderTimestamp.after(this._watermark))
+             this._watermark = order.orderTimestamp;
+          OpenOrder previous = this._byId.remove(order.orderID);
+          if (previous != null)
+             this._byStore.get(previous.storeID).remove(order.orderID);
+          if (OPEN_STATUSES.contains(order.orderStatus)) {
+             this._byId.put(order.orderID, order);
+             Map<Integer, OpenOrder> store = this._byStore.get(order.storeID);
+             if (store == null) {
+                store = new HashMap<Integer, OpenOrder>();
+                this._byStore.put(order.storeID, store);
+             }
+             store.put(order.orderID, order);
+             changed |= previous == null || !previous.orderStatus.equals(order.orderStatus)
+                || !previous.totalPrice.equals(order.totalPrice);
+          } else {
+             changed |= previous != null;
+          }
+       }
+       return changed;
+    }//end apply
+ }//end OpenOrderQueue
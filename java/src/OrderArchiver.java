@@ -0,0 +1,316 @@
+ import java.io.BufferedWriter;
+ import java.io.File;
+ import java.io.FileOutputStream;
+ import java.io.IOException;
+ import java.io.OutputStreamWriter;
+ import java.io.Writer;
+ import java.nio.charset.StandardCharsets;
+ import java.sql.Connection;
+ import java.sql.DriverManager;
+ import java.sql.PreparedStatement;
+ import java.sql.ResultSet;
+ import java.sql.SQLException;
+ import java.sql.Statement;
+ import java.util.ArrayList;
+ import java.util.Calendar;
+ import java.util.List;
+ import java.util.Locale;
+ import java.util.zip.GZIPOutputStream;
+
+ /**
+  * This class keeps the monthly partitions of FoodOrder and ItemsInOrder
+  * (see ensure_order_partitions in create_tables.sql) in tiers: the coming
+  * months are created ahead of time, recent months stay in the database,
+  * and months older than the retention are detached, written to
+  * gzip-compressed CSV files and dropped.  Reports over old months keep
+  * working from the sales rollups, which are not archived.
+  *
+  * The archives have the layout of data/foodorder.csv, plus placedAt, and
+  * data/itemsinorder.csv, plus unitPrice, one pair per month, named after
+  * the partition (foodorder_y2016m08.csv.gz), so a month can be restored
+  * with BulkLoader after unpacking.  A month is detached before it is
+  * written and dropped only after both of its files are complete; a run
+  * that fails in between finishes the month on the next run.  Its items
+  * are detached first and lose their foreign key on FoodOrder, which would
+  * otherwise keep the order month from being detached.  Once every expired
+  * month is gone, their order IDs are removed from OrderIds.  Meant to run
+  * daily from cron, through java/scripts/archive_orders.sh; the clients
+  * create the partitions they need themselves, so a missed run only delays
+  * archiving.
+  *
+  * Settings, as -Dpizzastore.archive.<name>=<value>: keepMonths (12), the
+  * months kept before the current one, and monthsAhead (3), the months
+  * created after it.
+  *
+  */
+ public class OrderArchiver {
+
+    private static final int KEEP_MONTHS = Integer.getInteger("pizzastore.archive.keepMonths", 12);
+    private static final int MONTHS_AHEAD = Integer.getInteger("pizzastore.archive.monthsAhead", 3);
+
+    // rows read per query while writing an archive
+    private static final int PAGE_SIZE = 10000;
+
+    private final Connection _conn;
+    private final File _archiveDir;
+
+    /**
+     * Creates an archiver
+     *
+     * @param conn the connection to work on
+     * @param archiveDir the directory the archives are written to
+     */
+    public OrderArchiver(Connection conn, File archiveDir) {
+       this._conn = conn;
+       this._archiveDir = archiveDir;
+    }
+
+    /**
+     * Creates the coming months and archives the expired ones, printing
+     * each month archived.
+     *
+     * @throws java.sql.SQLException when a partition cannot be created,
+     *         detached, read or dropped
+     * @throws java.io.IOException when an archive cannot be written
+     */
+    public void run() throws SQLException, IOException {
+       Statement stmt = this._conn.createStatement();
+       try {
+          ResultSet rs = stmt.executeQuery("SELECT ensure_order_partitions(LOCALTIMESTAMP, LOCALTIMESTAMP + interval '"
+                                           + MONTHS_AHEAD + " months')");
+          rs.next();
+          System.out.println("Created " + rs.getInt(1) + " month(s) ahead");
+       } finally {
+          stmt.close();
+       }
+       Calendar cutoff = Calendar.getInstance();
+       cutoff.add(Calendar.MONTH, -KEEP_MONTHS);
+       // partition names sort by month
+       String oldest = String.format(Locale.ROOT, "y%04dm%02d",
+                                     cutoff.get(Calendar.YEAR), cutoff.get(Calendar.MONTH) + 1);
+       if (!this._archiveDir.isDirectory() && !this._archiveDir.mkdirs())
+          throw new IOException("Cannot create " + this._archiveDir);
+       for (String month : monthsBefore(oldest))
+          archive(month);
+       PreparedStatement forget = this._conn.prepareStatement(
+          "DELETE FROM OrderIds WHERE placedAt < CAST(? AS timestamp)");
+       try {
+          forget.setString(1, String.format(Locale.ROOT, "%1$tY-%1$tm-01 00:00:00", cutoff));
+          forget.executeUpdate();
+       } finally {
+          forget.close();
+       }
+    }//end run
+
+    // the months, as "yYYYYmMM", with an order partition before the given one, attached or not
+    private List<String> monthsBefore(String month) throws SQLException {
+       PreparedStatement stmt = this._conn.prepareStatement(
+          "SELECT substr(relname, 11) FROM pg_class WHERE relkind = 'r' "
+          + "AND relname ~ '^foodorder_y[0-9]{4}m[0-9]{2}$' AND substr(relname, 11) < ? ORDER BY 1");
+       try {
+          stmt.setString(1, month);
+          ResultSet rs = stmt.executeQuery();
+          List<String> months = new ArrayList<String>();
+          while (rs.next())
+             months.add(rs.getString(1));
+          return months;
+       } finally {
+          stmt.close();
+       }
+    }//end monthsBefore
+
+    // detaches, writes out and drops one month of orders and their items
+    private void archive(String month) throws SQLException, IOException {
+       String orders = "foodorder_" + month;
+       String items = "itemsinorder_" + month;
+       long start = System.nanoTime();
+       // items first, and without their foreign key: a detached table keeps its
+       // foreign keys, and an order partition cannot leave while rows reference it
+       this._conn.setAutoCommit(false);
+       try {
+          detach("ItemsInOrder", items);
+          dropOrderReferences(items);
+          detach("FoodOrder", orders);
+          this._conn.commit();
+       } catch (SQLException e) {
+          this._conn.rollback();
+          throw e;
+       } finally {
+          this._conn.setAutoCommit(true);
+       }
+       long orderRows = export(orders, "orderID,login,storeID,totalPrice,\"orderTimestamp\",orderStatus,placedAt",
+                               // orderStatus is char(50), padded; rtrim gives the value as loaded
+                               "orderID, login, storeID, totalPrice, orderTimestamp, rtrim(orderStatus), placedAt",
+                               "orderID", "orderID > ?");
+       long itemRows = export(items, "orderID,itemName,quantity,unitPrice", "orderID, itemName, quantity, unitPrice",
+                              "orderID, itemName", "(orderID, itemName) > (?, ?)");
+       Statement stmt = this._conn.createStatement();
+       try {
+          stmt.executeUpdate("DROP TABLE IF EXISTS " + items);
+          stmt.executeUpdate("DROP TABLE IF EXISTS " + orders);
+       } finally {
+          stmt.close();
+       }
+       System.out.println(String.format(Locale.ROOT, "Archived %s: %d orders, %d items in %.1f s",
+                                        month, orderRows, itemRows, (System.nanoTime() - start) / 1e9));
+    }//end archive
+
+    // detaches a partition unless an earlier run already did
+    private void detach(String parent, String partition) throws SQLException {
+       PreparedStatement check = this._conn.prepareStatement(
+          "SELECT relispartition FROM pg_class WHERE relname = ? AND relkind = 'r'");
+       boolean attached;
+       try {
+          check.setString(1, partition);
+          ResultSet rs = check.executeQuery();
+          attached = rs.next() && rs.getBoolean(1);
+       } finally {
+          check.close();
+       }
+       if (!attached)
+          return;
+       Statement stmt = this._conn.createStatement();
+       try {
+          stmt.executeUpdate("ALTER TABLE " + parent + " DETACH PARTITION " + partition);
+       } finally {
+          stmt.close();
+       }
+    }//end detach
+
+    // drops the foreign keys a detached items month still has on FoodOrder
+    private void dropOrderReferences(String items) throws SQLException {
+       PreparedStatement find = this._conn.prepareStatement(
+          "SELECT c.conname FROM pg_constraint c JOIN pg_class t ON t.oid = c.conrelid "
+          + "WHERE t.relname = ? AND t.relkind = 'r' AND NOT t.relispartition AND c.contype = 'f' "
+          + "AND c.conparentid = 0 AND c.confrelid = 'foodorder'::regclass");
+       List<String> names = new ArrayList<String>();
+       try {
+          find.setString(1, items);
+          ResultSet rs = find.executeQuery();
+          while (rs.next())
+             names.add(rs.getString(1));
+       } finally {
+          find.close();
+       }
+       Statement stmt = this._conn.createStatement();
+       try {
+          for (String name : names)
+             stmt.executeUpdate("ALTER TABLE " + items + " DROP CONSTRAINT \"" + name + "\"");
+       } finally {
+          stmt.close();
+       }
+    }//end dropOrderReferences
+
+    /*
+     * Writes a detached partition to <table>.csv.gz, one page at a time in
+     * key order, through a temporary file renamed when complete.  Returns
+     * the rows written; a table already dropped writes nothing.
+     **/
+    private long export(String table, String header, String columns, String key, String after)
+       throws SQLException, IOException {
+       File archive = new File(this._archiveDir, table + ".csv.gz");
+       if (!exists(table))
+          return 0;
+       File partial = new File(this._archiveDir, table + ".csv.gz.part");
+       int keyCount = key.split(",").length;
+       long rows = 0;
+       Writer out = new BufferedWriter(new OutputStreamWriter(
+          new GZIPOutputStream(new FileOutputStream(partial)), StandardCharsets.UTF_8));
+       try {
+          out.write(header);
+          out.write('\n');
+          String first = "SELECT " + columns + " FROM " + table + " ORDER BY " + key + " LIMIT " + PAGE_SIZE;
+          String next = "SELECT " + columns + " FROM " + table + " WHERE " + after + " ORDER BY " + key
+             + " LIMIT " + PAGE_SIZE;
+          String[] last = null;
+          while (true) {
+             PreparedStatement stmt = this._conn.prepareStatement(last == null ? first : next);
+             try {
+                if (last != null)
+                   for (int i = 0; i < keyCount; ++i)
+                      stmt.setObject(i + 1, i == 0 ? (Object) Integer.valueOf(last[0]) : last[i]);
+                ResultSet rs = stmt.executeQuery();
+                int count = rs.getMetaData().getColumnCount();
+                int page = 0;
+                String[] row = null;
+                while (rs.next()) {
+                   row = new String[count];
+                   for (int i = 0; i < count; ++i) {
+                      row[i] = rs.getString(i + 1);
+                      if (i > 0)
+                         out.write(',');
+                      out.write(csv(row[i]));
+                   }
+                   out.write('\n');
+                   ++page;
+                }
+                rows += page;
+                if (page < PAGE_SIZE)
+                   break;
+                last = row;
+             } finally {
+                stmt.close();
+             }
+          }
+       } finally {
+          out.close();
+       }
+       if (!partial.renameTo(archive))
+          throw new IOException("Cannot rename " + partial + " to " + archive);
+       return rows;
+    }//end export
+
+    private boolean exists(String table) throws SQLException {
+       PreparedStatement stmt = this._conn.prepareStatement(
+          "SELECT COUNT(*) FROM pg_class WHERE relname = ? AND relkind = 'r'");
+       try {
+          stmt.setString(1, table);
+          ResultSet rs = stmt.executeQuery();
+          rs.next();
+          return rs.getInt(1) > 0;
+       } finally {
+          stmt.close();
+       }
+    }
+
+    // a CSV field; quoted when it holds a separator, a quote or a line break
+    private static String csv(String value) {
+       if (value == null)
+          return "";
+       if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+          return value;
+       return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Archives the expired months of one database
+     *
+     * @param args <dbname> <port> <user> <archivedir>
+     */
+    public static void main(String[] args) {
+       if (args.length < 4) {
+          System.err.println (
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             OrderArchiver.class.getName () +
+             " <dbname> <port> <user> <archivedir>");
+          return;
+       }//end if
+       Connection conn = null;
+       try {
+          Class.forName ("org.postgresql.Driver").newInstance ();
+          String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+          conn = DriverManager.getConnection(url, args[2], "");
+          new OrderArchiver(conn, new File(args[3])).run();
+       } catch (Exception e) {
+          System.err.println (e.getMessage ());
+       } finally {
+          try {
+             if (conn != null)
+                conn.close();
+          } catch (SQLException e) {
+             // nothing left to do
+          }
+       }
+    }//end main
+ }//end OrderArchiver
@@ -0,0 +1,214 @@
+ import java.io.PrintStream;
+ import java.math.BigDecimal;
+ import java.math.RoundingMode;
+ import java.sql.SQLException;
+ import java.sql.Timestamp;
+ import java.util.ArrayList;
+ import java.util.Collection;
+ import java.util.Collections;
+ import java.util.HashMap;
+ import java.util.LinkedHashSet;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class reads everything the order detail screen shows, for one
+  * order or many, in one round trip: the order header, its store, and its
+  * line items with the price they were ordered at and their line total.  Access control is
+  * part of the query: managers and drivers, by the role stored in Users,
+  * see every order, customers only their own.  An order the user may not
+  * see comes back as a single row carrying no order data.
+  *
+  * Orders are looked up through OrderIds, whose placedAt is bound into
+  * every join on FoodOrder and ItemsInOrder, so each order is read from its
+  * own monthly partition rather than probed for in all of them.
+  *
+  */
+ public class OrderDetails {
+
+    // order IDs bound into one statement
+    private static final int CHUNK_SIZE = StatementCache.MAX_LIST;
+
+    // params: login, login, then the order IDs
+    private static final String QUERY_HEAD =
+       "WITH access AS (" +
+       "SELECT k.orderID, k.placedAt, (o.login = ? OR EXISTS (SELECT 1 FROM Users u WHERE u.login = ? " +
+       "AND LOWER(TRIM(u.role)) IN ('manager', 'driver'))) AS allowed " +
+       "FROM OrderIds k JOIN FoodOrder o ON o.orderID = k.orderID AND o.placedAt = k.placedAt " +
+       "WHERE k.orderID IN (";
+    private static final String QUERY_TAIL =
+       ")) " +
+       "SELECT a.orderID, CASE WHEN a.allowed THEN 1 ELSE 0 END AS allowed, " +
+       "o.login, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus, " +
+       "s.address, s.city, s.state, i.itemName, i.quantity, i.unitPrice, i.quantity * i.unitPrice AS lineTotal " +
+       "FROM access a " +
+       "LEFT JOIN FoodOrder o ON o.orderID = a.orderID AND o.placedAt = a.placedAt AND a.allowed " +
+       "LEFT JOIN Store s ON s.storeID = o.storeID " +
+       "LEFT JOIN ItemsInOrder i ON i.orderID = o.orderID AND i.placedAt = o.placedAt " +
+       "ORDER BY a.orderID, i.itemName";
+
+    /**
+     * One line item of an order.
+     */
+    public static class Line {
+       public final String itemName;
+       public final int quantity;
+       // null when the item is no longer on the menu
+       public final BigDecimal price;
+       public final BigDecimal lineTotal;
+
+       Line(String itemName, int quantity, BigDecimal price, BigDecimal lineTotal) {
+          this.itemName = itemName;
+          this.quantity = quantity;
+          this.price = price;
+          this.lineTotal = lineTotal;
+       }
+    }//end Line
+
+    /**
+     * One order as the detail screen shows it.
+     */
+    public static class Detail {
+       public final int orderID;
+       // false when the order does not exist
+       public final boolean found;
+       // false when the user may not see the order; the fields below are then unset
+       public final boolean allowed;
+       public final String login;
+       public final int storeID;
+       public final BigDecimal totalPrice;
+       public final Timestamp orderTimestamp;
+       public final String orderStatus;
+       public final String storeAddress;
+       public final String storeCity;
+       public final String storeState;
+       public final List<Line> lines = new ArrayList<Line>();
+
+       Detail(int orderID, boolean found, boolean allowed, String login, int storeID, BigDecimal totalPrice,
+              Timestamp orderTimestamp, String orderStatus, String storeAddress, String storeCity,
+              String storeState) {
+          this.orderID = orderID;
+          this.found = found;
+          this.allowed = allowed;
+          this.login = login;
+          this.storeID = storeID;
+          this.totalPrice = totalPrice;
+          this.orderTimestamp = orderTimestamp;
+          this.orderStatus = orderStatus;
+          this.storeAddress = storeAddress;
+          this.storeCity = storeCity;
+          this.storeState = storeState;
+       }
+
+       /**
+        * Prints the order the way viewOrderInfo shows it.
+        *
+        * @param out the stream to print to
+        */
+       public void print(PrintStream out) {
+          StringBuilder text = new StringBuilder();
+          if (!this.found) {
+             text.append("Error: Order ID ").append(this.orderID).append(" does not exist in the database.\n");
+          } else if (!this.allowed) {
+             text.append("Error: You do not have permission to view order ").append(this.orderID).append(".\n");
+          } else {
+             text.append("\n===== Order Details =====\n");
+             text.append("Order ID: ").append(this.orderID).append('\n');
+             text.append("Timestamp: ").append(this.orderTimestamp).append('\n');
+             text.append("Total Price: $").append(this.totalPrice.toPlainString()).append('\n');
+             text.append("Status: ").append(this.orderStatus).append('\n');
+             text.append("Store: ").append(this.storeID);
+             if (this.storeAddress != null)
+                text.append(" - ").append(this.storeAddress.trim()).append(", ").append(this.storeCity.trim())
+                    .append(", ").append(this.storeState.trim());
+             text.append('\n');
+             text.append("\n===== Order Items =====\n");
+             if (this.lines.isEmpty()) {
+                text.append("No items found for this order.\n");
+             } else {
+                text.append("itemname\tquantity\tprice\tlinetotal\t\n");
+                for (Line line : this.lines) {
+                   text.append(line.itemName).append('\t').append(line.quantity).append('\t')
+                       .append(line.price == null ? "" : line.price.toPlainString()).append('\t')
+                       .append(line.lineTotal == null ? "" : line.lineTotal.toPlainString()).append("\t\n");
+                }
+             }
+          }
+          out.print(text);
+       }//end print
+    }//end Detail
+
+    private final PizzaStore _esql;
+
+    /**
+     * @param esql the data-access object used to read the orders
+     */
+    public OrderDetails(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * Reads one order.
+     *
+     * @param login the user asking
+     * @param orderID the order
+     * @return the order, or why it cannot be shown
+     */
+    public Detail find(String login, int orderID) throws SQLException {
+       return find(login, Collections.singletonList(orderID)).get(0);
+    }
+
+    /**
+     * Reads many orders, e.g. a driver's manifest, with one statement per
+     * CHUNK_SIZE orders.
+     *
+     * @param login the user asking
+     * @param orderIDs the orders; repeated IDs are read once
+     * @return one entry per distinct order, in the order asked for
+     */
+    public List<Detail> find(String login, Collection<Integer> orderIDs) throws SQLException {
+       List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(orderIDs));
+       Map<Integer, Detail> details = new HashMap<Integer, Detail>();
+       for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+          Object[] chunk = StatementCache.padded(ids.subList(from, Math.min(ids.size(), from + CHUNK_SIZE)));
+          Object[] params = new Object[chunk.length + 2];
+          params[0] = login;
+          params[1] = login;
+          System.arraycopy(chunk, 0, params, 2, chunk.length);
+          read(this._esql.executeQueryAndReturnColumns(
+             QUERY_HEAD + StatementCache.list("?", chunk.length) + QUERY_TAIL, params), details);
+       }
+       List<Detail> result = new ArrayList<Detail>(ids.size());
+       for (int orderID : ids) {
+          Detail detail = details.get(orderID);
+          result.add(detail != null ? detail
+                     : new Detail(orderID, false, false, null, 0, null, null, null, null, null, null));
+       }
+       return result;
+    }//end find
+
+    // one row per line item, or one row for an order without items or access
+    private static void read(ColumnarResult rows, Map<Integer, Detail> details) {
+       for (int row = 0; row < rows.rowCount(); ++row) {
+          int orderID = rows.getInt(row, 0);
+          Detail detail = details.get(orderID);
+          if (detail == null) {
+             detail = rows.getInt(row, 1) == 1
+                ? new Detail(orderID, true, true, rows.getString(row, 2), rows.getInt(row, 3),
+                             money(rows.getBigDecimal(row, 4)), rows.getTimestamp(row, 5),
+                             rows.isNull(row, 6) ? "" : rows.getString(row, 6).trim(),
+                             rows.getString(row, 7), rows.getString(row, 8), rows.getString(row, 9))
+                : new Detail(orderID, true, false, null, 0, null, null, null, null, null, null);
+             details.put(orderID, detail);
+          }
+          if (detail.allowed && !rows.isNull(row, 10)) {
+             detail.lines.add(new Line(rows.getString(row, 10), rows.getInt(row, 11),
+                                       money(rows.getBigDecimal(row, 12)), money(rows.getBigDecimal(row, 13))));
+          }
+       }
+    }//end read
+
+    private static BigDecimal money(BigDecimal value) {
+       return value == null ? null : value.setScale(2, RoundingMode.HALF_UP);
+    }
+ }//end OrderDetails
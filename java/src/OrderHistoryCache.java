@@ -0,0 +1,323 @@
+ import java.io.PrintStream;
+ import java.math.BigDecimal;
+ import java.math.RoundingMode;
+ import java.sql.SQLException;
+ import java.sql.Timestamp;
+ import java.util.ArrayList;
+ import java.util.Collections;
+ import java.util.Comparator;
+ import java.util.HashMap;
+ import java.util.LinkedHashMap;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class keeps the most recent orders of each customer who used the
+  * client lately, so "my orders" screens and ownership checks are served
+  * from memory instead of idx_foodorder_login_placed.  An entry holds the
+  * newest DEPTH orders of one login, by placedAt; it expires after a time
+  * to live, and the least recently used entries are evicted beyond a
+  * maximum count.  Ordering by placedAt, FoodOrder's partition key, lets a
+  * load scan the monthly partitions newest first and stop at the LIMIT.
+  * (orderTimestamp changes with every status update, so it could not.)
+  *
+  * Entries are kept current without reloading: submitOrder writes new
+  * orders through, OrderTransitions writes status changes through, and
+  * after an order_changed notification (changes made by other clients)
+  * changed() rereads just the cached customers' orders stamped lately and
+  * merges them in.
+  *
+  * Settings, as -Dpizzastore.history.<name>=<value>: ttlMs (60000),
+  * maxLogins (10000), overlapMs (60000), how far back changed() looks.
+  *
+  */
+ public class OrderHistoryCache {
+
+    // orders kept per login; one page of browseOrders
+    public static final int DEPTH = 20;
+
+    private static final long TTL_MS = Long.getLong("pizzastore.history.ttlMs", 60000L);
+    private static final int MAX_LOGINS = Integer.getInteger("pizzastore.history.maxLogins", 10000);
+    private static final long OVERLAP_MS = Long.getLong("pizzastore.history.overlapMs", 60000L);
+
+    // the server time changed() looks back to; orders are stamped with the server's clock
+    private static final String CHANGED_SINCE = "LOCALTIMESTAMP - interval '" + OVERLAP_MS + " milliseconds'";
+
+    /**
+     * One order as the history screens show it.
+     */
+    public static class OrderSummary {
+       public final int orderID;
+       public final int storeID;
+       public final BigDecimal totalPrice;
+       public final Timestamp orderTimestamp;
+       public final String orderStatus;
+       public final Timestamp placedAt;
+
+       public OrderSummary(int orderID, int storeID, BigDecimal totalPrice, Timestamp orderTimestamp,
+                           String orderStatus, Timestamp placedAt) {
+          this.orderID = orderID;
+          this.storeID = storeID;
+          this.totalPrice = totalPrice.setScale(2, RoundingMode.HALF_UP);
+          this.orderTimestamp = orderTimestamp;
+          this.orderStatus = orderStatus;
+          this.placedAt = placedAt;
+       }
+
+       OrderSummary withStatus(String status) {
+          return new OrderSummary(this.orderID, this.storeID, this.totalPrice, this.orderTimestamp, status,
+                                  this.placedAt);
+       }
+    }//end OrderSummary
+
+    // newest first, the order of idx_foodorder_login_placed
+    private static final Comparator<OrderSummary> NEWEST_FIRST = new Comparator<OrderSummary>() {
+       public int compare(OrderSummary a, OrderSummary b) {
+          int c = b.placedAt.compareTo(a.placedAt);
+          return c != 0 ? c : Integer.compare(b.orderID, a.orderID);
+       }
+    };
+
+    // the newest orders of one login, newest first
+    private static class Entry {
+       final List<OrderSummary> orders;
+       // true when orders is the login's whole history
+       final boolean complete;
+       final long loadedAt;
+
+       Entry(List<OrderSummary> orders, boolean complete, long loadedAt) {
+          this.orders = Collections.unmodifiableList(orders);
+          this.complete = complete;
+          this.loadedAt = loadedAt;
+       }
+    }//end Entry
+
+    private final PizzaStore _esql;
+
+    // guarded by this; in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+       protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          if (size() <= MAX_LOGINS)
+             return false;
+          forget(eldest.getKey(), eldest.getValue());
+          return true;
+       }
+    };
+
+    // guarded by this; the login of every cached order, for status changes
+    private final Map<Integer, String> _owners = new HashMap<Integer, String>();
+
+    // guarded by this; bumped whenever an entry changes, so a load racing
+    // with a change is not kept
+    private long _generation = 0;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param esql the data-access object used to read FoodOrder
+     */
+    public OrderHistoryCache(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * @param login the customer
+     * @param limit the most orders to return, at most DEPTH
+     * @return the customer's newest orders, newest first
+     */
+    public List<OrderSummary> recent(String login, int limit) throws SQLException {
+       List<OrderSummary> orders = entry(login).orders;
+       return orders.size() <= limit ? orders : orders.subList(0, limit);
+    }
+
+    /**
+     * Finds one of a customer's orders without a query when it can.
+     *
+     * @param login the customer
+     * @param orderID the order
+     * @return the order, or null when it is not among the cached orders
+     */
+    public OrderSummary find(String login, int orderID) throws SQLException {
+       for (OrderSummary order : entry(login).orders)
+          if (order.orderID == orderID)
+             return order;
+       return null;
+    }
+
+    /**
+     * @param login the customer
+     * @return true when recent() holds the customer's whole history
+     */
+    public boolean complete(String login) throws SQLException {
+       return entry(login).complete;
+    }
+
+    /**
+     * Adds a new or changed order to its owner's entry, if the owner is
+     * cached.
+     *
+     * @param login the customer who placed it
+     * @param order the order as stored
+     */
+    public synchronized void put(String login, OrderSummary order) {
+       Entry entry = this._entries.get(login);
+       if (entry == null)
+          return;
+       ++this._generation;
+       List<OrderSummary> orders = new ArrayList<OrderSummary>(entry.orders.size() + 1);
+       for (OrderSummary cached : entry.orders)
+          if (cached.orderID != order.orderID)
+             orders.add(cached);
+       orders.add(order);
+       Collections.sort(orders, NEWEST_FIRST);
+       boolean complete = entry.complete;
+       while (orders.size() > DEPTH) {
+          this._owners.remove(orders.remove(orders.size() - 1).orderID);
+          complete = false;
+       }
+       this._owners.put(order.orderID, login);
+       // keep the load time, so merged changes do not extend the entry's life
+       this._entries.put(login, new Entry(orders, complete, entry.loadedAt));
+    }//end put
+
+    /**
+     * Records a status change made by this client to a cached order.
+     *
+     * @param orderID the order
+     * @param status its new status
+     */
+    public synchronized void statusChanged(int orderID, String status) {
+       String login = this._owners.get(orderID);
+       if (login == null)
+          return;
+       Entry entry = this._entries.get(login);
+       if (entry == null)
+          return;
+       ++this._generation;
+       // the new orderTimestamp the server stamped arrives with changed()
+       List<OrderSummary> orders = new ArrayList<OrderSummary>(entry.orders);
+       for (int i = 0; i < orders.size(); ++i)
+          if (orders.get(i).orderID == orderID)
+             orders.set(i, orders.get(i).withStatus(status));
+       this._entries.put(login, new Entry(orders, entry.complete, entry.loadedAt));
+    }//end statusChanged
+
+    /**
+     * Called for every order_changed notification: rereads the orders of
+     * the cached customers stamped within the overlap and merges them in.
+     * The read goes through idx_foodorder_login_placed and skips the
+     * months older than the oldest cached order; nothing is read while no
+     * customer is cached.
+     */
+    public void changed() {
+       List<String> logins = new ArrayList<String>();
+       Timestamp oldest = null;
+       synchronized (this) {
+          long now = System.currentTimeMillis();
+          for (Map.Entry<String, Entry> cached : this._entries.entrySet()) {
+             if (now - cached.getValue().loadedAt > TTL_MS)
+                continue;
+             logins.add(cached.getKey());
+             for (OrderSummary order : cached.getValue().orders)
+                if (oldest == null || order.placedAt.before(oldest))
+                   oldest = order.placedAt;
+          }
+       }
+       try {
+          for (int from = 0; from < logins.size(); from += StatementCache.MAX_LIST) {
+             Object[] padded = StatementCache.padded(
+                logins.subList(from, Math.min(logins.size(), from + StatementCache.MAX_LIST)));
+             Object[] params = new Object[padded.length + 1];
+             // new orders are placed within the overlap; LEAST ignores a null oldest
+             params[0] = oldest;
+             System.arraycopy(padded, 0, params, 1, padded.length);
+             ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+                "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, placedAt FROM FoodOrder " +
+                "WHERE placedAt >= LEAST(CAST(? AS timestamp), " + CHANGED_SINCE + ") " +
+                "AND orderTimestamp >= " + CHANGED_SINCE + " " +
+                "AND login IN (" + StatementCache.list("?", padded.length) + ")", params);
+             for (int row = 0; row < rows.rowCount(); ++row)
+                put(rows.getString(row, 1), new OrderSummary(
+                   rows.getInt(row, 0), rows.getInt(row, 2), rows.getBigDecimal(row, 3), rows.getTimestamp(row, 4),
+                   rows.isNull(row, 5) ? "" : rows.getString(row, 5).trim(), rows.getTimestamp(row, 6)));
+          }
+       } catch (SQLException e) {
+          System.err.println("Error refreshing order histories: " + e.getMessage());
+       }
+    }//end changed
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void clear() {
+       ++this._generation;
+       this._entries.clear();
+       this._owners.clear();
+    }
+
+    // the login's entry, loaded when missing or expired
+    private Entry entry(String login) throws SQLException {
+       long generation;
+       synchronized (this) {
+          Entry entry = this._entries.get(login);
+          if (entry != null && System.currentTimeMillis() - entry.loadedAt <= TTL_MS)
+             return entry;
+          if (entry != null) {
+             forget(login, entry);
+             this._entries.remove(login);
+          }
+          generation = this._generation;
+       }
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus, placedAt FROM FoodOrder " +
+          "WHERE login = ? ORDER BY placedAt DESC, orderID DESC LIMIT " + (DEPTH + 1), login);
+       List<OrderSummary> orders = new ArrayList<OrderSummary>(Math.min(rows.rowCount(), DEPTH));
+       for (int row = 0; row < rows.rowCount() && row < DEPTH; ++row) {
+          orders.add(new OrderSummary(rows.getInt(row, 0), rows.getInt(row, 1), rows.getBigDecimal(row, 2),
+                                      rows.getTimestamp(row, 3),
+                                      rows.isNull(row, 4) ? "" : rows.getString(row, 4).trim(),
+                                      rows.getTimestamp(row, 5)));
+       }
+       Entry loaded = new Entry(orders, rows.rowCount() <= DEPTH, System.currentTimeMillis());
+       synchronized (this) {
+          // a change arrived while loading; use the rows once but do not keep them
+          if (generation != this._generation)
+             return loaded;
+          this._entries.put(login, loaded);
+          for (OrderSummary order : orders)
+             this._owners.put(order.orderID, login);
+       }
+       return loaded;
+    }//end entry
+
+    // caller holds the lock; removes the entry's orders from the owner index
+    private void forget(String login, Entry entry) {
+       for (OrderSummary order : entry.orders)
+          if (login.equals(this._owners.get(order.orderID)))
+             this._owners.remove(order.orderID);
+    }
+
+    /**
+     * Prints orders the way executeQueryAndPrintResult prints the same
+     * columns of FoodOrder.
+     *
+     * @param out the stream to print to
+     * @param orders the orders to print
+     * @return the number of orders printed
+     */
+    public static int print(PrintStream out, List<OrderSummary> orders) {
+       if (orders.isEmpty())
+          return 0;
+       StringBuilder text = new StringBuilder("orderid\tstoreid\ttotalprice\tordertimestamp\torderstatus\tplacedat\t\n");
+       for (OrderSummary order : orders) {
+          text.append(order.orderID).append('\t')
+              .append(order.storeID).append('\t')
+              .append(order.totalPrice.toPlainString()).append('\t')
+              .append(order.orderTimestamp).append('\t')
+              .append(order.orderStatus).append('\t')
+              .append(order.placedAt).append("\t\n");
+       }
+       out.print(text);
+       return orders.size();
+    }//end print
+ }//end OrderHistoryCache
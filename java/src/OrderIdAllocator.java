@@ -0,0 +1,51 @@
+ import java.sql.SQLException;
+
+ /**
+  * This class hands out new order IDs from the FoodOrder order ID sequence
+  * in blocks.  The sequence increments by the block size, so one nextval
+  * reserves a whole range of IDs for this JVM and most orders need no round
+  * trip for their ID at all.  IDs left in a block when the JVM exits are
+  * simply never used.
+  *
+  */
+ public class OrderIdAllocator {
+
+    // must match INCREMENT BY of foodorder_orderid_seq in create_tables.sql
+    public static final int BLOCK_SIZE = 50;
+
+    public static final String SEQUENCE = "foodorder_orderid_seq";
+
+    private final PizzaStore _esql;
+    private final String _sequence;
+    private final int _blockSize;
+
+    // the reserved range is [_next, _limit)
+    private long _next = 0;
+    private long _limit = 0;
+
+    /**
+     * Creates a new allocator drawing blocks from the given sequence
+     *
+     * @param esql the data-access object used to call nextval
+     * @param sequence the sequence name
+     * @param blockSize the sequence's INCREMENT BY
+     */
+    public OrderIdAllocator(PizzaStore esql, String sequence, int blockSize) {
+       this._esql = esql;
+       this._sequence = sequence;
+       this._blockSize = blockSize;
+    }
+
+    /**
+     * @return an order ID no other session or JVM will be given
+     * @throws java.sql.SQLException when a new block cannot be reserved
+     */
+    public synchronized int nextOrderId() throws SQLException {
+       if (this._next >= this._limit) {
+          long start = this._esql.getNextSeqVal(this._sequence);
+          this._next = start;
+          this._limit = start + this._blockSize;
+       }
+       return (int) this._next++;
+    }//end nextOrderId
+ }//end OrderIdAllocator
@@ -0,0 +1,291 @@
+ import java.sql.SQLException;
+ import java.util.ArrayList;
+ import java.util.HashMap;
+ import java.util.List;
+ import java.util.Map;
+ import java.util.concurrent.ArrayBlockingQueue;
+ import java.util.concurrent.BlockingQueue;
+ import java.util.concurrent.CompletableFuture;
+ import java.util.concurrent.TimeUnit;
+
+ /**
+  * This class takes new orders into a bounded in-memory queue and writes
+  * them in the background, many orders per transaction, so a burst of
+  * orders shares one commit instead of paying one WAL flush each.  The
+  * caller gets the order ID at once and a future that completes with the
+  * order total when the order is committed.
+  *
+  * The writer starts a batch with the oldest queued order and adds orders
+  * until the batch is full or the linger time has passed.  A batch is
+  * written with one multi-row INSERT per table (per few hundred orders or
+  * lines, see StatementCache.rows), so the statement-level order_total_insert trigger prices the
+  * whole batch in one update.  When a batch fails, its orders are written
+  * one by one with submitOrder, so one bad order fails only itself; orders
+  * already stored, by a commit whose outcome was lost, are completed with
+  * their stored total instead.  Whatever goes wrong, the writer fails only
+  * the orders concerned and keeps running.
+  *
+  * Queued orders are not durable: orders whose future has not completed
+  * are lost if the process dies.  Settings, as
+  * -Dpizzastore.ingest.<name>=<value>: maxBatch (200), lingerMs (5),
+  * queueSize (10000), offerTimeoutMs (5000), and writeTimeoutMs (30000),
+  * how long placeOrder waits for its order to be written.
+  *
+  */
+ public class OrderIngestQueue {
+
+    private static final int MAX_BATCH = Integer.getInteger("pizzastore.ingest.maxBatch", 200);
+    private static final long LINGER_MS = Long.getLong("pizzastore.ingest.lingerMs", 5L);
+    private static final int QUEUE_SIZE = Integer.getInteger("pizzastore.ingest.queueSize", 10000);
+    private static final long OFFER_TIMEOUT_MS = Long.getLong("pizzastore.ingest.offerTimeoutMs", 5000L);
+    public static final long WRITE_TIMEOUT_MS = Long.getLong("pizzastore.ingest.writeTimeoutMs", 30000L);
+
+    // rows bound into one statement
+    private static final int CHUNK_SIZE = StatementCache.MAX_LIST;
+
+    /**
+     * An order taken into the queue.
+     */
+    public static class PendingOrder {
+       public final int orderID;
+       public final String login;
+       public final int storeID;
+       // completes with the stored order total once the order is committed
+       public final CompletableFuture<Float> written = new CompletableFuture<Float>();
+       // item name -> quantity
+       final Map<String, Integer> lines;
+       final List<String> itemNames;
+       final List<Integer> quantities;
+
+       PendingOrder(int orderID, String login, int storeID, List<String> itemNames, List<Integer> quantities) {
+          this.orderID = orderID;
+          this.login = login;
+          this.storeID = storeID;
+          this.itemNames = itemNames;
+          this.quantities = quantities;
+          this.lines = PizzaStore.mergeLines(itemNames, quantities);
+       }
+    }//end PendingOrder
+
+    private final PizzaStore _esql;
+    private final BlockingQueue<PendingOrder> _queue = new ArrayBlockingQueue<PendingOrder>(QUEUE_SIZE);
+    private final Thread _writer;
+    private volatile boolean _closed = false;
+
+    /**
+     * Starts the writer thread
+     *
+     * @param esql the data-access object used to write the orders
+     */
+    public OrderIngestQueue(PizzaStore esql) {
+       this._esql = esql;
+       this._writer = new Thread(new Runnable() {
+          public void run() { writeLoop(); }
+       }, "pizzastore-order-writer");
+       this._writer.setDaemon(true);
+       this._writer.start();
+    }
+
+    /**
+     * Queues an order.  Waits for room while the queue is full.
+     *
+     * @param login the customer placing the order
+     * @param storeID the store the order is placed at
+     * @param itemNames the ordered item names
+     * @param quantities the quantity of each item, parallel to itemNames
+     * @return the queued order, with its new order ID
+     * @throws java.sql.SQLException when the queue stays full for the offer
+     *         timeout, the queue is closed, or no order ID can be reserved
+     */
+    public PendingOrder submit(String login, int storeID, List<String> itemNames, List<Integer> quantities)
+       throws SQLException {
+       if (this._closed)
+          throw new SQLException("The order queue is closed");
+       if (itemNames.isEmpty())
+          throw new SQLException("An order needs at least one item");
+       PendingOrder order = new PendingOrder(this._esql.nextOrderId(), login, storeID, itemNames, quantities);
+       try {
+          if (!this._queue.offer(order, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+             throw new SQLException("Timed out after " + OFFER_TIMEOUT_MS + " ms waiting for room in the order queue");
+       } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted while waiting for room in the order queue");
+       }
+       return order;
+    }//end submit
+
+    /**
+     * @return the number of orders waiting to be written
+     */
+    public int queued() {
+       return this._queue.size();
+    }
+
+    /**
+     * Stops taking orders and waits for the queued ones to be written.
+     *
+     * @param waitMs how long to wait
+     * @return true when every queued order was written in time
+     */
+    public boolean close(long waitMs) throws InterruptedException {
+       this._closed = true;
+       this._writer.interrupt();
+       this._writer.join(waitMs);
+       if (this._writer.isAlive())
+          return false;
+       // queued by a submit() that raced close() after the writer drained the queue
+       PendingOrder order;
+       while ((order = this._queue.poll()) != null)
+          order.written.completeExceptionally(new SQLException("The order queue is closed"));
+       return true;
+    }
+
+    private void writeLoop() {
+       List<PendingOrder> batch = new ArrayList<PendingOrder>(MAX_BATCH);
+       while (true) {
+          try {
+             PendingOrder first = this._closed ? this._queue.poll() : this._queue.take();
+             if (first == null)
+                return;
+             batch.add(first);
+             long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MS);
+             while (batch.size() < MAX_BATCH) {
+                long remaining = deadline - System.nanoTime();
+                PendingOrder next = this._closed || remaining <= 0
+                   ? this._queue.poll() : this._queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null)
+                   break;
+                batch.add(next);
+             }
+          } catch (InterruptedException e) {
+             // close() wakes the writer; it writes what it has, then drains the rest without waiting
+          }
+          if (!batch.isEmpty()) {
+             // a close() that arrived mid-write must not fail the connection waits of the drain
+             if (this._closed)
+                Thread.interrupted();
+             try {
+                write(batch);
+             } catch (Throwable e) {
+                // the writer outlives any failure; the orders it was writing fail with it
+                for (PendingOrder order : batch)
+                   order.written.completeExceptionally(e);
+             } finally {
+                batch.clear();
+             }
+          }
+       }
+    }//end writeLoop
+
+    /*
+     * Writes a batch in one transaction, or its orders one by one when that
+     * fails.  A failed commit may still have stored the batch, so the
+     * orders are looked up first and only the missing ones written again.
+     **/
+    private void write(List<PendingOrder> batch) {
+       Map<Integer, OrderHistoryCache.OrderSummary> stored;
+       try {
+          stored = writeBatch(batch);
+       } catch (Exception e) {
+          try {
+             stored = storedOrders(batch);
+          } catch (Exception lookupFailed) {
+             // whether the batch is stored is unknown; writing it again could duplicate it
+             for (PendingOrder order : batch)
+                order.written.completeExceptionally(lookupFailed);
+             return;
+          }
+          for (PendingOrder order : batch) {
+             if (stored.containsKey(order.orderID))
+                continue;
+             try {
+                order.written.complete(this._esql.submitOrder(order.orderID, order.login, order.storeID,
+                                                              order.itemNames, order.quantities));
+             } catch (Exception orderFailed) {
+                order.written.completeExceptionally(orderFailed);
+             }
+          }
+       }
+       for (PendingOrder order : batch) {
+          if (order.written.isDone())
+             continue;
+          try {
+             OrderHistoryCache.OrderSummary summary = stored.get(order.orderID);
+             if (summary == null)
+                throw new SQLException("Order " + order.orderID + " was not stored");
+             this._esql.history().put(order.login, summary);
+             order.written.complete(summary.totalPrice.floatValue());
+          } catch (Exception e) {
+             order.written.completeExceptionally(e);
+          }
+       }
+    }//end write
+
+    // the orders of a batch share the server's LOCALTIMESTAMP of its transaction as placedAt
+    private Map<Integer, OrderHistoryCache.OrderSummary> writeBatch(List<PendingOrder> batch) throws SQLException {
+       List<Object[]> idRows = new ArrayList<Object[]>(batch.size());
+       List<Object[]> orderRows = new ArrayList<Object[]>(batch.size());
+       List<Object[]> lineRows = new ArrayList<Object[]>();
+       this._esql.ensureOrderPartitions();
+       for (PendingOrder order : batch) {
+          idRows.add(new Object[] {order.orderID});
+          orderRows.add(new Object[] {order.orderID, order.login, order.storeID});
+          for (Map.Entry<String, Integer> line : order.lines.entrySet())
+             lineRows.add(new Object[] {order.orderID, line.getKey(), line.getValue()});
+       }
+       Map<Integer, OrderHistoryCache.OrderSummary> stored;
+       this._esql.beginTransaction();
+       try {
+          insert("INSERT INTO OrderIds (orderID, placedAt) VALUES ", "(?, LOCALTIMESTAMP)", idRows);
+          insert("INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, placedAt) "
+                 + "VALUES ", "(?, ?, ?, 0, LOCALTIMESTAMP, 'Placed', LOCALTIMESTAMP)", orderRows);
+          insert("INSERT INTO ItemsInOrder (orderID, itemName, quantity, placedAt) VALUES ",
+                 "(?, ?, ?, LOCALTIMESTAMP)", lineRows);
+          // the trigger has added the items to the totals by now
+          stored = storedOrders(batch);
+          this._esql.commit();
+          return stored;
+       } catch (SQLException e) {
+          this._esql.rollback();
+          throw e;
+       } catch (RuntimeException e) {
+          this._esql.rollback();
+          throw e;
+       }
+    }//end writeBatch
+
+    // the orders of a batch that are stored, by order ID; OrderIds gives each
+    // order's placedAt, so only the partitions holding them are read
+    private Map<Integer, OrderHistoryCache.OrderSummary> storedOrders(List<PendingOrder> batch)
+       throws SQLException {
+       Map<Integer, OrderHistoryCache.OrderSummary> stored = new HashMap<Integer, OrderHistoryCache.OrderSummary>();
+       for (int from = 0; from < batch.size(); from += CHUNK_SIZE) {
+          List<PendingOrder> chunk = batch.subList(from, Math.min(batch.size(), from + CHUNK_SIZE));
+          List<Integer> ids = new ArrayList<Integer>(chunk.size());
+          for (PendingOrder order : chunk)
+             ids.add(order.orderID);
+          Object[] padded = StatementCache.padded(ids);
+          ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+             "SELECT o.orderID, o.storeID, o.totalPrice, o.orderTimestamp, o.placedAt "
+             + "FROM OrderIds k JOIN FoodOrder o ON o.orderID = k.orderID AND o.placedAt = k.placedAt "
+             + "WHERE k.orderID IN (" + StatementCache.list("?", padded.length) + ")", padded);
+          for (int row = 0; row < rows.rowCount(); ++row)
+             stored.put(rows.getInt(row, 0), new OrderHistoryCache.OrderSummary(
+                rows.getInt(row, 0), rows.getInt(row, 1), rows.getBigDecimal(row, 2),
+                rows.getTimestamp(row, 3), "Placed", rows.getTimestamp(row, 4)));
+       }
+       return stored;
+    }//end storedOrders
+
+    // multi-row INSERTs of the fixed lengths of StatementCache.rows
+    private void insert(String head, String row, List<Object[]> rows) throws SQLException {
+       for (int from = 0, count; from < rows.size(); from += count) {
+          count = StatementCache.rows(rows.size() - from);
+          List<Object> params = new ArrayList<Object>(count * rows.get(from).length);
+          for (Object[] values : rows.subList(from, from + count))
+             for (Object value : values)
+                params.add(value);
+          this._esql.executeUpdate(head + StatementCache.list(row, count), params.toArray());
+       }
+    }//end insert
+ }//end OrderIngestQueue
@@ -0,0 +1,277 @@
+ import java.io.PrintStream;
+ import java.sql.SQLException;
+ import java.sql.Timestamp;
+ import java.util.ArrayList;
+ import java.util.Arrays;
+ import java.util.Calendar;
+ import java.util.Collection;
+ import java.util.Collections;
+ import java.util.HashMap;
+ import java.util.LinkedHashMap;
+ import java.util.LinkedHashSet;
+ import java.util.List;
+ import java.util.Locale;
+ import java.util.Map;
+
+ /**
+  * This class moves orders through the order workflow,
+  * Placed -> Preparing -> Ready -> Delivering -> Delivered, one step at a
+  * time.  A request names either a set of order IDs or every order of a
+  * store in one status.  It runs in one transaction: the orders are locked
+  * and checked with one SELECT ... FOR UPDATE, then every order whose move
+  * is legal is updated by one UPDATE per chunk of IDs.  The result reports,
+  * per order, whether it moved and why not, plus the number of rows the
+  * updates affected.
+  *
+  * Orders named by ID are found through OrderIds, and every UPDATE is
+  * bounded by the months its orders were placed in, so both statements
+  * read only the monthly partitions those orders are in.
+  *
+  */
+ public class OrderTransitions {
+
+    // every order status, in workflow order
+    public static final List<String> STATUSES = Collections.unmodifiableList(
+       Arrays.asList("Placed", "Preparing", "Ready", "Delivering", "Delivered"));
+
+    // order IDs bound into one statement
+    private static final int CHUNK_SIZE = StatementCache.MAX_LIST;
+
+    /**
+     * What happened to one order.
+     */
+    public static class Change {
+       public final int orderID;
+       public final String fromStatus;
+       public final boolean moved;
+       public final String message;
+
+       Change(int orderID, String fromStatus, boolean moved, String message) {
+          this.orderID = orderID;
+          this.fromStatus = fromStatus;
+          this.moved = moved;
+          this.message = message;
+       }
+    }//end Change
+
+    /**
+     * The outcome of one request.
+     */
+    public static class Result {
+       public final String toStatus;
+       public final List<Change> changes;
+       public final int affected;
+
+       Result(String toStatus, List<Change> changes, int affected) {
+          this.toStatus = toStatus;
+          this.changes = Collections.unmodifiableList(changes);
+          this.affected = affected;
+       }
+
+       /**
+        * @return the number of orders that were not moved
+        */
+       public int rejected() {
+          int rejected = 0;
+          for (Change change : this.changes)
+             if (!change.moved)
+                ++rejected;
+          return rejected;
+       }
+
+       /**
+        * Prints one line per order and a summary.
+        *
+        * @param out the stream to print to
+        */
+       public void print(PrintStream out) {
+          StringBuilder text = new StringBuilder();
+          for (Change change : this.changes)
+             text.append("Order ").append(change.orderID).append(": ").append(change.message).append('\n');
+          text.append(this.affected).append(" order(s) moved to ").append(this.toStatus)
+              .append(", ").append(rejected()).append(" rejected.\n");
+          out.print(text);
+       }
+    }//end Result
+
+    private final PizzaStore _esql;
+
+    /**
+     * @param esql the data-access object used to update FoodOrder
+     */
+    public OrderTransitions(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * @param status an order status
+     * @return the status an order in that status moves to, or null when
+     *         there is none
+     */
+    public static String next(String status) {
+       int index = STATUSES.indexOf(status);
+       return index < 0 || index + 1 == STATUSES.size() ? null : STATUSES.get(index + 1);
+    }
+
+    /**
+     * @param status an order status
+     * @return the status orders move to that status from, or null when
+     *         there is none
+     */
+    public static String previous(String status) {
+       int index = STATUSES.indexOf(status);
+       return index <= 0 ? null : STATUSES.get(index - 1);
+    }
+
+    /**
+     * Moves the given orders to a status.  Orders that do not exist or are
+     * not in the status just before it are left alone and reported.
+     *
+     * @param orderIDs the orders to move; repeated IDs are moved once
+     * @param toStatus the new status
+     * @return the per-order outcome
+     * @throws java.sql.SQLException when the orders cannot be read or
+     *         updated; nothing is changed
+     */
+    public Result move(Collection<Integer> orderIDs, String toStatus) throws SQLException {
+       String fromStatus = checkTarget(toStatus);
+       List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(orderIDs));
+       this._esql.beginTransaction();
+       try {
+          // lock in orderID order across chunks too, so two requests cannot deadlock
+          List<Integer> sorted = new ArrayList<Integer>(ids);
+          Collections.sort(sorted);
+          Map<Integer, String> current = new LinkedHashMap<Integer, String>();
+          Map<Integer, Timestamp> placed = new HashMap<Integer, Timestamp>();
+          for (int from = 0; from < sorted.size(); from += CHUNK_SIZE) {
+             Object[] chunk = StatementCache.padded(sorted.subList(from, Math.min(sorted.size(), from + CHUNK_SIZE)));
+             lock("FROM OrderIds k JOIN FoodOrder o ON o.orderID = k.orderID AND o.placedAt = k.placedAt "
+                  + "WHERE k.orderID IN (" + StatementCache.list("?", chunk.length) + ")", chunk, current, placed);
+          }
+          Result result = apply(ids, current, placed, fromStatus, toStatus);
+          this._esql.commit();
+          written(result);
+          return result;
+       } catch (SQLException e) {
+          this._esql.rollback();
+          throw e;
+       } catch (RuntimeException e) {
+          this._esql.rollback();
+          throw e;
+       }
+    }//end move
+
+    /**
+     * Moves every order of a store that is in one status to the next one.
+     *
+     * @param storeID the store, or 0 for every store
+     * @param fromStatus the status the orders are in
+     * @param toStatus the new status, which must follow fromStatus
+     * @return the per-order outcome
+     * @throws java.sql.SQLException when the orders cannot be read or
+     *         updated; nothing is changed
+     */
+    public Result moveStore(int storeID, String fromStatus, String toStatus) throws SQLException {
+       if (!toStatus.equals(next(fromStatus)))
+          throw new IllegalArgumentException("Orders cannot move from " + fromStatus + " to " + toStatus);
+       this._esql.beginTransaction();
+       try {
+          Map<Integer, String> current = new LinkedHashMap<Integer, String>();
+          Map<Integer, Timestamp> placed = new HashMap<Integer, Timestamp>();
+          // fromStatus is a workflow status by now; as a literal it lets idx_foodorder_open serve the read
+          if (storeID == 0)
+             lock("FROM FoodOrder o WHERE o.orderStatus = '" + fromStatus + "'", new Object[0], current, placed);
+          else
+             lock("FROM FoodOrder o WHERE o.storeID = ? AND o.orderStatus = '" + fromStatus + "'",
+                  new Object[] {storeID}, current, placed);
+          Result result = apply(new ArrayList<Integer>(current.keySet()), current, placed, fromStatus, toStatus);
+          this._esql.commit();
+          written(result);
+          return result;
+       } catch (SQLException e) {
+          this._esql.rollback();
+          throw e;
+       } catch (RuntimeException e) {
+          this._esql.rollback();
+          throw e;
+       }
+    }//end moveStore
+
+    // the status orders must be in to move to toStatus
+    private static String checkTarget(String toStatus) {
+       if (!STATUSES.contains(toStatus))
+          throw new IllegalArgumentException("Unknown order status " + toStatus);
+       String fromStatus = previous(toStatus);
+       if (fromStatus == null)
+          throw new IllegalArgumentException("Orders cannot move back to " + toStatus);
+       return fromStatus;
+    }
+
+    // reads and locks the matching orders, in orderID order, with their status and placedAt
+    private void lock(String fromWhere, Object[] params, Map<Integer, String> current, Map<Integer, Timestamp> placed)
+       throws SQLException {
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT o.orderID, o.orderStatus, o.placedAt " + fromWhere + " ORDER BY o.orderID FOR UPDATE OF o", params);
+       for (int row = 0; row < rows.rowCount(); ++row) {
+          current.put(rows.getInt(row, 0), rows.isNull(row, 1) ? "" : rows.getString(row, 1).trim());
+          placed.put(rows.getInt(row, 0), rows.getTimestamp(row, 2));
+       }
+    }//end lock
+
+    // checks every order against the workflow and updates the legal ones
+    private Result apply(List<Integer> ids, Map<Integer, String> current, Map<Integer, Timestamp> placed,
+                         String fromStatus, String toStatus) throws SQLException {
+       List<Change> changes = new ArrayList<Change>(ids.size());
+       List<Integer> legal = new ArrayList<Integer>(ids.size());
+       for (int orderID : ids) {
+          String status = current.get(orderID);
+          if (status == null) {
+             changes.add(new Change(orderID, null, false, "does not exist"));
+          } else if (!status.equals(fromStatus)) {
+             changes.add(new Change(orderID, status, false, "cannot move from " + status + " to " + toStatus));
+          } else {
+             changes.add(new Change(orderID, status, true, status + " -> " + toStatus));
+             legal.add(orderID);
+          }
+       }
+       int affected = 0;
+       for (int from = 0; from < legal.size(); from += CHUNK_SIZE) {
+          List<Integer> chunk = legal.subList(from, Math.min(legal.size(), from + CHUNK_SIZE));
+          Object[] padded = StatementCache.padded(chunk);
+          Object[] params = new Object[padded.length + 2];
+          params[0] = toStatus;
+          params[1] = fromStatus;
+          System.arraycopy(padded, 0, params, 2, padded.length);
+          Timestamp first = null;
+          Timestamp last = null;
+          for (int i = 0; i < chunk.size(); ++i) {
+             Timestamp placedAt = placed.get(chunk.get(i));
+             if (first == null || placedAt.before(first))
+                first = placedAt;
+             if (last == null || placedAt.after(last))
+                last = placedAt;
+          }
+          // literal month bounds: an UPDATE prunes partitions only while planning
+          affected += this._esql.executeUpdate(
+             "UPDATE FoodOrder SET orderStatus = ? WHERE orderStatus = ? "
+             + "AND placedAt >= TIMESTAMP '" + month(first, 0) + "' AND placedAt < TIMESTAMP '" + month(last, 1) + "' "
+             + "AND orderID IN (" + StatementCache.list("?", padded.length) + ")", params);
+       }
+       return new Result(toStatus, changes, affected);
+    }//end apply
+
+    // writes committed changes through to the order history cache
+    private void written(Result result) {
+       for (Change change : result.changes)
+          if (change.moved)
+             this._esql.history().statusChanged(change.orderID, result.toStatus);
+    }
+
+    // the start of the month of a time, plus some months, as a timestamp literal
+    private static String month(Timestamp time, int plusMonths) {
+       Calendar month = Calendar.getInstance();
+       month.setTime(time);
+       month.add(Calendar.MONTH, plusMonths);
+       return String.format(Locale.ROOT, "%1$tY-%1$tm-01 00:00:00", month);
+    }
+ }//end OrderTransitions
@@ -14,6 +14,7 @@
  import java.sql.DriverManager;
  import java.sql.Connection;
  import java.sql.Statement;
+ import java.sql.PreparedStatement;
  import java.sql.ResultSet;
  import java.sql.ResultSetMetaData;
  import java.sql.SQLException;
@@ -21,13 +22,22 @@
  import java.io.FileReader;
  import java.io.BufferedReader;
  import java.io.InputStreamReader;
+ import java.io.IOException;
+ import java.io.PrintStream;
  import java.util.List;
  import java.util.ArrayList;
+ import java.util.LinkedHashMap;
+ import java.util.Map;
  import java.lang.Math;
+ import java.math.BigDecimal;
  import java.sql.Timestamp;
  import java.text.SimpleDateFormat;
  import java.util.Date;
  import java.util.Scanner;
+ import java.util.concurrent.ConcurrentHashMap;
+ import java.util.concurrent.ExecutionException;
+ import java.util.concurrent.TimeUnit;
+ import java.util.concurrent.TimeoutException;
  
  /**
   * This class defines a simple embedded SQL utility class that is designed to
@@ -36,19 +46,141 @@
   */
  public class PizzaStore {
  
-    // reference to physical database connection.
-    private Connection _connection = null;
-    
-    // Global variable to store the current logged-in user
-    static String currentUser = null;
-    
-    // Global variable to store the current user role
-    static String currentRole = null;
- 
-    // handling the keyboard inputs through a BufferedReader
-    // This variable can be global for convenience.
-    static BufferedReader in = new BufferedReader(
-                                 new InputStreamReader(System.in));
+    // pool of physical database connections the query helpers borrow from.
+    private ConnectionPool _pool = null;
+
+    // maximum number of prepared statements kept open per connection
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    // pool sizing, overridable with -Dpizzastore.pool.<name>=<value>
+    private static final int POOL_MIN_SIZE = Integer.getInteger("pizzastore.pool.min", 1);
+    private static final int POOL_MAX_SIZE = Integer.getInteger("pizzastore.pool.max", 8);
+    private static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("pizzastore.pool.idleTimeoutMs", 60000L);
+    private static final long POOL_ACQUIRE_TIMEOUT_MS = Long.getLong("pizzastore.pool.acquireTimeoutMs", 5000L);
+
+    // connection of the transaction open on the calling thread, if any
+    private final ThreadLocal<ConnectionPool.PooledConnection> _transaction =
+       new ThreadLocal<ConnectionPool.PooledConnection>();
+
+    // reserves order IDs from the FoodOrder sequence in blocks
+    private final OrderIdAllocator _orderIds =
+       new OrderIdAllocator(this, OrderIdAllocator.SEQUENCE, OrderIdAllocator.BLOCK_SIZE);
+
+    // until this time on the client's clock, in milliseconds, the server's
+    // current month has a partition
+    private volatile long _partitionsReadyUntil = 0;
+
+    // months of partitions ensureOrderPartitions makes ready after the current one
+    private static final int PARTITION_MONTHS_AHEAD = 3;
+
+    // in-memory copy of the Items table
+    private final MenuCatalog _menu = new MenuCatalog(this);
+
+    // in-memory copy of the Store table
+    private final StoreDirectory _stores = new StoreDirectory(this);
+
+    // in-memory queue of open orders per store, fed by order_changed notifications
+    private final OpenOrderQueue _openOrders = new OpenOrderQueue(this);
+
+    // guarded by this; whether order_changed notifications reach _openOrders
+    private boolean _openOrdersLive = false;
+
+    // validated, batched order status changes
+    private final OrderTransitions _transitions = new OrderTransitions(this);
+
+    // recent orders of each customer, kept current by writes and order_changed
+    private final OrderHistoryCache _history = new OrderHistoryCache(this);
+
+    // the order detail screen in one joined query
+    private final OrderDetails _orderDetails = new OrderDetails(this);
+
+    // manager reports over the sales rollups
+    private final SalesReports _reports = new SalesReports(this);
+
+    // each user's favorite items, with the reverse lookup by item
+    private final Favorites _favorites = new Favorites(this);
+
+    // logged-in users by session token
+    private final SessionCache _sessions = new SessionCache(this);
+
+    // background calls, started on first use
+    private AsyncPizzaStore _async = null;
+
+    // placeOrder queues orders for group commit instead of committing each one
+    private static final boolean INGEST_ORDERS = Boolean.getBoolean("pizzastore.ingest.enabled");
+
+    // the write-behind order queue, null unless INGEST_ORDERS
+    private OrderIngestQueue _ingest = null;
+
+    // open orders listed before choosing one to update
+    private static final int OPEN_ORDERS_SHOWN = 10;
+
+    // how often a watch screen checks whether the user pressed Enter
+    private static final long WATCH_INTERVAL_MS = 1000L;
+
+    // stores shown per page when browsing
+    private static final int STORE_PAGE_SIZE = 20;
+
+    // orders shown per page when browsing order history
+    private static final int ORDER_PAGE_SIZE = 20;
+
+    // rows fetched per round trip when streaming a whole order history
+    private static final int ORDER_FETCH_SIZE = 500;
+
+    // delivers NOTIFY events from other clients, null when disabled
+    private NotificationListener _listener = null;
+
+    // how often the listener polls for notifications, 0 disables it
+    private static final long NOTIFY_POLL_MS = Long.getLong("pizzastore.notify.pollMs", 1000L);
+
+    // metrics operation name of each user menu option
+    private static final String[] USER_MENU_OPERATIONS = {
+       null, "viewProfile", "updateProfile", "viewMenu", "placeOrder", "viewAllOrders",
+       "viewRecentOrders", "viewOrderInfo", "viewStores", "updateOrderStatus", "updateMenu", "updateUser",
+       "watchOpenOrders", "viewSalesReports"
+    };
+
+    // bind values for queries that have no placeholders
+    private static final Object[] NO_PARAMS = new Object[0];
+
+    // latency, row, byte and error counts of the query helpers per menu operation
+    private final QueryMetrics _metrics =
+       new QueryMetrics(!Boolean.getBoolean("pizzastore.metrics.disableJmx"));
+
+    // the metrics are written here in the Prometheus text format, if set
+    private static final String METRICS_FILE = System.getProperty("pizzastore.metrics.file");
+    private static final long METRICS_INTERVAL_MS = Long.getLong("pizzastore.metrics.intervalMs", 10000L);
+
+    // query helper calls slower than this are logged, negative disables
+    private static final long SLOW_QUERY_MS = Long.getLong("pizzastore.slowlog.thresholdMs", 200L);
+    private static final String SLOW_QUERY_FILE = System.getProperty("pizzastore.slowlog.file", "pizzastore-slow.log");
+    private static final double SLOW_QUERY_EXPLAIN_RATE =
+       Double.parseDouble(System.getProperty("pizzastore.slowlog.explainSampleRate", "0.1"));
+    private static final long SLOW_QUERY_MAX_BYTES = Long.getLong("pizzastore.slowlog.maxBytes", 10L * 1024 * 1024);
+    private static final int SLOW_QUERY_MAX_FILES = Integer.getInteger("pizzastore.slowlog.maxFiles", 5);
+
+    // writes slow query helper calls to SLOW_QUERY_FILE, null when disabled
+    private SlowQueryLog _slowLog = null;
+
+    // a statement a query helper is running, for cancel()
+    private static class Running {
+       final ConnectionPool.PooledConnection conn;
+       final long generation;
+       final Statement stmt;
+
+       Running(ConnectionPool.PooledConnection conn, Statement stmt) {
+          this.conn = conn;
+          this.generation = conn.generation ();
+          this.stmt = stmt;
+       }
+    }//end Running
+
+    // the statement each thread's query helper call is running
+    private final Map<Thread, Running> _running = new ConcurrentHashMap<Thread, Running>();
+
+    // threads whose work was cancelled; their query helper calls fail until resetCancel()
+    private final Map<Thread, Boolean> _cancelled = new ConcurrentHashMap<Thread, Boolean>();
+
  
     /**
      * Creates a new instance of PizzaStore
@@ -67,8 +199,42 @@
           String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
           System.out.println ("Connection URL: " + url + "\n");
  
-          // obtain a physical connection
-          this._connection = DriverManager.getConnection(url, user, passwd);
+          // open the connection pool
+          this._pool = new ConnectionPool(url, user, passwd, POOL_MIN_SIZE, POOL_MAX_SIZE,
+                                          POOL_IDLE_TIMEOUT_MS, POOL_ACQUIRE_TIMEOUT_MS,
+                                          STATEMENT_CACHE_SIZE);
+          if (NOTIFY_POLL_MS > 0) {
+             this._listener = new NotificationListener(this._pool, NOTIFY_POLL_MS);
+             // menu changes made by other clients
+             this._listener.subscribe(MenuCatalog.CHANNEL, new NotificationListener.Handler() {
+                public void notified(String channel) { _menu.invalidate(); }
+             });
+             this._listener.subscribe(StoreDirectory.CHANNEL, new NotificationListener.Handler() {
+                public void notified(String channel) { _stores.invalidate(); }
+             });
+             // roles, passwords and phone numbers changed by other clients
+             this._listener.subscribe(SessionCache.CHANNEL, new NotificationListener.Handler() {
+                public void notified(String channel) {
+                   try {
+                      _sessions.refresh();
+                   } catch (SQLException e) {
+                      System.err.println("Cannot recheck the logged-in users: " + e.getMessage());
+                   }
+                }
+             });
+             // orders placed or moved along by other clients; the open-order
+             // queue subscribes on first use, in openOrders()
+             this._listener.subscribe(OpenOrderQueue.CHANNEL, new NotificationListener.Handler() {
+                public void notified(String channel) { _history.changed(); }
+             });
+          }
+          if (INGEST_ORDERS)
+             this._ingest = new OrderIngestQueue(this);
+          if (METRICS_FILE != null)
+             this._metrics.startDump(new File(METRICS_FILE), METRICS_INTERVAL_MS);
+          if (SLOW_QUERY_MS >= 0)
+             this._slowLog = new SlowQueryLog(this._pool, new File(SLOW_QUERY_FILE), SLOW_QUERY_MS,
+                                              SLOW_QUERY_EXPLAIN_RATE, SLOW_QUERY_MAX_BYTES, SLOW_QUERY_MAX_FILES);
           System.out.println("Done");
        }catch (Exception e){
           System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -85,14 +251,53 @@
      * @throws java.sql.SQLException when update failed
      */
     public void executeUpdate (String sql) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       long start = System.nanoTime ();
+       int rowCount = 0;
+       boolean failed = true;
+       ConnectionPool.PooledConnection conn = null;
+       try {
+          conn = acquire ();
+          // creates a statement object
+          Statement stmt = conn.connection.createStatement ();
+          running (conn, stmt);
  
-       // issues the update instruction
-       stmt.executeUpdate (sql);
+          // issues the update instruction
+          rowCount = stmt.executeUpdate (sql);
  
-       // close the instruction
-       stmt.close ();
+          // close the instruction
+          stmt.close ();
+          failed = false;
+       } finally {
+          finish (conn, sql, NO_PARAMS, start, rowCount, 0, failed);
+       }
+    }//end executeUpdate
+ 
+    /**
+     * Method to execute a parameterized INSERT, UPDATE or DELETE.  The
+     * statement is prepared once per connection and reused from the
+     * statement cache on later calls with the same SQL text.
+     *
+     * @param sql the input SQL string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows affected
+     * @throws java.sql.SQLException when update failed
+     */
+    public int executeUpdate (String sql, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       int rowCount = 0;
+       boolean failed = true;
+       ConnectionPool.PooledConnection conn = null;
+       try {
+          conn = acquire ();
+          PreparedStatement stmt = conn.statements.prepare (sql);
+          StatementCache.bind (stmt, params);
+          running (conn, stmt);
+          rowCount = stmt.executeUpdate ();
+          failed = false;
+          return rowCount;
+       } finally {
+          finish (conn, sql, params, start, rowCount, 0, failed);
+       }
     }//end executeUpdate
  
     /**
@@ -105,38 +310,125 @@
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQueryAndPrintResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       return executeQueryAndPrintResult (query, NO_PARAMS);
+    }//end executeQueryAndPrintResult
  
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+    /**
+     * Method to execute a parameterized query (i.e. SELECT) through the
+     * statement cache and output the results to standard out.
+     *
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+       return executeQueryAndPrintResult (System.out, query, params);
+    }//end executeQueryAndPrintResult
  
-       /*
-        ** obtains the metadata object for the returned result set.  The metadata
-        ** contains row and column info.
-        */
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
-       int rowCount = 0;
+    /**
+     * Method to execute a parameterized query (i.e. SELECT) through the
+     * statement cache and output the results to the given stream.
+     *
+     * @param out the stream the rows are printed to
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndPrintResult (PrintStream out, String query, Object... params) throws SQLException {
+       ResultPrinter printer = new ResultPrinter (out);
+       executeQueryAndPrintResult (printer, query, params);
+       printer.flush ();
+       return printer.rowCount ();
+    }//end executeQueryAndPrintResult
+ 
+    /**
+     * Method to execute a parameterized query (i.e. SELECT) through the
+     * statement cache and add its rows to a printer.  The printer buffers
+     * its output; call flush() on it when done.
+     *
+     * @param printer the printer the rows are added to
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndPrintResult (ResultPrinter printer, String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       int rowsBefore = printer.rowCount ();
+       long bytesBefore = printer.byteCount ();
+       boolean failed = true;
+       ConnectionPool.PooledConnection conn = null;
+       try {
+          conn = acquire ();
+          PreparedStatement stmt = conn.statements.prepare (query);
+          StatementCache.bind (stmt, params);
+          running (conn, stmt);
+          ResultSet rs = stmt.executeQuery ();
+          int rowCount = printer.print (rs);
+          rs.close();
+          failed = false;
+          return rowCount;
+       } finally {
+          finish (conn, query, params, start, printer.rowCount () - rowsBefore, printer.byteCount () - bytesBefore, failed);
+       }
+    }//end executeQueryAndPrintResult
  
-       // iterates through the result set and output them to standard out.
-       boolean outputHeader = true;
-       while (rs.next()){
-        if(outputHeader){
-          for(int i = 1; i <= numCol; i++){
-          System.out.print(rsmd.getColumnName(i) + "\t");
+    /**
+     * Method to execute a query (i.e. SELECT) of any size and print its
+     * results without holding them all in memory.  The query runs behind a
+     * server side cursor and rows are fetched fetchSize at a time, so memory
+     * use stays flat however many rows the query returns.
+     *
+     * @param out the stream the rows are printed to
+     * @param fetchSize the number of rows fetched per round trip
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndStreamResult (PrintStream out, int fetchSize, String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       boolean failed = true;
+       ResultPrinter printer = new ResultPrinter (out);
+       ConnectionPool.PooledConnection conn = null;
+       try {
+          conn = acquire ();
+          boolean ownTransaction = conn != this._transaction.get();
+          // cursors only live inside a transaction
+          if (ownTransaction)
+             conn.connection.setAutoCommit (false);
+          // DECLARE cannot be prepared on the server, so it is not cached
+          PreparedStatement declare = conn.connection.prepareStatement (
+             "DECLARE pizzastore_stream NO SCROLL CURSOR FOR " + query);
+          StatementCache.bind (declare, params);
+          running (conn, declare);
+          declare.execute ();
+          declare.close ();
+
+          Statement fetch = conn.connection.createStatement ();
+          running (conn, fetch);
+          int fetched;
+          do {
+             ResultSet rs = fetch.executeQuery ("FETCH FORWARD " + fetchSize + " FROM pizzastore_stream");
+             fetched = printer.print (rs);
+             rs.close ();
+          } while (fetched == fetchSize);
+          printer.flush ();
+          fetch.execute ("CLOSE pizzastore_stream");
+          fetch.close ();
+          if (ownTransaction) {
+             conn.connection.commit ();
+             conn.connection.setAutoCommit (true);
           }
-          System.out.println();
-          outputHeader = false;
-        }
-          for (int i=1; i<=numCol; ++i)
-             System.out.print (rs.getString (i) + "\t");
-          System.out.println ();
-          ++rowCount;
-       }//end while
-       stmt.close();
-       return rowCount;
-    }//end executeQuery
+          failed = false;
+          return printer.rowCount ();
+       } finally {
+          // on failure the pool rolls back whatever is left open
+          finish (conn, query, params, start, printer.rowCount (), printer.byteCount (), failed);
+       }
+    }//end executeQueryAndStreamResult
  
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -148,33 +440,88 @@
      * @throws java.sql.SQLException when failed to execute the query
      */
     public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
- 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       return executeQueryAndReturnResult (query, NO_PARAMS);
+    }//end executeQueryAndReturnResult
  
-       /*
-        ** obtains the metadata object for the returned result set.  The metadata
-        ** contains row and column info.
-        */
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
+    /**
+     * Method to execute a parameterized query (i.e. SELECT) through the
+     * statement cache and return the results as a list of records.
+     *
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
        int rowCount = 0;
+       long byteCount = 0;
+       boolean failed = true;
+       ConnectionPool.PooledConnection conn = null;
+       try {
+          conn = acquire ();
+          PreparedStatement stmt = conn.statements.prepare (query);
+          StatementCache.bind (stmt, params);
+          running (conn, stmt);
+          ResultSet rs = stmt.executeQuery ();
  
-       // iterates through the result set and saves the data returned by the query.
-       boolean outputHeader = false;
-       List<List<String>> result  = new ArrayList<List<String>>();
-       while (rs.next()){
-         List<String> record = new ArrayList<String>();
-       for (int i=1; i<=numCol; ++i)
-          record.add(rs.getString (i));
-         result.add(record);
-       }//end while
-       stmt.close ();
-       return result;
+          /*
+           ** obtains the metadata object for the returned result set.  The metadata
+           ** contains row and column info.
+           */
+          ResultSetMetaData rsmd = rs.getMetaData ();
+          int numCol = rsmd.getColumnCount ();
+ 
+          // iterates through the result set and saves the data returned by the query.
+          List<List<String>> result  = new ArrayList<List<String>>();
+          while (rs.next()){
+            List<String> record = new ArrayList<String>();
+          for (int i=1; i<=numCol; ++i) {
+             String value = rs.getString (i);
+             if (value != null)
+                byteCount += value.length ();
+             record.add(value);
+          }
+            result.add(record);
+          }//end while
+          rs.close ();
+          rowCount = result.size ();
+          failed = false;
+          return result;
+       } finally {
+          finish (conn, query, params, start, rowCount, byteCount, failed);
+       }
     }//end executeQueryAndReturnResult
  
+    /**
+     * Method to execute a parameterized query (i.e. SELECT) through the
+     * statement cache and return the results column by column with native
+     * types, for callers that want numbers and timestamps rather than text.
+     *
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the query result
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ColumnarResult result = null;
+       ConnectionPool.PooledConnection conn = null;
+       try {
+          conn = acquire ();
+          PreparedStatement stmt = conn.statements.prepare (query);
+          StatementCache.bind (stmt, params);
+          running (conn, stmt);
+          ResultSet rs = stmt.executeQuery ();
+          result = new ColumnarResult (rs);
+          rs.close ();
+          return result;
+       } finally {
+          finish (conn, query, params, start, result == null ? 0 : result.rowCount (),
+                  result == null ? 0 : result.byteCount (), result == null);
+       }
+    }//end executeQueryAndReturnColumns
+ 
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the number of results
@@ -184,20 +531,40 @@
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
- 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+       return executeQuery (query, NO_PARAMS);
+    }
  
+    /**
+     * Method to execute a parameterized query (i.e. SELECT) through the
+     * statement cache and return the number of results
+     *
+     * @param query the input query string with '?' placeholders
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery (String query, Object... params) throws SQLException {
+        long start = System.nanoTime ();
         int rowCount = 0;
+        boolean failed = true;
+        ConnectionPool.PooledConnection conn = null;
+        try {
+           conn = acquire ();
+           PreparedStatement stmt = conn.statements.prepare (query);
+           StatementCache.bind (stmt, params);
+           running (conn, stmt);
+           ResultSet rs = stmt.executeQuery ();
  
-        // iterates through the result set and count nuber of results.
-        while (rs.next()){
-           rowCount++;
-        }//end while
-        stmt.close ();
-        return rowCount;
+           // iterates through the result set and count nuber of results.
+           while (rs.next()){
+              rowCount++;
+           }//end while
+           rs.close ();
+           failed = false;
+           return rowCount;
+        } finally {
+           finish (conn, query, params, start, rowCount, 0, failed);
+        }
     }
  
     /**
@@ -210,25 +577,417 @@
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int getCurrSeqVal(String sequence) throws SQLException {
-    Statement stmt = this._connection.createStatement ();
+    // currval is per session, so this is only meaningful on a connection
+    // that has already called nextval on the sequence
+    ConnectionPool.PooledConnection conn = acquire ();
+    try {
+       Statement stmt = conn.connection.createStatement ();
+ 
+       ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+       int value = rs.next() ? rs.getInt(1) : -1;
+       stmt.close ();
+       return value;
+    } finally {
+       release (conn);
+    }
+    }
+ 
+    /**
+     * Method to advance a sequence and return its new value. This
+     * method issues nextval on the DBMS and returns the value it handed
+     * out, which no other session will ever be given
+     *
+     * @param sequence name of the DB sequence
+     * @return the next value of the sequence
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public long getNextSeqVal(String sequence) throws SQLException {
+       return executeQueryAndReturnColumns ("SELECT nextval(?)", sequence).getLong (0, 0);
+    }//end getNextSeqVal
+ 
+    /**
+     * @return a new, unused order ID
+     * @throws java.sql.SQLException when a new block of IDs cannot be reserved
+     */
+    public int nextOrderId() throws SQLException {
+       return this._orderIds.nextOrderId ();
+    }//end nextOrderId
+ 
+    /**
+     * Makes sure FoodOrder and ItemsInOrder have a monthly partition for
+     * orders placed now.  Orders are stamped with the server's
+     * LOCALTIMESTAMP, so the months are the server's: the first call
+     * creates the current month and the next few with
+     * ensure_order_partitions and learns how long until the last of them
+     * starts; later calls only compare the client's clock against that
+     * span.  Call it outside of a transaction, before inserting an order.
+     *
+     * @throws java.sql.SQLException when the partitions cannot be created
+     */
+    public void ensureOrderPartitions() throws SQLException {
+       long asked = System.currentTimeMillis ();
+       if (asked < this._partitionsReadyUntil)
+          return;
+       String lastMonth = "date_trunc('month', LOCALTIMESTAMP + interval '" + PARTITION_MONTHS_AHEAD + " months')";
+       ColumnarResult ready = executeQueryAndReturnColumns (
+          "SELECT ensure_order_partitions(LOCALTIMESTAMP, " + lastMonth + "), " +
+          "EXTRACT(EPOCH FROM " + lastMonth + " - LOCALTIMESTAMP)");
+       // the partitions reach through the end of lastMonth; its start is a safe bound
+       long readyUntil = asked + (long) (ready.getDouble (0, 1) * 1000);
+       synchronized (this) {
+          this._partitionsReadyUntil = Math.max (this._partitionsReadyUntil, readyUntil);
+       }
+    }//end ensureOrderPartitions
+ 
+    /**
+     * @return the per-operation query metrics
+     */
+    public QueryMetrics metrics() {
+       return this._metrics;
+    }
+ 
+    /**
+     * @return the in-memory menu catalog
+     */
+    public MenuCatalog menu() {
+       return this._menu;
+    }
+ 
+    /**
+     * @return the in-memory store directory
+     */
+    public StoreDirectory stores() {
+       return this._stores;
+    }
+ 
+    /**
+     * The first call subscribes the queue to order_changed, so only a
+     * client that shows open orders (the driver and manager screens) loads
+     * the queue and fetches on every order change.
+     *
+     * @return the in-memory queue of open orders
+     */
+    public OpenOrderQueue openOrders() {
+       synchronized (this) {
+          if (this._listener != null && !this._openOrdersLive) {
+             this._listener.subscribe(OpenOrderQueue.CHANNEL, new NotificationListener.Handler() {
+                public void notified(String channel) { _openOrders.changed(); }
+             });
+             this._openOrders.setLive(true);
+             this._openOrdersLive = true;
+          }
+       }
+       return this._openOrders;
+    }
+ 
+    /**
+     * @return the order status workflow
+     */
+    public OrderTransitions transitions() {
+       return this._transitions;
+    }
+ 
+    /**
+     * @return the cache of each customer's recent orders
+     */
+    public OrderHistoryCache history() {
+       return this._history;
+    }
+ 
+    /**
+     * @return the order detail reader
+     */
+    public OrderDetails orderDetails() {
+       return this._orderDetails;
+    }
+ 
+    /**
+     * @return the sales reports
+     */
+    public SalesReports reports() {
+       return this._reports;
+    }
  
-    ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-    if (rs.next())
-       return rs.getInt(1);
-    return -1;
+    /**
+     * @return the favorite items of every user
+     */
+    public Favorites favorites() {
+       return this._favorites;
     }
  
     /**
-     * Method to close the physical connection if it is open.
+     * @return the logged-in users
+     */
+    public SessionCache sessions() {
+       return this._sessions;
+    }
+ 
+    /**
+     * @return the write-behind order queue, or null unless
+     *         pizzastore.ingest.enabled is set
+     */
+    public OrderIngestQueue ingest() {
+       return this._ingest;
+    }
+ 
+    /**
+     * @return the asynchronous facade, with one worker per pooled connection
+     */
+    public synchronized AsyncPizzaStore async() {
+       if (this._async == null)
+          this._async = new AsyncPizzaStore(this, POOL_MAX_SIZE);
+       return this._async;
+    }
+ 
+    /**
+     * Starts a transaction on the calling thread.  Until commit() or
+     * rollback(), every query helper called from this thread runs on the
+     * same connection inside the transaction.
+     *
+     * @throws java.sql.SQLException when a transaction is already open or
+     *         the connection cannot be obtained
+     */
+    public void beginTransaction() throws SQLException {
+       if (this._transaction.get() != null)
+          throw new SQLException("A transaction is already open on this thread");
+       ConnectionPool.PooledConnection conn = this._pool.borrow ();
+       try {
+          conn.connection.setAutoCommit (false);
+       } catch (SQLException e) {
+          this._pool.release (conn);
+          throw e;
+       }
+       this._transaction.set (conn);
+    }//end beginTransaction
+ 
+    /**
+     * Commits the transaction open on the calling thread.
+     *
+     * @throws java.sql.SQLException when no transaction is open or the commit failed
+     */
+    public void commit() throws SQLException {
+       ConnectionPool.PooledConnection conn = this._transaction.get();
+       if (conn == null)
+          throw new SQLException("No transaction is open on this thread");
+       try {
+          conn.connection.commit ();
+          conn.connection.setAutoCommit (true);
+       } finally {
+          this._transaction.remove ();
+          this._pool.release (conn);
+       }
+    }//end commit
+ 
+    /**
+     * Rolls back the transaction open on the calling thread, if any.
+     */
+    public void rollback() {
+       ConnectionPool.PooledConnection conn = this._transaction.get();
+       if (conn == null)
+          return;
+       try {
+          conn.connection.rollback ();
+          conn.connection.setAutoCommit (true);
+       } catch (SQLException e) {
+          // ignored, the pool discards connections it cannot reset.
+       } finally {
+          this._transaction.remove ();
+          this._pool.release (conn);
+       }
+    }//end rollback
+ 
+    /**
+     * Inserts an order and all of its line items in one transaction.  The
+     * line items go to the server as a single multi-row INSERT, so the
+     * statement-level order_total_insert trigger adds them all to the order
+     * total with one update.  Repeated item names are merged into one line.
+     * The new order is written through to the order history cache.
+     *
+     * @param orderID the new order's ID
+     * @param login the customer placing the order
+     * @param storeID the store the order is placed at
+     * @param itemNames the ordered item names
+     * @param quantities the quantity of each item, parallel to itemNames
+     * @return the order total as stored in FoodOrder
+     * @throws java.sql.SQLException when the order could not be stored; nothing is written
+     */
+    public float submitOrder(int orderID, String login, int storeID,
+                             List<String> itemNames, List<Integer> quantities) throws SQLException {
+       LinkedHashMap<String, Integer> lines = mergeLines(itemNames, quantities);
+       if (lines.isEmpty())
+          throw new SQLException("An order needs at least one item");
+
+       // every row is stamped with the server's LOCALTIMESTAMP, which stays the
+       // same for the whole transaction and so puts the items in the order's
+       // monthly partition; the status log and the open-order watermark use
+       // the server's clock too
+       ensureOrderPartitions ();
+       List<Object[]> itemRows = new ArrayList<Object[]>(lines.size());
+       for (Map.Entry<String, Integer> line : lines.entrySet())
+          itemRows.add(new Object[] {orderID, line.getKey(), line.getValue()});
+
+       ColumnarResult total;
+       beginTransaction ();
+       try {
+          // OrderIds keeps the ID unique across the monthly partitions
+          executeUpdate ("INSERT INTO OrderIds (orderID, placedAt) VALUES (?, LOCALTIMESTAMP)", orderID);
+          executeUpdate (
+             "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, placedAt) " +
+             "VALUES (?, ?, ?, 0, LOCALTIMESTAMP, 'Placed', LOCALTIMESTAMP)",
+             orderID, login, storeID);
+          // in statements of the fixed lengths of StatementCache.rows, to keep the statement cache small
+          for (int from = 0, count; from < itemRows.size(); from += count) {
+             count = StatementCache.rows (itemRows.size () - from);
+             List<Object> params = new ArrayList<Object> (count * 3);
+             for (Object[] row : itemRows.subList (from, from + count))
+                for (Object value : row)
+                   params.add (value);
+             executeUpdate ("INSERT INTO ItemsInOrder (orderID, itemName, quantity, placedAt) VALUES "
+                            + StatementCache.list ("(?, ?, ?, LOCALTIMESTAMP)", count), params.toArray ());
+          }
+          // the trigger has added the items to the total by now
+          total = executeQueryAndReturnColumns (
+             "SELECT totalPrice, placedAt FROM FoodOrder WHERE orderID = ? AND placedAt = LOCALTIMESTAMP", orderID);
+          commit ();
+       } catch (SQLException e) {
+          rollback ();
+          throw e;
+       } catch (RuntimeException e) {
+          rollback ();
+          throw e;
+       }
+       Timestamp placedAt = total.getTimestamp (0, 1);
+       this._history.put (login, new OrderHistoryCache.OrderSummary (
+          orderID, storeID, total.getBigDecimal (0, 0), placedAt, "Placed", placedAt));
+       return (float) total.getDouble (0, 0);
+    }//end submitOrder
+ 
+    /**
+     * Merges an order's item list into one line per item name.
+     *
+     * @param itemNames the ordered item names
+     * @param quantities the quantity of each item, parallel to itemNames
+     * @return item name -> total quantity, in order of first appearance
+     */
+    public static LinkedHashMap<String, Integer> mergeLines(List<String> itemNames, List<Integer> quantities) {
+       LinkedHashMap<String, Integer> lines = new LinkedHashMap<String, Integer>();
+       for (int i = 0; i < itemNames.size(); ++i) {
+          Integer previous = lines.get(itemNames.get(i));
+          lines.put(itemNames.get(i), (previous == null ? 0 : previous) + quantities.get(i));
+       }
+       return lines;
+    }//end mergeLines
+ 
+    /*
+     * Returns the connection of the calling thread's transaction, or borrows
+     * one from the pool when no transaction is open.
+     **/
+    private ConnectionPool.PooledConnection acquire() throws SQLException {
+       ConnectionPool.PooledConnection conn = this._transaction.get();
+       return conn != null ? conn : this._pool.borrow ();
+    }
+ 
+    /*
+     * Hands a connection obtained with acquire() back, unless it belongs to
+     * the calling thread's open transaction.
+     **/
+    private void release(ConnectionPool.PooledConnection conn) {
+       if (conn != this._transaction.get())
+          this._pool.release (conn);
+    }
+
+    /*
+     * Records the statement the calling thread is about to run, so another
+     * thread can cancel it.  The connection's server process ID is looked
+     * up here, once per connection, while nothing runs on it.
+     **/
+    private void running(ConnectionPool.PooledConnection conn, Statement stmt) throws SQLException {
+       if (this._cancelled.containsKey (Thread.currentThread ()))
+          throw new SQLException ("Query cancelled");
+       conn.backendPid ();
+       this._running.put (Thread.currentThread (), new Running (conn, stmt));
+    }
+
+    /**
+     * Cancels the work a thread is doing: the query helper call it is
+     * running, if any, fails with an SQLException, and so do its later
+     * calls until it calls resetCancel(), so a cancelled transaction
+     * cannot go on to its next statement.
+     *
+     * @param thread the thread doing the work
+     * @return true when a running statement was asked to stop
+     * @throws java.sql.SQLException when the request cannot be sent
+     */
+    public boolean cancel(Thread thread) throws SQLException {
+       this._cancelled.put (thread, Boolean.TRUE);
+       Running running = this._running.get (thread);
+       if (running == null)
+          return false;
+       return this._pool.cancel (running.conn, running.generation, running.stmt);
+    }//end cancel
+
+    /**
+     * Lets the calling thread run queries again after cancel().
+     */
+    public void resetCancel() {
+       this._cancelled.remove (Thread.currentThread ());
+    }
+ 
+    /*
+     * Ends a query helper call: releases its connection, if it got one,
+     * records the call in the query metrics, and logs it if it was slow.
+     **/
+    private void finish(ConnectionPool.PooledConnection conn, String sql, Object[] params,
+                        long start, int rows, long bytes, boolean failed) {
+       this._running.remove (Thread.currentThread ());
+       if (conn != null)
+          release (conn);
+       this._metrics.record (start, rows, bytes, failed);
+       if (this._slowLog != null)
+          this._slowLog.check (this._metrics.currentOperation (), sql, params,
+                               System.nanoTime () - start, rows, failed);
+    }
+ 
+    /**
+     * Method to close the pooled physical connections if they are open.
      */
     public void cleanup(){
-       try{
-          if (this._connection != null){
-             this._connection.close ();
+       synchronized (this) {
+          if (this._async != null){
+             try {
+                this._async.close (POOL_ACQUIRE_TIMEOUT_MS);
+             } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+             }
           }//end if
-       }catch (SQLException e){
-          // ignored.
-       }//end try
+       }
+       if (this._ingest != null){
+          // before the pool closes: queued orders still need a connection
+          try {
+             if (!this._ingest.close (POOL_ACQUIRE_TIMEOUT_MS))
+                System.err.println ("Error: " + this._ingest.queued () + " queued orders were not written");
+          } catch (InterruptedException e) {
+             Thread.currentThread ().interrupt ();
+          }
+       }//end if
+       if (this._listener != null){
+          this._listener.close ();
+       }//end if
+       if (this._slowLog != null){
+          // before the pool closes: queued plans still need a connection
+          this._slowLog.close ();
+       }//end if
+       if (this._pool != null){
+          this._pool.close ();
+       }//end if
+       if (METRICS_FILE != null){
+          try {
+             this._metrics.dump (new File(METRICS_FILE));
+          } catch (IOException e) {
+             System.err.println ("Error writing metrics: " + e.getMessage ());
+          }
+       }//end if
+       this._metrics.close ();
     }//end cleanup
  
     /**
@@ -246,7 +1005,7 @@
           return;
        }//end if
  
-       Greeting();
+       Greeting(System.out);
        PizzaStore esql = null;
        try{
           // use postgres JDBC driver.
@@ -258,61 +1017,7 @@
           String user = args[2];
           esql = new PizzaStore (dbname, dbport, user, "");
  
-          boolean keepon = true;
-          while(keepon) {
-             // These are sample SQL statements
-             System.out.println("MAIN MENU");
-             System.out.println("---------");
-             System.out.println("1. Create user");
-             System.out.println("2. Log in");
-             System.out.println("9. < EXIT");
-             String authorisedUser = null;
-             switch (readChoice()){
-                case 1: CreateUser(esql); break;
-                case 2: authorisedUser = LogIn(esql); break;
-                case 9: keepon = false; break;
-                default : System.out.println("Unrecognized choice!"); break;
-             }//end switch
-             if (authorisedUser != null) {
-               boolean usermenu = true;
-               while(usermenu) {
-                 System.out.println("MAIN MENU");
-                 System.out.println("---------");
-                 System.out.println("1. View Profile");
-                 System.out.println("2. Update Profile");
-                 System.out.println("3. View Menu");
-                 System.out.println("4. Place Order"); //make sure user specifies which store
-                 System.out.println("5. View Full Order ID History");
-                 System.out.println("6. View Past 5 Order IDs");
-                 System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                 System.out.println("8. View Stores"); 
- 
-                 //**the following functionalities should only be able to be used by drivers & managers**
-                  System.out.println("9. Update Order Status");
-                 //**the following functionalities should only be able to be used by managers**
-                  System.out.println("10. Update Menu");
-                  System.out.println("11. Update User");
-                 System.out.println(".........................");
-                 System.out.println("20. Log out");
-                 switch (readChoice()){
-                    case 1: viewProfile(esql); break;
-                    case 2: updateProfile(esql); break;
-                    case 3: viewMenu(esql); break;
-                    case 4: placeOrder(esql); break;
-                    case 5: viewAllOrders(esql); break;
-                    case 6: viewRecentOrders(esql); break;
-                    case 7: viewOrderInfo(esql); break;
-                    case 8: viewStores(esql); break;
-                    case 9: updateOrderStatus(esql); break;
-                    case 10: updateMenu(esql); break;
-                    case 11: updateUser(esql); break;
- 
-                    case 20: usermenu = false; break;
-                    default : System.out.println("Unrecognized choice!"); break;
-                 }
-               }
-             }
-          }//end while
+          runSession(esql, Session.console());
        }catch(Exception e) {
           System.err.println (e.getMessage ());
        }finally{
@@ -329,27 +1034,127 @@
        }//end try
     }//end main
  
-    public static void Greeting(){
-       System.out.println(
+    /**
+     * Runs the interactive menus for one session until the user exits or
+     * the session input is closed.
+     *
+     * @param esql the shared data-access object
+     * @param session the session to read choices from and write output to
+     */
+    public static void runSession(PizzaStore esql, Session session) {
+       boolean keepon = true;
+       while(keepon) {
+          // These are sample SQL statements
+          session.out.println("MAIN MENU");
+          session.out.println("---------");
+          session.out.println("1. Create user");
+          session.out.println("2. Log in");
+          session.out.println("9. < EXIT");
+          String authorisedUser = null;
+          int choice = readChoice(session);
+          esql.metrics().enter(choice == 1 ? "createUser" : choice == 2 ? "login" : "mainMenu");
+          try {
+             switch (choice){
+                case 1: CreateUser(esql, session); break;
+                case 2: authorisedUser = LogIn(esql, session); break;
+                case 9: keepon = false; break;
+                default : session.out.println("Unrecognized choice!"); break;
+             }//end switch
+          } finally {
+             esql.metrics().exit();
+          }
+          if (authorisedUser != null) {
+            boolean usermenu = true;
+            while(usermenu) {
+              session.out.println("MAIN MENU");
+              session.out.println("---------");
+              session.out.println("1. View Profile");
+              session.out.println("2. Update Profile");
+              session.out.println("3. View Menu");
+              session.out.println("4. Place Order"); //make sure user specifies which store
+              session.out.println("5. View Full Order ID History");
+              session.out.println("6. View Past 5 Order IDs");
+              session.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+              session.out.println("8. View Stores"); 
+ 
+              //**the following functionalities should only be able to be used by drivers & managers**
+               session.out.println("9. Update Order Status");
+               session.out.println("12. Watch Open Orders");
+              //**the following functionalities should only be able to be used by managers**
+               session.out.println("10. Update Menu");
+               session.out.println("11. Update User");
+               session.out.println("13. Sales Reports");
+              session.out.println(".........................");
+              session.out.println("20. Log out");
+              int option = readChoice(session);
+              // the role may have changed since the last choice; no query
+              SessionCache.Principal principal = esql.sessions().get(session.token);
+              if (principal == null) {
+                 session.out.println("Your session has expired. Please log in again.");
+                 session.logOut();
+                 break;
+              }
+              session.currentRole = principal.role;
+              esql.metrics().enter(option >= 1 && option < USER_MENU_OPERATIONS.length
+                                   ? USER_MENU_OPERATIONS[option] : "userMenu");
+              try {
+                 switch (option){
+                    case 1: viewProfile(esql, session); break;
+                    case 2: updateProfile(esql, session); break;
+                    case 3: viewMenu(esql, session); break;
+                    case 4: placeOrder(esql, session); break;
+                    case 5: viewAllOrders(esql, session); break;
+                    case 6: viewRecentOrders(esql, session); break;
+                    case 7: viewOrderInfo(esql, session); break;
+                    case 8: viewStores(esql, session); break;
+                    case 9: updateOrderStatus(esql, session); break;
+                    case 10: updateMenu(esql, session); break;
+                    case 11: updateUser(esql, session); break;
+                    case 12: watchOpenOrders(esql, session); break;
+                    case 13: viewSalesReports(esql, session); break;
+ 
+                    case 20: esql.sessions().logOut(session.token); session.logOut(); usermenu = false; break;
+                    default : session.out.println("Unrecognized choice!"); break;
+                 }
+              } finally {
+                 esql.metrics().exit();
+              }
+            }
+          }
+       }//end while
+    }//end runSession
+ 
+    public static void Greeting(PrintStream out){
+       out.println(
           "\n\n*******************************************************\n" +
           "              User Interface      	               \n" +
           "*******************************************************\n");
     }//end Greeting
  
     /*
-     * Reads the users choice given from the keyboard
+     * Reads the users choice given from the session input
      * @int
      **/
-    public static int readChoice() {
+    public static int readChoice(Session session) {
        int input;
        // returns only if a correct value is given.
        do {
-          System.out.print("Please make your choice: ");
-          try { // read the integer, parse it and break.
-             input = Integer.parseInt(in.readLine());
+          session.out.print("Please make your choice: ");
+          String line;
+          try {
+             line = session.in.readLine();
+          }catch (IOException e) {
+             line = null;
+          }//end try
+          if (line == null) {
+             // the client went away; unwind back out of the session
+             throw new IllegalStateException("Session input closed");
+          }
+          try { // parse the integer and break.
+             input = Integer.parseInt(line.trim());
              break;
-          }catch (Exception e) {
-             System.out.println("Your input is invalid!");
+          }catch (NumberFormatException e) {
+             session.out.println("Your input is invalid!");
              continue;
           }//end try
        }while (true);
@@ -359,47 +1164,43 @@
     /*
      * Creates a new user
      **/
-    public static void CreateUser(PizzaStore esql) {
+    public static void CreateUser(PizzaStore esql, Session session) {
       try {
-         System.out.println("\n=== USER REGISTRATION ===");
-         System.out.print("Enter your login: ");
-         String login = in.readLine().trim();
-         System.out.print("Enter your password: ");
-         String password = in.readLine().trim();
-         System.out.print("Enter your phone number: ");
-         String phoneNum = in.readLine().trim();
+         session.out.println("\n=== USER REGISTRATION ===");
+         session.out.print("Enter your login: ");
+         String login = session.in.readLine().trim();
+         session.out.print("Enter your password: ");
+         String password = session.in.readLine().trim();
+         session.out.print("Enter your phone number: ");
+         String phoneNum = session.in.readLine().trim();
          
          if (login.isEmpty() || password.isEmpty() || phoneNum.isEmpty()) {
-            System.out.println("Error: All fields must be filled out.");
+            session.out.println("Error: All fields must be filled out.");
             return;
          }
 
          if (!phoneNum.matches("\\d+")) {
-            System.out.println("Error: Phone number must contain only numeric digits (0-9).");
+            session.out.println("Error: Phone number must contain only numeric digits (0-9).");
             return;
          }
 
-         String checkQuery = "SELECT login FROM Users WHERE login = '" + login.replace("'", "''") + "'";
-         List<List<String>> result = esql.executeQueryAndReturnResult(checkQuery);
+         String checkQuery = "SELECT login FROM Users WHERE login = ?";
+         List<List<String>> result = esql.executeQueryAndReturnResult(checkQuery, login);
          if (!result.isEmpty()) {
-            System.out.println("Error: This username already exists. Please choose another one.");
+            session.out.println("Error: This username already exists. Please choose another one.");
             return;
          }
          // Sets the default role for new users
          String role = "customer";
-         String query = "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('" 
-                     + login + "', '" 
-                     + password + "', '" 
-                     + role + "', NULL, '" 
-                     + phoneNum + "')";
-         esql.executeUpdate(query);
-         System.out.println("\nSuccess! User '" + login + "' has been registered as a customer.");
-         System.out.println("You can now log in with your credentials.");
+         String query = "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES (?, ?, ?, NULL, ?)";
+         esql.executeUpdate(query, login, password, role, phoneNum);
+         session.out.println("\nSuccess! User '" + login + "' has been registered as a customer.");
+         session.out.println("You can now log in with your credentials.");
          
       } catch (SQLException e) {
-         System.err.println("Database error during user creation: " + e.getMessage());
+         session.err.println("Database error during user creation: " + e.getMessage());
       } catch (Exception e) {
-         System.err.println("Error processing your request: " + e.getMessage());
+         session.err.println("Error processing your request: " + e.getMessage());
       }
     }
  
@@ -408,32 +1209,30 @@
      * Check log in credentials for an existing user
      * @return User login or null is the user does not exist
      **/
-      public static String LogIn(PizzaStore esql) {
+      public static String LogIn(PizzaStore esql, Session session) {
          try {
-            System.out.println("Login");
-            System.out.println("-----");
-            System.out.print("Enter username: ");
-            String login = in.readLine();
-            System.out.print("Enter password: ");
-            String password = in.readLine();
-
-            String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
-            int userCount = esql.executeQuery(query);
-            if (userCount == 1) {
-               // Get the user's role for permission checks later
-               String roleQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-               List<List<String>> result = esql.executeQueryAndReturnResult(roleQuery);
-               currentRole = result.get(0).get(0);
-               currentUser = login;
-               System.out.println("Login successful!");
-               System.out.println("Welcome, " + login + "! (Role: " + currentRole + ")");
+            session.out.println("Login");
+            session.out.println("-----");
+            session.out.print("Enter username: ");
+            String login = session.in.readLine();
+            session.out.print("Enter password: ");
+            String password = session.in.readLine();
+
+            // One query checks the password and fetches the role for permission checks later
+            SessionCache.Principal principal = esql.sessions().logIn(login, password);
+            if (principal != null) {
+               session.token = principal.token;
+               session.currentRole = principal.role;
+               session.currentUser = principal.login;
+               session.out.println("Login successful!");
+               session.out.println("Welcome, " + login + "! (Role: " + session.currentRole + ")");
                return login;
             } else {
-               System.out.println("Error: Invalid username or password.");
+               session.out.println("Error: Invalid username or password.");
                return null;
             }
          } catch (Exception e) {
-            System.err.println(e.getMessage());
+            session.err.println(e.getMessage());
             return null;
          }
       }//end
@@ -441,307 +1240,313 @@
     /*
      * View user profile information
      **/
-      public static void viewProfile(PizzaStore esql) {
+      public static void viewProfile(PizzaStore esql, Session session) {
          try {
-            System.out.println("User Profile");
-            System.out.println("-----------");
+            session.out.println("User Profile");
+            session.out.println("-----------");
 
-            if (currentUser == null) {
-               System.out.println("Error: No user is currently logged in.");
+            if (session.currentUser == null) {
+               session.out.println("Error: No user is currently logged in.");
                return;
             }
                
-            String query = String.format("SELECT login, role, favoriteItems, phoneNum FROM Users WHERE login = '%s'", currentUser);
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-            if (result.size() > 0) {
-               List<String> user = result.get(0);
-               System.out.println("Username: " + user.get(0));
-               System.out.println("Role: " + user.get(1));
-               System.out.println("Favorite Items: " + (user.get(2) == null || user.get(2).isEmpty() ? "None" : user.get(2)));
-               System.out.println("Phone Number: " + user.get(3));
+            // role and phone number were fetched at login
+            SessionCache.Principal user = esql.sessions().get(session.token);
+            if (user != null) {
+               List<String> favorites = esql.favorites().list(session.currentUser);
+               session.out.println("Username: " + user.login);
+               session.out.println("Role: " + user.role);
+               session.out.println("Favorite Items: " + (favorites.isEmpty() ? "None" : String.join(", ", favorites)));
+               session.out.println("Phone Number: " + user.phoneNum);
                } else {
-                  System.out.println("Error: Could not retrieve user profile information.");
+                  session.out.println("Error: Could not retrieve user profile information.");
                }
          } catch (Exception e) {
-            System.err.println("Error viewing profile: " + e.getMessage());
+            session.err.println("Error viewing profile: " + e.getMessage());
          }
       }
       
       /*
       * Update user profile information
       **/
-      public static void updateProfile(PizzaStore esql) {
+      public static void updateProfile(PizzaStore esql, Session session) {
          try {
-            if (currentUser == null) {
-               System.out.println("Error: You must be logged in to update your profile.");
+            if (session.currentUser == null) {
+               session.out.println("Error: You must be logged in to update your profile.");
                return;
             }
-            System.out.println("\nUpdate Profile");
-            System.out.println("1. Password  2. Favorite Items  3. Phone Number  4. Go back");
+            session.out.println("\nUpdate Profile");
+            session.out.println("1. Password  2. Favorite Items  3. Phone Number  4. Go back");
                
-            switch (readChoice()) {
+            switch (readChoice(session)) {
                case 1: // Password
-                  System.out.print("Current password: ");
-                  String currentPassword = in.readLine();
-                  String verifyQuery = String.format("SELECT login FROM Users WHERE login = '%s' AND password = '%s'", currentUser, currentPassword);
-                  List<List<String>> result = esql.executeQueryAndReturnResult(verifyQuery);
-                     
-                  if (result.isEmpty()) {
-                     System.out.println("Error: Incorrect password.");
-                     return;
-                  }
-                     
-                  System.out.print("New password (it has to be three characters or longer): ");
-                  String newPassword = in.readLine();
+                  session.out.print("Current password: ");
+                  String currentPassword = session.in.readLine();
+                  session.out.print("New password (it has to be three characters or longer): ");
+                  String newPassword = session.in.readLine();
                   if (newPassword.length() < 3) {
-                     System.out.println("Error: Password too short.");
+                     session.out.println("Error: Password too short.");
                      return;
                   }
                      
-                  String updateQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s'", newPassword, currentUser);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Password updated successfully.");
+                  // the current password is checked by the update itself; this session
+                  // learns the new password before the users_changed recheck can end it
+                  String updateQuery = "UPDATE Users SET password = ? WHERE login = ? AND password = ? RETURNING md5(password)";
+                  esql.beginTransaction();
+                  try {
+                     ColumnarResult updated = esql.executeQueryAndReturnColumns(updateQuery, newPassword,
+                                                                                session.currentUser, currentPassword);
+                     if (updated.rowCount() == 0) {
+                        esql.rollback();
+                        session.out.println("Error: Incorrect password.");
+                        return;
+                     }
+                     esql.sessions().passwordChanged(session.currentUser, session.token, updated.getString(0, 0));
+                     esql.commit();
+                  } catch (SQLException e) {
+                     esql.rollback();
+                     throw e;
+                  } catch (RuntimeException e) {
+                     esql.rollback();
+                     throw e;
+                  }
+                  session.out.println("Password updated successfully.");
                   break;
 
                   case 2: // Favorite items
-                     System.out.print("Enter your favorite item: ");
-                     String favoriteItem = in.readLine();
-                     // Check if the item exists
-                     String checkItemQuery = String.format("SELECT itemName FROM Items WHERE itemName = '%s'", favoriteItem);
-                     result = esql.executeQueryAndReturnResult(checkItemQuery);
-                     if (result.isEmpty()) {
-                        System.out.println("Error: Item not found in menu.");
+                     List<String> favorites = esql.favorites().list(session.currentUser);
+                     session.out.println("Your favorite items: " + (favorites.isEmpty() ? "None" : String.join(", ", favorites)));
+                     session.out.println("1. Add favorites  2. Remove favorites  3. Go back");
+                     int favoriteChoice = readChoice(session);
+                     if (favoriteChoice != 1 && favoriteChoice != 2)
                         return;
+                     session.out.print("Item names (separate several with commas): ");
+                     List<String> favoriteItems = new ArrayList<String>();
+                     for (String favoriteItem : session.in.readLine().split(",")) {
+                        if (favoriteItem.trim().isEmpty())
+                           continue;
+                        // Check if the item exists
+                        if (favoriteChoice == 1 && esql.menu().find(favoriteItem.trim()) == null) {
+                           session.out.println("Error: Item " + favoriteItem.trim() + " not found in menu.");
+                           return;
+                        }
+                        favoriteItems.add(favoriteItem.trim());
                      }
-
-                     updateQuery = String.format("UPDATE Users SET favoriteItems = '%s' WHERE login = '%s'", 
-                        favoriteItem, currentUser);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("Favorite item updated successfully.");
+                     if (favoriteChoice == 1)
+                        session.out.println(esql.favorites().add(session.currentUser, favoriteItems) + " favorite item(s) added.");
+                     else
+                        session.out.println(esql.favorites().remove(session.currentUser, favoriteItems) + " favorite item(s) removed.");
                      break;
                      
                   case 3: // Phone number
-                     System.out.print("New phone number: ");
-                     String phoneNum = in.readLine();
+                     session.out.print("New phone number: ");
+                     String phoneNum = session.in.readLine();
                      
                      if (phoneNum.length() < 10) {
-                        System.out.println("Error: Enter a valid phone number that's 10 digits or longer.");
+                        session.out.println("Error: Enter a valid phone number that's 10 digits or longer.");
                         return;
                      }
                      // Update phone number
-                     updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s'", phoneNum, currentUser);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("Phone number updated successfully.");
+                     updateQuery = "UPDATE Users SET phoneNum = ? WHERE login = ?";
+                     esql.executeUpdate(updateQuery, phoneNum, session.currentUser);
+                     esql.sessions().phoneChanged(session.currentUser, phoneNum);
+                     session.out.println("Phone number updated successfully.");
                      break;
                      
                   case 4: // Go back
                      return;
                   default:
-                     System.out.println("Not a valid choice.");
+                     session.out.println("Not a valid choice.");
                }
          } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
+            session.err.println("Error: " + e.getMessage());
          }
       }
     
     /*
      * View the restaurant menu with filtering and sorting options
      **/
-      public static void viewMenu(PizzaStore esql) {
+      public static void viewMenu(PizzaStore esql, Session session) {
          try {
-               System.out.println("Menu Viewing Options");
-               System.out.println("-------------------");
-               System.out.println("1. View full menu");
-               System.out.println("2. Filter by item type");
-               System.out.println("3. Filter by price range");
-               System.out.println("4. Sort by price (low to high)");
-               System.out.println("5. Sort by price (high to low)");
-               System.out.println("6. Go back!");
+               // the menu is served from the in-memory catalog
+               MenuCatalog menu = esql.menu();
+               session.out.println("Menu Viewing Options");
+               session.out.println("-------------------");
+               session.out.println("1. View full menu");
+               session.out.println("2. Filter by item type");
+               session.out.println("3. Filter by price range");
+               session.out.println("4. Sort by price (low to high)");
+               session.out.println("5. Sort by price (high to low)");
+               session.out.println("6. Go back!");
                
-               switch (readChoice()) {
+               switch (readChoice(session)) {
                   case 1: 
-                     String query = "SELECT itemName, typeOfItem, price, description FROM Items ORDER BY typeOfItem, itemName";
-                     System.out.println("\n===== FULL MENU =====");
-                     esql.executeQueryAndPrintResult(query);
+                     session.out.println("\n===== FULL MENU =====");
+                     MenuCatalog.print(session.out, menu.byTypeAndName(), true);
                      break;
 
                   case 2: // Filter by item type
-                     System.out.println("Available item types:");
-                     // Get all distinct item types - show them exactly as stored
-                     String typesQuery = "SELECT DISTINCT typeOfItem FROM Items ORDER BY typeOfItem";
-                     esql.executeQueryAndPrintResult(typesQuery);
-                     System.out.print("Enter type to filter by: ");
-                     String type = in.readLine();
-                     String filteredQuery = String.format(
-                        "SELECT itemName, typeOfItem, price, description FROM Items " +
-                        "WHERE TRIM(LOWER(typeOfItem)) LIKE LOWER('%%%s%%') " +
-                        "ORDER BY itemName", 
-                        type);
+                     session.out.println("Available item types:");
+                     // Show all distinct item types exactly as stored
+                     session.out.println("typeofitem\t");
+                     for (String itemType : menu.types())
+                        session.out.println(itemType + "\t");
+                     session.out.print("Enter type to filter by: ");
+                     String type = session.in.readLine();
                         
-                     System.out.println("\n===== FILTERED MENU BY TYPE =====");
-                     int count = esql.executeQueryAndPrintResult(filteredQuery);
+                     session.out.println("\n===== FILTERED MENU BY TYPE =====");
+                     int count = MenuCatalog.print(session.out, menu.ofType(type), true);
                      if (count == 0) {
-                        System.out.println("No items found with the specified type.");
+                        session.out.println("No items found with the specified type.");
                         // Additional debugging to show what types exist
-                        //System.out.println("\nDebug - All existing types:");
-                        //esql.executeQueryAndPrintResult("SELECT DISTINCT typeOfItem FROM Items");
+                        //session.out.println("\nDebug - All existing types:");
+                        //esql.executeQueryAndPrintResult(session.out, "SELECT DISTINCT typeOfItem FROM Items");
                      }
                      break;
                      
                   case 3: // Filter by price range
-                     System.out.print("Enter minimum price: ");
-                     float minPrice = Float.parseFloat(in.readLine());
-                     System.out.print("Enter maximum price: ");
-                     float maxPrice = Float.parseFloat(in.readLine());
-                     String priceQuery = String.format("SELECT itemName, typeOfItem, price, description FROM Items WHERE price >= %.2f AND price <= %.2f ORDER BY price", minPrice, maxPrice);
-                     System.out.println("\n===== FILTERED MENU BY PRICE RANGE =====");
-                     count = esql.executeQueryAndPrintResult(priceQuery);
+                     session.out.print("Enter minimum price: ");
+                     BigDecimal minPrice = new BigDecimal(session.in.readLine().trim());
+                     session.out.print("Enter maximum price: ");
+                     BigDecimal maxPrice = new BigDecimal(session.in.readLine().trim());
+                     session.out.println("\n===== FILTERED MENU BY PRICE RANGE =====");
+                     count = MenuCatalog.print(session.out, menu.inPriceRange(minPrice, maxPrice), true);
                      if (count == 0) {
-                        System.out.println("No items found in the specified price range.");
+                        session.out.println("No items found in the specified price range.");
                      }
                      break;
                      
                   case 4: // Sort by price (low to high)
-                     String ascendingQuery = "SELECT itemName, typeOfItem, price, description FROM Items ORDER BY price ASC, itemName";
-                     System.out.println("\n===== MENU SORTED BY PRICE (LOW TO HIGH) =====");
-                     esql.executeQueryAndPrintResult(ascendingQuery);
+                     session.out.println("\n===== MENU SORTED BY PRICE (LOW TO HIGH) =====");
+                     MenuCatalog.print(session.out, menu.byPriceAscending(), true);
                      break;
                      
                   case 5: // Sort by price (high to low)
-                     String descendingQuery = "SELECT itemName, typeOfItem, price, description FROM Items ORDER BY price DESC, itemName";
-                     System.out.println("\n===== MENU SORTED BY PRICE (HIGH TO LOW) =====");
-                     esql.executeQueryAndPrintResult(descendingQuery);
+                     session.out.println("\n===== MENU SORTED BY PRICE (HIGH TO LOW) =====");
+                     MenuCatalog.print(session.out, menu.byPriceDescending(), true);
                      break;
                      
                   case 6: // Go back
                      return;
                      
                   default:
-                     System.out.println("Not a valid choice!");
+                     session.out.println("Not a valid choice!");
                      break;
                }
             } catch (Exception e) {
-               System.err.println(e.getMessage());
+               session.err.println(e.getMessage());
             }
       }
       
       /*
       * Place a new food order
       **/
-      public static void placeOrder(PizzaStore esql) {
+      public static void placeOrder(PizzaStore esql, Session session) {
          try {
-            if (currentUser == null) {
-               System.out.println("Error: You must be logged in to place an order.");
+            if (session.currentUser == null) {
+               session.out.println("Error: You must be logged in to place an order.");
                return;
             }
 
-            System.out.println("Place New Order");
-            System.out.println("--------------");
-            System.out.println("Available stores:");
-            String storeQuery = "SELECT storeID, address, city, state, isOpen FROM Store";
-            esql.executeQueryAndPrintResult(storeQuery);
-            System.out.print("Enter the store ID you want to order from: ");
-            int storeID = Integer.parseInt(in.readLine());
+            session.out.println("Place New Order");
+            session.out.println("--------------");
+            int storeID = 0;
+            while (storeID == 0) {
+               session.out.print("Enter the store ID you want to order from (0 to browse stores): ");
+               storeID = Integer.parseInt(session.in.readLine().trim());
+               if (storeID == 0)
+                  browseStores(esql, session);
+            }
             
             // Verify if the store exists
-            String storeCheckQuery = String.format("SELECT storeID, isOpen FROM Store WHERE storeID = %d", storeID);
-            List<List<String>> storeResult = esql.executeQueryAndReturnResult(storeCheckQuery);
-            if (storeResult.isEmpty()) {
-               System.out.println("Error: Invalid store selection.");
+            StoreDirectory.Store store = esql.stores().find(storeID);
+            if (store == null) {
+               session.out.println("Error: Invalid store selection.");
                return;
             }
             
-            String isOpenStatus = storeResult.get(0).get(1);
-            System.out.println("Store open status: " + isOpenStatus);
-            if (isOpenStatus.equalsIgnoreCase("false") || isOpenStatus.equalsIgnoreCase("no") || isOpenStatus.equalsIgnoreCase("closed") || isOpenStatus.equals("0")) {
-               System.out.println("WARNING: This store appears to be closed. Do you still want to place an order? Type yes or no.");
-               String userChoice = in.readLine();
+            session.out.println("Store open status: " + store.isOpen);
+            if (!store.open()) {
+               session.out.println("WARNING: This store appears to be closed. Do you still want to place an order? Type yes or no.");
+               String userChoice = session.in.readLine();
                if (!userChoice.equalsIgnoreCase("yes")) {
-                  System.out.println("Order cancelled.");
+                  session.out.println("Order cancelled.");
                   return;
                }
             }
             
-            int orderID = 0; // Default if no orders exist
-            String orderIDQuery = "SELECT MAX(orderID) FROM FoodOrder";
-            List<List<String>> result = esql.executeQueryAndReturnResult(orderIDQuery);
-            
-            if (result.size() > 0 && result.get(0).get(0) != null) {
-               orderID = Integer.parseInt(result.get(0).get(0)) + 1;
-            }
-            
             float totalPrice = 0.0f;
             ArrayList<String> orderedItems = new ArrayList<>();
             ArrayList<Integer> itemQuantities = new ArrayList<>();
             boolean addingItems = true;
             while (addingItems) {
                // Display menu
-               System.out.println("\nMenu:");
-               String menuQuery = "SELECT itemName, price FROM Items ORDER BY itemName";
-               esql.executeQueryAndPrintResult(menuQuery);
+               session.out.println("\nMenu:");
+               MenuCatalog.print(session.out, esql.menu().byName(), false);
                
-               System.out.print("Enter item name (or type 'done' to finish): ");
-               String itemName = in.readLine();
+               session.out.print("Enter item name (or type 'done' to finish): ");
+               String itemName = session.in.readLine();
                if (itemName.equalsIgnoreCase("done")) {
                   addingItems = false;
                   continue;
                }
                
-               String itemCheckQuery = String.format("SELECT price FROM Items WHERE itemName = '%s'", itemName);
-               List<List<String>> itemCheck = esql.executeQueryAndReturnResult(itemCheckQuery);
-               if (itemCheck.isEmpty()) {
-                  System.out.println("Error: Item not found on menu.");
+               MenuCatalog.MenuItem menuItem = esql.menu().find(itemName);
+               if (menuItem == null) {
+                  session.out.println("Error: Item not found on menu.");
                   continue;
                }
                
-               System.out.print("Enter quantity: ");
-               int quantity = Integer.parseInt(in.readLine());
+               session.out.print("Enter quantity: ");
+               int quantity = Integer.parseInt(session.in.readLine());
                if (quantity <= 0) {
-                  System.out.println("Error: Quantity must be greater than zero.");
+                  session.out.println("Error: Quantity must be greater than zero.");
                   continue;
                }
                
                orderedItems.add(itemName);
                itemQuantities.add(quantity);
-               float itemPrice = Float.parseFloat(itemCheck.get(0).get(0));
+               float itemPrice = menuItem.price.floatValue();
                totalPrice += (itemPrice * quantity);
-               System.out.println("Item added. Current total: $" + String.format("%.2f", totalPrice));
-               System.out.print("Add another item? Type yes or no: ");
-               String anotherUserItem = in.readLine();
+               session.out.println("Item added. Current total: $" + String.format("%.2f", totalPrice));
+               session.out.print("Add another item? Type yes or no: ");
+               String anotherUserItem = session.in.readLine();
                if (!anotherUserItem.equalsIgnoreCase("yes")) {
                   addingItems = false;
                }
             }
             
             if (orderedItems.isEmpty()) {
-               System.out.println("Order cancelled - no items selected.");
+               session.out.println("Order cancelled - no items selected.");
                return;
             }
             
-            java.util.Date date = new java.util.Date();
-            Timestamp timestamp = new Timestamp(date.getTime());
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String formattedTimestamp = sdf.format(timestamp);
-            String orderQuery = String.format(
-               "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
-               "VALUES (%d, '%s', %d, %.2f, '%s', 'Placed')",
-               orderID, currentUser, storeID, totalPrice, formattedTimestamp);
-            esql.executeUpdate(orderQuery);
-            
-            // Add items to order
-            for (int i = 0; i < orderedItems.size(); i++) {
-               String itemOrderQuery = String.format(
-                  "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d)",
-                  orderID, orderedItems.get(i), itemQuantities.get(i));
-               esql.executeUpdate(itemOrderQuery);
+            int orderID;
+            if (esql.ingest() != null) {
+               // the order is written with others in one commit; wait for it
+               OrderIngestQueue.PendingOrder pending =
+                  esql.ingest().submit(session.currentUser, storeID, orderedItems, itemQuantities);
+               orderID = pending.orderID;
+               try {
+                  totalPrice = pending.written.get(OrderIngestQueue.WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+               } catch (ExecutionException e) {
+                  throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+               } catch (TimeoutException e) {
+                  // still queued or being written; it may yet be placed
+                  session.err.println("Order " + orderID + " is not confirmed yet; check your order history.");
+                  return;
+               }
+            } else {
+               orderID = esql.nextOrderId();
+               totalPrice = esql.submitOrder(orderID, session.currentUser, storeID, orderedItems, itemQuantities);
             }
-            System.out.println("\nOrder placed successfully!");
-            System.out.println("Order ID: " + orderID);
-            System.out.println("Total: $" + String.format("%.2f", totalPrice));
-            System.out.println("Status: Placed");
+            session.out.println("\nOrder placed successfully!");
+            session.out.println("Order ID: " + orderID);
+            session.out.println("Total: $" + String.format("%.2f", totalPrice));
+            session.out.println("Status: Placed");
             
          } catch (Exception e) {
-            System.err.println("Error placing order: " + e.getMessage());
+            session.err.println("Error placing order: " + e.getMessage());
             // Print the complete stack trace for debugging
             e.printStackTrace();
          }
@@ -750,313 +1555,464 @@
       /*
       * View all order history for the logged-in user
       **/
-      public static void viewAllOrders(PizzaStore esql) {
+      public static void viewAllOrders(PizzaStore esql, Session session) {
          try {
-            System.out.println("Order History");
-            System.out.println("------------");
-            String query;
-
-            if (currentRole.trim().equalsIgnoreCase("Manager") || currentRole.trim().equalsIgnoreCase("Driver")) {
-               System.out.println("1. View all orders in the system");
-               System.out.println("2. View only my orders");
-               System.out.print("Enter choice: ");
-
-               int choice = Integer.parseInt(in.readLine());
-               if (choice == 1) {
-                  query = "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder ORDER BY orderTimestamp DESC";
-                  System.out.println("\n===== ALL ORDERS IN SYSTEM =====");
-               } else {
-                  query = String.format("SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC", currentUser);
-                  System.out.println("\n===== YOUR ORDERS =====");
-               }
-               } else {
-                  // Customers can only see their own orders
-                  query = String.format("SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC", currentUser);
-                  System.out.println("\n===== YOUR ORDERS =====");
-               }
+            session.out.println("Order History");
+            session.out.println("------------");
+            boolean allOrders = false;
+
+            if (session.currentRole.trim().equalsIgnoreCase("Manager") || session.currentRole.trim().equalsIgnoreCase("Driver")) {
+               session.out.println("1. View all orders in the system");
+               session.out.println("2. View only my orders");
+               session.out.print("Enter choice: ");
+
+               int choice = Integer.parseInt(session.in.readLine());
+               allOrders = choice == 1;
+            }
+            // Customers can only see their own orders
+            session.out.println(allOrders ? "\n===== ALL ORDERS IN SYSTEM =====" : "\n===== YOUR ORDERS =====");
                
-               int result = esql.executeQueryAndPrintResult(query);
-               if (result == 0) {
-                  System.out.println("No orders found.");
-               } else {
-                  System.out.println("\nTotal orders: " + result);
-               }
-            } 
-            catch (Exception e) {
-               System.err.println(e.getMessage());
+            int result = browseOrders(esql, session, allOrders);
+            if (result == 0) {
+               session.out.println("No orders found.");
+            } else {
+               session.out.println("\nOrders shown: " + result);
+            }
+         } 
+         catch (Exception e) {
+            session.err.println(e.getMessage());
+         }
+      }
+
+      /*
+       * Lists orders newest first, a page at a time.  Each page continues
+       * after the (placedAt, orderID) of the last row shown, so every page
+       * costs the same however deep into the history it is, and the rest of
+       * the history can be streamed through a cursor on request.  placedAt
+       * is FoodOrder's partition key, so a page reads the monthly
+       * partitions newest first and stops once it is full.
+       * @return the number of orders shown
+       **/
+      public static int browseOrders(PizzaStore esql, Session session, boolean allOrders) throws Exception {
+         String columns = allOrders
+            ? "orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, placedAt"
+            : "orderID, storeID, totalPrice, orderTimestamp, orderStatus, placedAt";
+         int placedColumn = allOrders ? 6 : 5;
+         String order = " ORDER BY placedAt DESC, orderID DESC";
+         String firstPage = "SELECT " + columns + " FROM FoodOrder"
+            + (allOrders ? "" : " WHERE login = ?") + order + " LIMIT " + ORDER_PAGE_SIZE;
+         String remaining = "SELECT " + columns + " FROM FoodOrder WHERE "
+            + (allOrders ? "" : "login = ? AND ") + "(placedAt, orderID) < (CAST(? AS timestamp), ?)" + order;
+         String nextPage = remaining + " LIMIT " + ORDER_PAGE_SIZE;
+
+         ResultPrinter printer = null;
+         int shown;
+         // where the page shown ends: (placedAt, orderID)
+         String lastPlaced = null;
+         int lastOrderID = 0;
+         if (allOrders || ORDER_PAGE_SIZE > OrderHistoryCache.DEPTH) {
+            printer = new ResultPrinter(session.out);
+            shown = esql.executeQueryAndPrintResult(printer, firstPage, allOrders ? new Object[0] : new Object[] { session.currentUser });
+            printer.flush();
+         } else {
+            // a customer's first page comes from the order history cache
+            List<OrderHistoryCache.OrderSummary> recent = esql.history().recent(session.currentUser, ORDER_PAGE_SIZE);
+            shown = OrderHistoryCache.print(session.out, recent);
+            if (shown > 0) {
+               lastPlaced = recent.get(shown - 1).placedAt.toString();
+               lastOrderID = recent.get(shown - 1).orderID;
+            }
+         }
+         int total = shown;
+         while (shown == ORDER_PAGE_SIZE) {
+            session.out.print("Press Enter for the next page, type a to show all remaining, or q to stop: ");
+            String next = session.in.readLine();
+            if (next == null || next.trim().equalsIgnoreCase("q"))
+               break;
+            if (printer != null) {
+               List<String> last = printer.lastRow();
+               lastPlaced = last.get(placedColumn);
+               lastOrderID = Integer.parseInt(last.get(0));
+            }
+            Object[] params = allOrders
+               ? new Object[] { lastPlaced, lastOrderID }
+               : new Object[] { session.currentUser, lastPlaced, lastOrderID };
+            if (next.trim().equalsIgnoreCase("a")) {
+               total += esql.executeQueryAndStreamResult(session.out, ORDER_FETCH_SIZE, remaining, params);
+               break;
             }
+            printer = new ResultPrinter(session.out);
+            shown = esql.executeQueryAndPrintResult(printer, nextPage, params);
+            printer.flush();
+            total += shown;
+         }
+         return total;
       }
 
-       public static void viewRecentOrders(PizzaStore esql) {
+       public static void viewRecentOrders(PizzaStore esql, Session session) {
          try {
-            if (currentUser == null) {
-               System.out.print("Error: You must be logged in to view recent orders.");
+            if (session.currentUser == null) {
+               session.out.print("Error: You must be logged in to view recent orders.");
                return;
             }
-            System.out.println("\n===== Your 5 Most recent orders =====");
-            String query = String.format(
-               "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus " +
-               "FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5",
-               currentUser
-            );
-
-            int resultCount = esql.executeQueryAndPrintResult(query);
+            session.out.println("\n===== Your 5 Most recent orders =====");
+            int resultCount = OrderHistoryCache.print(session.out, esql.history().recent(session.currentUser, 5));
             if (resultCount == 0) {
-               System.out.println("No recent orders found.");
+               session.out.println("No recent orders found.");
             }
          }
          catch (Exception e) {
-               System.err.println("Error retrieving recent orders: " + e.getMessage());
+               session.err.println("Error retrieving recent orders: " + e.getMessage());
          }
        }
 
-public static void viewOrderInfo(PizzaStore esql) {
+public static void viewOrderInfo(PizzaStore esql, Session session) {
     try {
-        if (currentUser == null) {
-            System.out.println("Error: You must be logged in to view order information.");
+        if (session.currentUser == null) {
+            session.out.println("Error: You must be logged in to view order information.");
             return;
         }
         
-        //System.out.println("Debug - Current user: " + currentUser);
-        //System.out.println("Debug - Current role: '" + currentRole + "'");
-        
-        System.out.print("Enter the Order ID to look up: ");
-        int orderID = Integer.parseInt(in.readLine());
-        
-        // First check if the order exists at all
-        String checkOrderQuery = String.format(
-            "SELECT COUNT(*) FROM FoodOrder WHERE orderID = %d", orderID);
-        int orderCount = Integer.parseInt(esql.executeQueryAndReturnResult(checkOrderQuery).get(0).get(0));
-        
-        if (orderCount == 0) {
-            System.out.println("Error: Order ID " + orderID + " does not exist in the database.");
+        // several IDs make a manifest, read in the same single round trip
+        session.out.print("Enter the Order ID(s) to look up, separated by commas: ");
+        List<Integer> orderIDs = new ArrayList<Integer>();
+        for (String id : session.in.readLine().split(","))
+            if (!id.trim().isEmpty())
+                orderIDs.add(Integer.parseInt(id.trim()));
+        if (orderIDs.isEmpty()) {
+            session.out.println("No order IDs given.");
             return;
         }
         
-        String query;
-        // Trim the role to remove any possible whitespace
-        String role = currentRole.trim();
-        
-        if (role.equalsIgnoreCase("manager") || role.equalsIgnoreCase("driver")) {
-            // Managers & Drivers can see all orders
-            query = String.format(
-                "SELECT orderTimestamp, totalPrice, orderStatus FROM FoodOrder WHERE orderID = %d", 
-                orderID);
-            //System.out.println("Debug - Using manager/driver query");
-        } else {
-            // Customers can only see their own orders
-            query = String.format(
-                "SELECT orderTimestamp, totalPrice, orderStatus FROM FoodOrder WHERE orderID = %d AND login = '%s'", 
-                orderID, currentUser);
-            //System.out.println("Debug - Using customer query");
-        }
-        
-        //System.out.println("Debug - Query: " + query);
-        
-        List<List<String>> orderDetails = esql.executeQueryAndReturnResult(query);
-        
-        if (orderDetails.isEmpty()) {
-            if (role.equalsIgnoreCase("customer")) {
-                System.out.println("Error: You do not have permission to view this order.");
-            } else {
-                System.out.println("Error: Could not retrieve order details. Please contact technical support.");
-            }
-            return;
-        }
-        
-        // Display Order Info
-        List<String> order = orderDetails.get(0);
-        System.out.println("\n===== Order Details =====");
-        System.out.println("Timestamp: " + order.get(0));
-        System.out.println("Total Price: $" + order.get(1));
-        System.out.println("Status: " + order.get(2).trim()); // Trim to remove padding on char fields
-        
-        // Retrieve order items
-        String itemsQuery = String.format(
-            "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = %d", 
-            orderID);
-        
-        System.out.println("\n===== Order Items =====");
-        int itemCount = esql.executeQueryAndPrintResult(itemsQuery);
-        
-        if (itemCount == 0) {
-            System.out.println("No items found for this order.");
-        }
+        // header, store and priced items in one query; the access check is part of it
+        for (OrderDetails.Detail detail : esql.orderDetails().find(session.currentUser, orderIDs))
+            detail.print(session.out);
     } catch (NumberFormatException e) {
-        System.err.println("Error: Invalid order ID format. Please enter a numeric value.");
+        session.err.println("Error: Invalid order ID format. Please enter a numeric value.");
     } catch (Exception e) {
-        System.err.println("Error retrieving order information: " + e.getMessage());
-        e.printStackTrace(); // Print full stack trace for debugging
+        session.err.println("Error retrieving order information: " + e.getMessage());
     }
 }
 
    
 
        // Shows all store information
-      public static void viewStores(PizzaStore esql) {
+      public static void viewStores(PizzaStore esql, Session session) {
          try {
-            System.out.println("\n===== STORES =====");
-            String query = "SELECT * FROM Store ORDER BY storeID";
-            int count = esql.executeQueryAndPrintResult(query);
-            
-            if (count == 0) System.out.println("No stores found.");
+            browseStores(esql, session);
          } catch (Exception e) {
-            System.err.println(e.getMessage());
+            session.err.println(e.getMessage());
          }
       }
 
-      // Updates an order's status (drivers & managers only)
-      public static void updateOrderStatus(PizzaStore esql) {
+      // Lists stores a page at a time, optionally filtered by location and open status
+      public static void browseStores(PizzaStore esql, Session session) throws Exception {
+         session.out.print("State (blank for all): ");
+         String state = session.in.readLine();
+         String city = null;
+         if (!state.trim().isEmpty()) {
+            session.out.print("City (blank for all): ");
+            city = session.in.readLine();
+         }
+         session.out.print("Only open stores? Type yes or no: ");
+         boolean openOnly = session.in.readLine().trim().equalsIgnoreCase("yes");
+
+         List<StoreDirectory.Store> stores = esql.stores().list(state, city, openOnly);
+         session.out.println("\n===== STORES =====");
+         if (stores.isEmpty()) {
+            session.out.println("No stores found.");
+            return;
+         }
+         int pages = (stores.size() + STORE_PAGE_SIZE - 1) / STORE_PAGE_SIZE;
+         for (int page = 0; page < pages; ++page) {
+            StoreDirectory.print(session.out, StoreDirectory.page(stores, page, STORE_PAGE_SIZE));
+            session.out.println("Page " + (page + 1) + " of " + pages + " (" + stores.size() + " stores)");
+            if (page + 1 < pages) {
+               session.out.print("Press Enter for the next page or type q to stop: ");
+               String next = session.in.readLine();
+               if (next == null || next.trim().equalsIgnoreCase("q"))
+                  break;
+            }
+         }
+      }
+
+      // Moves orders one step along the workflow, either listed by ID or every
+      // order of a store in one status (drivers & managers only)
+      public static void updateOrderStatus(PizzaStore esql, Session session) {
     try {
-        if (currentUser == null) {
-            System.out.println("You must be logged in to update order status.");
+        if (session.currentUser == null) {
+            session.out.println("You must be logged in to update order status.");
             return;
         }
 
         // Fixed permission check - only allows managers and drivers
-        if (currentRole.trim().equalsIgnoreCase("customer")) {
-            System.out.println("Permission denied. Only managers and drivers can update order status.");
+        if (session.currentRole.trim().equalsIgnoreCase("customer")) {
+            session.out.println("Permission denied. Only managers and drivers can update order status.");
             return;
         }
 
-        System.out.println("\nCurrent orders:");
-        esql.executeQueryAndPrintResult("SELECT orderID, login, orderStatus FROM FoodOrder ORDER BY orderTimestamp DESC LIMIT 10");
+        // open orders come from the in-memory queue, oldest first
+        List<OpenOrderQueue.OpenOrder> open = esql.openOrders().list(0);
+        session.out.println("\nOpen orders (" + open.size() + "):");
+        OpenOrderQueue.print(session.out, open.subList(0, Math.min(OPEN_ORDERS_SHOWN, open.size())));
 
-        System.out.print("Enter order ID: ");
-        int orderID = Integer.parseInt(in.readLine());
+        session.out.print("Enter order ID(s) separated by commas, or S for every order of a store in one status: ");
+        String target = session.in.readLine().trim();
 
-        System.out.println("Status options: 1-Placed, 2-Preparing, 3-Ready, 4-Delivering, 5-Delivered");
-        System.out.print("New status (1-5): ");
-        int choice = Integer.parseInt(in.readLine());
+        List<String> statuses = OrderTransitions.STATUSES;
+        OrderTransitions.Result result;
+        if (target.equalsIgnoreCase("s")) {
+            session.out.print("Enter the store ID (0 for all stores): ");
+            int storeID = Integer.parseInt(session.in.readLine().trim());
+            if (storeID != 0 && esql.stores().find(storeID) == null) {
+                session.out.println("Error: Invalid store selection.");
+                return;
+            }
+            session.out.println("Status options: 1-Placed, 2-Preparing, 3-Ready, 4-Delivering");
+            session.out.print("Move orders that are (1-4): ");
+            int choice = Integer.parseInt(session.in.readLine().trim());
+            if (choice < 1 || choice > 4) {
+                session.out.println("Invalid status.");
+                return;
+            }
+            String from = statuses.get(choice - 1);
+            result = esql.transitions().moveStore(storeID, from, OrderTransitions.next(from));
+        } else {
+            List<Integer> orderIDs = new ArrayList<Integer>();
+            for (String id : target.split(","))
+                if (!id.trim().isEmpty())
+                    orderIDs.add(Integer.parseInt(id.trim()));
+            if (orderIDs.isEmpty()) {
+                session.out.println("No order IDs given.");
+                return;
+            }
+            session.out.println("Status options: 1-Placed, 2-Preparing, 3-Ready, 4-Delivering, 5-Delivered");
+            session.out.print("New status (1-5): ");
+            int choice = Integer.parseInt(session.in.readLine().trim());
+            if (choice < 1 || choice > 5) {
+                session.out.println("Invalid status.");
+                return;
+            }
+            if (choice == 1) {
+                session.out.println("Orders cannot move back to Placed.");
+                return;
+            }
+            result = esql.transitions().move(orderIDs, statuses.get(choice - 1));
+        }
+        result.print(session.out);
+    } catch (Exception e) {
+        session.err.println("Error updating order status: " + e.getMessage());
+    }
+}
 
-        String[] statuses = {"Placed", "Preparing", "Ready", "Delivering", "Delivered"};
+      // Shows a store's open orders and reprints them whenever they change (drivers & managers only)
+      public static void watchOpenOrders(PizzaStore esql, Session session) {
+         try {
+            if (session.currentUser == null || session.currentRole.trim().equalsIgnoreCase("customer")) {
+               session.out.println("Permission denied. Only managers and drivers can watch open orders.");
+               return;
+            }
+            session.out.print("Enter the store ID to watch (0 for all stores): ");
+            int storeID = Integer.parseInt(session.in.readLine().trim());
+            if (storeID != 0 && esql.stores().find(storeID) == null) {
+               session.out.println("Error: Invalid store selection.");
+               return;
+            }
 
-        if (choice < 1 || choice > 5) {
-            System.out.println("Invalid status.");
-            return;
-        }
+            OpenOrderQueue queue = esql.openOrders();
+            long version = queue.version();
+            List<OpenOrderQueue.OpenOrder> open = queue.list(storeID);
+            while (true) {
+               session.out.println("\n===== OPEN ORDERS (" + open.size() + ") =====");
+               if (OpenOrderQueue.print(session.out, open) == 0)
+                  session.out.println("No open orders.");
+               session.out.println("Watching for changes; press Enter to stop.");
+               session.out.flush();
+               // wait for a change pushed by the queue or for the user to press Enter
+               boolean changed = false;
+               while (!changed && !session.in.ready())
+                  changed = queue.awaitChange(version, WATCH_INTERVAL_MS);
+               if (!changed) {
+                  session.in.readLine();
+                  return;
+               }
+               version = queue.version();
+               open = queue.list(storeID);
+            }
+         } catch (Exception e) {
+            session.err.println(e.getMessage());
+         }
+      }
 
-        String query = String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d", 
-                                    statuses[choice-1], orderID);
+      // Shows revenue and best sellers from the sales rollups (managers only)
+      public static void viewSalesReports(PizzaStore esql, Session session) {
+         try {
+            if (session.currentUser == null || !session.currentRole.trim().equalsIgnoreCase("manager")) {
+               session.out.println("Permission denied.");
+               return;
+            }
 
-        // Changed this line - don't try to capture a return value
-        esql.executeUpdate(query);
+            session.out.println("1. Revenue by store");
+            session.out.println("2. Top-selling items");
+            session.out.println("3. Daily revenue");
+            session.out.println("4. Hourly revenue, last 24 hours");
+            int choice = readChoice(session);
+            if (choice < 1 || choice > 4) {
+               session.out.println("Invalid choice.");
+               return;
+            }
 
-        // Simply report success since we can't check the number of rows affected
-        System.out.println("Status updated successfully.");
-    } catch (Exception e) {
-        System.err.println("Error updating order status: " + e.getMessage());
-    }
-}
+            int days = 1;
+            if (choice != 4) {
+               session.out.print("Number of days to report: ");
+               days = Integer.parseInt(session.in.readLine().trim());
+            }
+            int storeID = 0;
+            if (choice != 1) {
+               session.out.print("Store ID (0 for all stores): ");
+               storeID = Integer.parseInt(session.in.readLine().trim());
+               if (storeID != 0 && esql.stores().find(storeID) == null) {
+                  session.out.println("Error: Invalid store selection.");
+                  return;
+               }
+            }
+
+            int rows;
+            switch (choice) {
+               case 1: rows = esql.reports().revenueByStore(session.out, days); break;
+               case 2: rows = esql.reports().topItems(session.out, days, storeID); break;
+               case 3: rows = esql.reports().dailyRevenue(session.out, days, storeID); break;
+               default: rows = esql.reports().hourlyRevenue(session.out, storeID); break;
+            }
+            if (rows == 0)
+               session.out.println("No sales in that period.");
+         } catch (Exception e) {
+            session.err.println("Error running report: " + e.getMessage());
+         }
+      }
 
       // Updates menu items (managers only)
-      public static void updateMenu(PizzaStore esql) {
+      public static void updateMenu(PizzaStore esql, Session session) {
          try {
-            if (currentUser == null || !currentRole.trim().equalsIgnoreCase("manager")) {
-               System.out.println("Permission denied.");
+            if (session.currentUser == null || !session.currentRole.trim().equalsIgnoreCase("manager")) {
+               session.out.println("Permission denied.");
                return;
             }
             
-            System.out.println("1. Add item");
-            System.out.println("2. Update item");
-            System.out.println("3. Delete item");
+            session.out.println("1. Add item");
+            session.out.println("2. Update item");
+            session.out.println("3. Delete item");
             
-            switch(readChoice()) {
+            switch(readChoice(session)) {
                case 1: // Add
-                  System.out.print("Name: ");
-                  String name = in.readLine();
-                  System.out.print("Type: ");
-                  String type = in.readLine();
-                  System.out.print("Ingredients: ");
-                  String ingredients = in.readLine();
-                  System.out.print("Price: ");
-                  float price = Float.parseFloat(in.readLine());
-                  System.out.print("Description: ");
-                  String desc = in.readLine();
+                  session.out.print("Name: ");
+                  String name = session.in.readLine();
+                  session.out.print("Type: ");
+                  String type = session.in.readLine();
+                  session.out.print("Ingredients: ");
+                  String ingredients = session.in.readLine();
+                  session.out.print("Price: ");
+                  float price = Float.parseFloat(session.in.readLine());
+                  session.out.print("Description: ");
+                  String desc = session.in.readLine();
                   
-                  String query = String.format("INSERT INTO Items VALUES ('%s', '%s', '%s', %f, '%s')", 
-                                          name, ingredients, type, price, desc);
-                  esql.executeUpdate(query);
-                  System.out.println("Item added.");
+                  String query = "INSERT INTO Items VALUES (?, ?, ?, ?, ?)";
+                  esql.executeUpdate(query, name, ingredients, type, price, desc);
+                  esql.menu().invalidate();
+                  session.out.println("Item added.");
                   break;
                   
                case 2: // Update
-                  System.out.println("Current menu:");
-                  esql.executeQueryAndPrintResult("SELECT itemName, price FROM Items");
+                  session.out.println("Current menu:");
+                  MenuCatalog.print(session.out, esql.menu().byName(), false);
                   
-                  System.out.print("Item to update: ");
-                  String item = in.readLine();
-                  System.out.print("New price: ");
-                  float newPrice = Float.parseFloat(in.readLine());
+                  session.out.print("Item to update: ");
+                  String item = session.in.readLine();
+                  session.out.print("New price: ");
+                  float newPrice = Float.parseFloat(session.in.readLine());
                   
-                  esql.executeUpdate(String.format("UPDATE Items SET price = %f WHERE itemName = '%s'", newPrice, item));
-                  System.out.println("Price updated.");
+                  if (esql.executeUpdate("UPDATE Items SET price = ? WHERE itemName = ?", newPrice, item) == 0) {
+                     session.out.println("Error: Item not found in menu.");
+                     break;
+                  }
+                  esql.menu().invalidate();
+                  session.out.println("Price updated.");
+                  long fans = esql.favorites().countFans(item);
+                  if (fans > 0)
+                     session.out.println(fans + " user(s) have " + item + " as a favorite.");
                   break;
                   
                case 3: // Delete
-                  System.out.println("Current menu:");
-                  esql.executeQueryAndPrintResult("SELECT itemName FROM Items");
+                  session.out.println("Current menu:");
+                  MenuCatalog.print(session.out, esql.menu().byName(), false);
                   
-                  System.out.print("Item to delete: ");
-                  String delItem = in.readLine();
+                  session.out.print("Item to delete: ");
+                  String delItem = session.in.readLine();
                   
-                  System.out.print("Confirm delete Type yes or no: ");
-                  if (in.readLine().equalsIgnoreCase("yes")) {
-                     esql.executeUpdate(String.format("DELETE FROM Items WHERE itemName = '%s'", delItem));
-                     System.out.println("Item deleted.");
+                  session.out.print("Confirm delete Type yes or no: ");
+                  if (session.in.readLine().equalsIgnoreCase("yes")) {
+                     esql.executeUpdate("DELETE FROM Items WHERE itemName = ?", delItem);
+                     esql.menu().invalidate();
+                     session.out.println("Item deleted.");
                   }
                   break;
             }
          } 
          catch (Exception e) {
-            System.err.println(e.getMessage());
+            session.err.println(e.getMessage());
          }
       }
 
       // Updates user info (managers only)
-      public static void updateUser(PizzaStore esql) {
+      public static void updateUser(PizzaStore esql, Session session) {
          try {
-            if (currentUser == null || !currentRole.trim().equalsIgnoreCase("manager")) {
-               System.out.println("Permission denied.");
+            if (session.currentUser == null || !session.currentRole.trim().equalsIgnoreCase("manager")) {
+               session.out.println("Permission denied.");
                return;
             }
             
-            System.out.println("Users:");
-            esql.executeQueryAndPrintResult("SELECT login, role FROM Users");
+            session.out.println("Users:");
+            esql.executeQueryAndPrintResult(session.out, "SELECT login, role FROM Users");
             
-            System.out.print("Username to modify: ");
-            String user = in.readLine();
+            session.out.print("Username to modify: ");
+            String user = session.in.readLine();
             
-            System.out.println("1. Change role");
-            System.out.println("2. Reset password");
+            session.out.println("1. Change role");
+            session.out.println("2. Reset password");
             
-            switch(readChoice()) {
+            switch(readChoice(session)) {
                case 1:
-                  System.out.print("New role (customer/driver/manager): ");
-                  String role = in.readLine();
+                  session.out.print("New role (customer/driver/manager): ");
+                  String role = session.in.readLine();
                   
                   if (role.equalsIgnoreCase("customer") || 
                      role.equalsIgnoreCase("driver") || 
                      role.equalsIgnoreCase("manager")) {
                      
-                     esql.executeUpdate(String.format("UPDATE Users SET role = '%s' WHERE login = '%s'", role, user));
-                     System.out.println("Role updated.");
+                     if (esql.executeUpdate("UPDATE Users SET role = ? WHERE login = ?", role, user) == 0) {
+                        session.out.println("Error: User not found.");
+                        break;
+                     }
+                     esql.sessions().roleChanged(user, role);
+                     session.out.println("Role updated.");
                   } else {
-                     System.out.println("Invalid role.");
+                     session.out.println("Invalid role.");
                   }
                   break;
                   
                case 2:
-                  System.out.print("New password: ");
-                  String pass = in.readLine();
+                  session.out.print("New password: ");
+                  String pass = session.in.readLine();
                   
-                  esql.executeUpdate(String.format("UPDATE Users SET password = '%s' WHERE login = '%s'", pass, user));
-                  System.out.println("Password reset.");
+                  esql.executeUpdate("UPDATE Users SET password = ? WHERE login = ?", pass, user);
+                  // the user's open sessions end with the old password
+                  esql.sessions().revoke(user);
+                  session.out.println("Password reset.");
                   break;
             }
          } 
          catch (Exception e) {
-            System.err.println(e.getMessage());
+            session.err.println(e.getMessage());
          }
       }
    }
\ No newline at end of file
@@ -0,0 +1,145 @@
+ import java.io.IOException;
+ import java.lang.reflect.Method;
+ import java.net.InetAddress;
+ import java.net.ServerSocket;
+ import java.net.Socket;
+ import java.util.concurrent.ExecutorService;
+ import java.util.concurrent.Executors;
+
+ /**
+  * This class runs PizzaStore as a multi-session server. Every client that
+  * connects to the listening socket gets its own Session and runs the same
+  * menus as the console program, speaking one line of input per prompt.
+  * All sessions share one PizzaStore and therefore one connection pool.
+  *
+  */
+ public class PizzaStoreServer {
+
+    // sessions idle longer than this are disconnected, 0 disables
+    private static final int SESSION_IDLE_TIMEOUT_MS =
+       Integer.getInteger("pizzastore.server.idleTimeoutMs", 30 * 60 * 1000);
+
+    private final PizzaStore _esql;
+    private final ServerSocket _serverSocket;
+    private final ExecutorService _sessions;
+    private volatile boolean _running = true;
+
+    /**
+     * Creates a server listening on the loopback interface
+     *
+     * @param esql the shared data-access object
+     * @param listenPort the local TCP port clients connect to
+     * @throws java.io.IOException when the port cannot be bound
+     */
+    public PizzaStoreServer(PizzaStore esql, int listenPort) throws IOException {
+       this._esql = esql;
+       this._serverSocket = new ServerSocket(listenPort, 512, InetAddress.getLoopbackAddress());
+       this._sessions = newSessionExecutor();
+    }//end PizzaStoreServer
+
+    /**
+     * Accepts clients until stop() is called, running each session on its
+     * own thread.
+     */
+    public void serve() {
+       while (this._running) {
+          final Socket socket;
+          try {
+             socket = this._serverSocket.accept();
+          } catch (IOException e) {
+             if (this._running)
+                System.err.println("Error accepting client: " + e.getMessage());
+             continue;
+          }
+          this._sessions.execute(new Runnable() {
+             public void run() { runClient(socket); }
+          });
+       }//end while
+    }//end serve
+
+    /**
+     * Stops accepting clients and interrupts running sessions.
+     */
+    public void stop() {
+       this._running = false;
+       try {
+          this._serverSocket.close();
+       } catch (IOException e) {
+          // ignored.
+       }
+       this._sessions.shutdownNow();
+    }//end stop
+
+    private void runClient(Socket socket) {
+       try {
+          socket.setSoTimeout(SESSION_IDLE_TIMEOUT_MS);
+          socket.setTcpNoDelay(true);
+          Session session = Session.forSocket(socket);
+          try {
+             PizzaStore.Greeting(session.out);
+             PizzaStore.runSession(this._esql, session);
+          } catch (IllegalStateException e) {
+             // client disconnected mid-session
+          } finally {
+             this._esql.sessions().logOut(session.token);
+             session.out.println("Bye !");
+             session.out.flush();
+          }
+       } catch (IOException e) {
+          System.err.println("Session error: " + e.getMessage());
+       } finally {
+          try {
+             socket.close();
+          } catch (IOException e) {
+             // ignored.
+          }
+       }
+    }//end runClient
+
+    /*
+     * Sessions spend nearly all their time waiting on client input, so use a
+     * virtual thread per session when the JVM has them (Java 21+) and fall
+     * back to a cached pool of platform threads otherwise.
+     **/
+    private static ExecutorService newSessionExecutor() {
+       try {
+          Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+          return (ExecutorService) factory.invoke(null);
+       } catch (Exception e) {
+          return Executors.newCachedThreadPool();
+       }
+    }//end newSessionExecutor
+
+    /**
+     * The server entry point
+     *
+     * @param args <dbname> <port> <user> <listenPort>
+     */
+    public static void main (String[] args) {
+       if (args.length != 4) {
+          System.err.println (
+             "Usage: " +
+             "java [-classpath <classpath>] " +
+             PizzaStoreServer.class.getName () +
+             " <dbname> <port> <user> <listenPort>");
+          return;
+       }//end if
+
+       try {
+          // use postgres JDBC driver.
+          Class.forName ("org.postgresql.Driver");
+          final PizzaStore esql = new PizzaStore (args[0], args[1], args[2], "");
+          final PizzaStoreServer server = new PizzaStoreServer(esql, Integer.parseInt(args[3]));
+          Runtime.getRuntime().addShutdownHook(new Thread() {
+             public void run() {
+                server.stop();
+                esql.cleanup();
+             }
+          });
+          System.out.println("Listening for sessions on localhost:" + args[3]);
+          server.serve();
+       } catch (Exception e) {
+          System.err.println (e.getMessage ());
+       }
+    }//end main
+ }//end PizzaStoreServer
@@ -0,0 +1,321 @@
+ import java.io.File;
+ import java.io.FileWriter;
+ import java.io.IOException;
+ import java.io.Writer;
+ import java.lang.management.ManagementFactory;
+ import java.nio.file.Files;
+ import java.nio.file.StandardCopyOption;
+ import java.util.ArrayList;
+ import java.util.Collections;
+ import java.util.List;
+ import java.util.Locale;
+ import java.util.Map;
+ import java.util.Timer;
+ import java.util.TimerTask;
+ import java.util.concurrent.ConcurrentHashMap;
+ import java.util.concurrent.atomic.AtomicLong;
+ import javax.management.MBeanServer;
+ import javax.management.ObjectName;
+
+ /**
+  * This class measures the query helpers of PizzaStore, grouped by the
+  * logical operation (menu option) that issued each query.  runSession
+  * brackets every menu choice with enter() and exit(); every query helper
+  * call made on that thread in between is recorded against that operation.
+  * Queries made outside an operation (cache loads, the notification
+  * listener) are recorded under "other".
+  *
+  * For every operation it keeps the latency of the whole operation and of
+  * each query, the rows returned, the bytes of column values the client
+  * decoded, and the number of failed queries.  The numbers are published as
+  * one JMX MXBean per operation (PizzaStore:type=QueryMetrics,operation=...)
+  * and, when a file is configured, written to it periodically in the
+  * Prometheus text format.
+  *
+  */
+ public class QueryMetrics {
+
+    // operation recorded for queries made outside any enter()/exit()
+    public static final String OTHER = "other";
+
+    /**
+     * The JMX view of one operation's numbers.  Latencies are in
+     * milliseconds.
+     */
+    public interface OperationStatsMXBean {
+       long getOperationCount();
+       double getOperationMeanMillis();
+       double getOperationP50Millis();
+       double getOperationP99Millis();
+       double getOperationP999Millis();
+       double getOperationMaxMillis();
+       long getQueryCount();
+       double getQueryMeanMillis();
+       double getQueryP50Millis();
+       double getQueryP99Millis();
+       double getQueryP999Millis();
+       double getQueryMaxMillis();
+       long getRows();
+       long getBytes();
+       long getErrors();
+       void reset();
+    }
+
+    /**
+     * The numbers recorded for one operation.
+     */
+    public static class OperationStats implements OperationStatsMXBean {
+       public final String operation;
+       public final LatencyHistogram operationLatency = new LatencyHistogram();
+       public final LatencyHistogram queryLatency = new LatencyHistogram();
+       private final AtomicLong _rows = new AtomicLong();
+       private final AtomicLong _bytes = new AtomicLong();
+       private final AtomicLong _errors = new AtomicLong();
+
+       OperationStats(String operation) {
+          this.operation = operation;
+       }
+
+       public long getOperationCount() { return this.operationLatency.count(); }
+       public double getOperationMeanMillis() { return this.operationLatency.mean() / 1e6; }
+       public double getOperationP50Millis() { return this.operationLatency.percentile(0.50) / 1e6; }
+       public double getOperationP99Millis() { return this.operationLatency.percentile(0.99) / 1e6; }
+       public double getOperationP999Millis() { return this.operationLatency.percentile(0.999) / 1e6; }
+       public double getOperationMaxMillis() { return this.operationLatency.max() / 1e6; }
+       public long getQueryCount() { return this.queryLatency.count(); }
+       public double getQueryMeanMillis() { return this.queryLatency.mean() / 1e6; }
+       public double getQueryP50Millis() { return this.queryLatency.percentile(0.50) / 1e6; }
+       public double getQueryP99Millis() { return this.queryLatency.percentile(0.99) / 1e6; }
+       public double getQueryP999Millis() { return this.queryLatency.percentile(0.999) / 1e6; }
+       public double getQueryMaxMillis() { return this.queryLatency.max() / 1e6; }
+       public long getRows() { return this._rows.get(); }
+       public long getBytes() { return this._bytes.get(); }
+       public long getErrors() { return this._errors.get(); }
+
+       public void reset() {
+          this.operationLatency.reset();
+          this.queryLatency.reset();
+          this._rows.set(0);
+          this._bytes.set(0);
+          this._errors.set(0);
+       }
+    }//end OperationStats
+
+    // the operation running on a thread, and the one it interrupted
+    private static class Scope {
+       final OperationStats stats;
+       final long startNanos;
+       final Scope outer;
+
+       Scope(OperationStats stats, long startNanos, Scope outer) {
+          this.stats = stats;
+          this.startNanos = startNanos;
+          this.outer = outer;
+       }
+    }//end Scope
+
+    private final ConcurrentHashMap<String, OperationStats> _stats = new ConcurrentHashMap<String, OperationStats>();
+    private final ThreadLocal<Scope> _scope = new ThreadLocal<Scope>();
+    private final boolean _jmx;
+    private final List<ObjectName> _registered = Collections.synchronizedList(new ArrayList<ObjectName>());
+    private Timer _dumper = null;
+
+    /**
+     * Creates an empty registry
+     *
+     * @param jmx register an MXBean for every operation
+     */
+    public QueryMetrics(boolean jmx) {
+       this._jmx = jmx;
+    }
+
+    /**
+     * Starts an operation on the calling thread.  Operations nest; the
+     * queries go to the innermost one.
+     *
+     * @param operation the operation name, e.g. "placeOrder"
+     */
+    public void enter(String operation) {
+       this._scope.set(new Scope(stats(operation), System.nanoTime(), this._scope.get()));
+    }
+
+    /**
+     * Ends the calling thread's innermost operation and records its latency.
+     */
+    public void exit() {
+       Scope scope = this._scope.get();
+       if (scope == null)
+          return;
+       scope.stats.operationLatency.record(System.nanoTime() - scope.startNanos);
+       if (scope.outer == null)
+          this._scope.remove();
+       else
+          this._scope.set(scope.outer);
+    }//end exit
+
+    /**
+     * @return the calling thread's innermost operation, or OTHER
+     */
+    public String currentOperation() {
+       Scope scope = this._scope.get();
+       return scope != null ? scope.stats.operation : OTHER;
+    }
+
+    /**
+     * Records one query helper call against the calling thread's operation.
+     *
+     * @param startNanos System.nanoTime() when the call started
+     * @param rows the rows returned or affected
+     * @param bytes the bytes of column values decoded
+     * @param failed whether the call threw
+     */
+    public void record(long startNanos, int rows, long bytes, boolean failed) {
+       Scope scope = this._scope.get();
+       OperationStats stats = scope != null ? scope.stats : stats(OTHER);
+       stats.queryLatency.record(System.nanoTime() - startNanos);
+       stats._rows.addAndGet(rows);
+       stats._bytes.addAndGet(bytes);
+       if (failed)
+          stats._errors.incrementAndGet();
+    }//end record
+
+    /**
+     * @param operation the operation name
+     * @return the numbers of that operation, created on first use
+     */
+    public OperationStats stats(String operation) {
+       OperationStats stats = this._stats.get(operation);
+       if (stats != null)
+          return stats;
+       OperationStats created = new OperationStats(operation);
+       stats = this._stats.putIfAbsent(operation, created);
+       if (stats != null)
+          return stats;
+       if (this._jmx)
+          register(created);
+       return created;
+    }//end stats
+
+    /**
+     * @return the numbers of every operation seen so far, by name
+     */
+    public Map<String, OperationStats> all() {
+       return Collections.unmodifiableMap(this._stats);
+    }
+
+    /**
+     * Writes every operation's numbers in the Prometheus text format.
+     *
+     * @param out where to write
+     * @throws java.io.IOException when writing fails
+     */
+    public void writePrometheus(Writer out) throws IOException {
+       List<OperationStats> all = new ArrayList<OperationStats>(this._stats.values());
+       StringBuilder text = new StringBuilder();
+       summary(text, all, "pizzastore_operation_seconds", "Latency of whole menu operations", true);
+       summary(text, all, "pizzastore_query_seconds", "Latency of query helper calls", false);
+       counter(text, all, "pizzastore_query_rows_total", "Rows returned or affected by queries", 0);
+       counter(text, all, "pizzastore_query_bytes_total", "Bytes of column values decoded by the client", 1);
+       counter(text, all, "pizzastore_query_errors_total", "Query helper calls that failed", 2);
+       out.write(text.toString());
+    }//end writePrometheus
+
+    private static void summary(StringBuilder text, List<OperationStats> all, String name, String help,
+                                boolean operationLevel) {
+       text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+       text.append("# TYPE ").append(name).append(" summary\n");
+       for (OperationStats stats : all) {
+          LatencyHistogram histogram = operationLevel ? stats.operationLatency : stats.queryLatency;
+          String label = "operation=\"" + stats.operation + "\"";
+          for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+             text.append(name).append('{').append(label).append(",quantile=\"").append(quantile).append("\"} ")
+                 .append(seconds(histogram.percentile(quantile))).append('\n');
+          }
+          text.append(name).append("_sum{").append(label).append("} ").append(seconds(histogram.sum())).append('\n');
+          text.append(name).append("_count{").append(label).append("} ").append(histogram.count()).append('\n');
+       }
+    }//end summary
+
+    private static void counter(StringBuilder text, List<OperationStats> all, String name, String help, int which) {
+       text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+       text.append("# TYPE ").append(name).append(" counter\n");
+       for (OperationStats stats : all) {
+          long value = which == 0 ? stats.getRows() : which == 1 ? stats.getBytes() : stats.getErrors();
+          text.append(name).append("{operation=\"").append(stats.operation).append("\"} ").append(value).append('\n');
+       }
+    }
+
+    private static String seconds(long nanos) {
+       return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Writes the Prometheus text to a file every interval, replacing the
+     * file atomically so a scraper never reads half of it.
+     *
+     * @param file the file to write
+     * @param intervalMs how often to write it
+     */
+    public synchronized void startDump(final File file, long intervalMs) {
+       if (this._dumper != null)
+          return;
+       this._dumper = new Timer("query-metrics-dump", true);
+       this._dumper.schedule(new TimerTask() {
+          public void run() {
+             try {
+                dump(file);
+             } catch (IOException e) {
+                System.err.println("Error writing metrics to " + file + ": " + e.getMessage());
+             }
+          }
+       }, intervalMs, intervalMs);
+    }//end startDump
+
+    /**
+     * Writes the Prometheus text to a file once.
+     *
+     * @param file the file to write
+     * @throws java.io.IOException when the file cannot be written
+     */
+    public void dump(File file) throws IOException {
+       File tmp = new File(file.getPath() + ".tmp");
+       Writer out = new FileWriter(tmp);
+       try {
+          writePrometheus(out);
+       } finally {
+          out.close();
+       }
+       Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }//end dump
+
+    /**
+     * Stops the periodic dump and unregisters the MXBeans.
+     */
+    public synchronized void close() {
+       if (this._dumper != null) {
+          this._dumper.cancel();
+          this._dumper = null;
+       }
+       MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+       synchronized (this._registered) {
+          for (ObjectName name : this._registered) {
+             try {
+                server.unregisterMBean(name);
+             } catch (Exception e) {
+                // already gone
+             }
+          }
+          this._registered.clear();
+       }
+    }//end close
+
+    private void register(OperationStats stats) {
+       try {
+          ObjectName name = new ObjectName("PizzaStore:type=QueryMetrics,operation=" + stats.operation);
+          ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+          this._registered.add(name);
+       } catch (Exception e) {
+          // another PizzaStore in this JVM owns the name; the numbers are still kept
+       }
+    }//end register
+ }//end QueryMetrics
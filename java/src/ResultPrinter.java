@@ -0,0 +1,108 @@
+ import java.io.PrintStream;
+ import java.sql.ResultSet;
+ import java.sql.ResultSetMetaData;
+ import java.sql.SQLException;
+ import java.util.ArrayList;
+ import java.util.List;
+
+ /**
+  * This class prints result rows as tab separated text with the column
+  * names as a header.  Rows are collected in a buffer that is written out
+  * in large chunks instead of one print per cell, and the last row printed
+  * is remembered so callers can continue a keyset-paginated listing from
+  * it.
+  *
+  */
+ public class ResultPrinter {
+
+    // buffered text is written out once it grows past this many characters
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final PrintStream _out;
+    private final StringBuilder _buffer = new StringBuilder(4096);
+    private boolean _headerPrinted = false;
+    private int _rowCount = 0;
+    private long _byteCount = 0;
+    private List<String> _lastRow = null;
+
+    /**
+     * Creates a printer writing to the given stream
+     *
+     * @param out the stream rows are printed to
+     */
+    public ResultPrinter(PrintStream out) {
+       this._out = out;
+    }
+
+    /**
+     * Prints every remaining row of the result set.  The header is only
+     * printed before the first row this printer ever prints.
+     *
+     * @param rs the rows to print
+     * @return the number of rows printed by this call
+     * @throws java.sql.SQLException when the rows cannot be read
+     */
+    public int print(ResultSet rs) throws SQLException {
+       ResultSetMetaData rsmd = rs.getMetaData ();
+       int numCol = rsmd.getColumnCount ();
+       int printed = 0;
+       String[] row = new String[numCol];
+       while (rs.next()) {
+          if (!this._headerPrinted) {
+             for (int i = 1; i <= numCol; ++i)
+                this._buffer.append(rsmd.getColumnName(i)).append('\t');
+             this._buffer.append('\n');
+             this._headerPrinted = true;
+          }
+          for (int i = 1; i <= numCol; ++i) {
+             row[i - 1] = rs.getString(i);
+             if (row[i - 1] != null)
+                this._byteCount += row[i - 1].length();
+             this._buffer.append(row[i - 1]).append('\t');
+          }
+          this._buffer.append('\n');
+          ++printed;
+          if (this._buffer.length() >= FLUSH_THRESHOLD)
+             flush();
+       }//end while
+       if (printed > 0) {
+          this._lastRow = new ArrayList<String>(numCol);
+          for (int i = 0; i < numCol; ++i)
+             this._lastRow.add(row[i]);
+       }
+       this._rowCount += printed;
+       return printed;
+    }//end print
+
+    /**
+     * Writes out any buffered text.
+     */
+    public void flush() {
+       if (this._buffer.length() > 0) {
+          this._out.print(this._buffer);
+          this._buffer.setLength(0);
+       }
+       this._out.flush();
+    }//end flush
+
+    /**
+     * @return the number of rows printed so far
+     */
+    public int rowCount() {
+       return this._rowCount;
+    }
+
+    /**
+     * @return the characters of column values read so far
+     */
+    public long byteCount() {
+       return this._byteCount;
+    }
+
+    /**
+     * @return the values of the last row printed, or null if none was
+     */
+    public List<String> lastRow() {
+       return this._lastRow;
+    }
+ }//end ResultPrinter
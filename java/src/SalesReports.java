@@ -0,0 +1,103 @@
+ import java.io.PrintStream;
+ import java.sql.SQLException;
+ import java.sql.Timestamp;
+ import java.util.Calendar;
+
+ /**
+  * This class prints the manager sales reports.  Every report reads the
+  * hourly rollups StoreSalesHourly and ItemSalesHourly, which the
+  * sales_rollup triggers keep current as orders are written, so a report
+  * over any period touches a few rows per store and hour instead of
+  * aggregating FoodOrder and ItemsInOrder during service.
+  *
+  */
+ public class SalesReports {
+
+    // rows shown by the ranking reports
+    private static final int TOP_ROWS = 20;
+
+    private final PizzaStore _esql;
+
+    /**
+     * @param esql the data-access object used to read the rollups
+     */
+    public SalesReports(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * Prints the stores ranked by revenue over the last days.
+     *
+     * @param out the stream to print to
+     * @param days how many days back to report
+     * @return the number of stores printed
+     */
+    public int revenueByStore(PrintStream out, int days) throws SQLException {
+       return this._esql.executeQueryAndPrintResult(out,
+          "SELECT r.storeID, s.city, s.state, SUM(r.orders) AS orders, SUM(r.revenue) AS revenue " +
+          "FROM StoreSalesHourly r JOIN Store s ON s.storeID = r.storeID " +
+          "WHERE r.salesHour >= ? " +
+          "GROUP BY r.storeID, s.city, s.state ORDER BY revenue DESC, r.storeID LIMIT " + TOP_ROWS,
+          since(days));
+    }
+
+    /**
+     * Prints the best-selling items over the last days.
+     *
+     * @param out the stream to print to
+     * @param days how many days back to report
+     * @param storeID one store, or 0 for every store
+     * @return the number of items printed
+     */
+    public int topItems(PrintStream out, int days, int storeID) throws SQLException {
+       String sql = "SELECT itemName, SUM(quantity) AS quantity, SUM(revenue) AS revenue " +
+          "FROM ItemSalesHourly WHERE salesHour >= ?" + (storeID != 0 ? " AND storeID = ?" : "") +
+          " GROUP BY itemName ORDER BY quantity DESC, itemName LIMIT " + TOP_ROWS;
+       return storeID != 0
+          ? this._esql.executeQueryAndPrintResult(out, sql, since(days), storeID)
+          : this._esql.executeQueryAndPrintResult(out, sql, since(days));
+    }
+
+    /**
+     * Prints orders and revenue per day over the last days.
+     *
+     * @param out the stream to print to
+     * @param days how many days back to report
+     * @param storeID one store, or 0 for every store
+     * @return the number of days printed
+     */
+    public int dailyRevenue(PrintStream out, int days, int storeID) throws SQLException {
+       return byPeriod(out, "day", since(days), storeID);
+    }
+
+    /**
+     * Prints orders and revenue per hour over the last 24 hours.
+     *
+     * @param out the stream to print to
+     * @param storeID one store, or 0 for every store
+     * @return the number of hours printed
+     */
+    public int hourlyRevenue(PrintStream out, int storeID) throws SQLException {
+       return byPeriod(out, "hour", new Timestamp(System.currentTimeMillis() - 24L * 3600 * 1000), storeID);
+    }
+
+    private int byPeriod(PrintStream out, String unit, Timestamp since, int storeID) throws SQLException {
+       String sql = "SELECT date_trunc('" + unit + "', salesHour) AS " + unit + ", SUM(orders) AS orders, " +
+          "SUM(revenue) AS revenue FROM StoreSalesHourly WHERE salesHour >= ?" +
+          (storeID != 0 ? " AND storeID = ?" : "") + " GROUP BY 1 ORDER BY 1";
+       return storeID != 0
+          ? this._esql.executeQueryAndPrintResult(out, sql, since, storeID)
+          : this._esql.executeQueryAndPrintResult(out, sql, since);
+    }
+
+    // the start of the day, days - 1 days before today
+    private static Timestamp since(int days) {
+       Calendar start = Calendar.getInstance();
+       start.set(Calendar.HOUR_OF_DAY, 0);
+       start.set(Calendar.MINUTE, 0);
+       start.set(Calendar.SECOND, 0);
+       start.set(Calendar.MILLISECOND, 0);
+       start.add(Calendar.DAY_OF_MONTH, 1 - Math.max(1, days));
+       return new Timestamp(start.getTimeInMillis());
+    }
+ }//end SalesReports
@@ -0,0 +1,87 @@
+ import java.io.BufferedOutputStream;
+ import java.io.BufferedReader;
+ import java.io.IOException;
+ import java.io.InputStreamReader;
+ import java.io.PrintStream;
+ import java.net.Socket;
+ import java.nio.charset.StandardCharsets;
+
+ /**
+  * This class holds the state of one interactive session: who is logged in,
+  * their role, and the streams the session reads input from and writes
+  * output to. The console uses stdin/stdout; the server creates one Session
+  * per client connection.
+  *
+  */
+ public class Session {
+
+    // the currently logged-in user, or null
+    public String currentUser = null;
+
+    // the current user's role, or null
+    public String currentRole = null;
+
+    // the SessionCache token of the current login, or null
+    public String token = null;
+
+    // handling the client inputs through a BufferedReader
+    public final BufferedReader in;
+
+    // normal output shown to the client
+    public final PrintStream out;
+
+    // error messages shown to the client
+    public final PrintStream err;
+
+    /**
+     * Creates a new session reading from in and writing to out and err
+     *
+     * @param in the client input
+     * @param out the stream for normal output
+     * @param err the stream for error messages
+     */
+    public Session(BufferedReader in, PrintStream out, PrintStream err) {
+       this.in = in;
+       this.out = out;
+       this.err = err;
+    }
+
+    /**
+     * @return a session attached to the process' stdin, stdout and stderr
+     */
+    public static Session console() {
+       return new Session(new BufferedReader(new InputStreamReader(System.in)),
+                          System.out, System.err);
+    }
+
+    /**
+     * Creates a session speaking the line protocol over a client socket.
+     * Output is buffered and flushed whenever the session waits for the
+     * next input line, so a prompt and everything before it arrive together.
+     *
+     * @param socket the connected client
+     * @return a session bound to the socket streams
+     * @throws java.io.IOException when the socket streams cannot be opened
+     */
+    public static Session forSocket(Socket socket) throws IOException {
+       final PrintStream out = new PrintStream(
+          new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8");
+       BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)) {
+          public String readLine() throws IOException {
+             out.flush();
+             return super.readLine();
+          }
+       };
+       return new Session(in, out, out);
+    }//end forSocket
+
+    /**
+     * Forgets the logged-in user.
+     */
+    public void logOut() {
+       this.currentUser = null;
+       this.currentRole = null;
+       this.token = null;
+    }
+ }//end Session
@@ -0,0 +1,288 @@
+ import java.security.SecureRandom;
+ import java.sql.SQLException;
+ import java.util.ArrayList;
+ import java.util.Base64;
+ import java.util.Collection;
+ import java.util.Collections;
+ import java.util.HashMap;
+ import java.util.LinkedHashMap;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class authenticates users and keeps who is logged in.  A login
+  * checks the credentials and fetches the role and profile with one query
+  * on the Users primary key, then issues a random session token.  The
+  * token's user is kept in memory, so the handlers' role checks never go
+  * back to the database.
+  *
+  * A token expires when it has not been used for a time to live, and the
+  * least recently used tokens are dropped beyond a maximum count; an
+  * expired session has to log in again.  Role and phone number changes
+  * made by this process are written through to every session of the user,
+  * and resetting a password ends them; a user changing their own password
+  * keeps the session they changed it from and loses the others.
+  *
+  * Changes made elsewhere, by other clients or by hand, raise NOTIFY
+  * user_changed (the users_changed trigger); the notification carries no
+  * payload, so refresh() then rereads every logged-in user, updating
+  * roles and phone numbers and ending the sessions of users whose
+  * password changed or who were deleted.  Until the notification arrives,
+  * one listener poll interval, a session still acts with its old role;
+  * with the listener off (pizzastore.notify.pollMs=0), it does so until it
+  * expires.  Sessions live in this process only, so a log out elsewhere
+  * never ends them.
+  *
+  * Settings, as -Dpizzastore.session.<name>=<value>: ttlMs (1800000),
+  * maxSessions (10000).
+  *
+  */
+ public class SessionCache {
+
+    // NOTIFY channel raised by the users_changed trigger
+    public static final String CHANNEL = "user_changed";
+
+    private static final long TTL_MS = Long.getLong("pizzastore.session.ttlMs", 1800000L);
+    private static final int MAX_SESSIONS = Integer.getInteger("pizzastore.session.maxSessions", 10000);
+
+    // random bytes per token
+    private static final int TOKEN_BYTES = 18;
+
+    /**
+     * The user a session token belongs to.
+     */
+    public static class Principal {
+       public final String token;
+       public final String login;
+       public final String role;
+       public final String phoneNum;
+
+       Principal(String token, String login, String role, String phoneNum) {
+          this.token = token;
+          this.login = login;
+          this.role = role == null ? "" : role.trim();
+          this.phoneNum = phoneNum;
+       }
+
+       /**
+        * @param role a role, e.g. "manager"
+        * @return true when the user has that role, ignoring case
+        */
+       public boolean hasRole(String role) {
+          return this.role.equalsIgnoreCase(role);
+       }
+    }//end Principal
+
+    // one logged-in session
+    private static class Entry {
+       Principal principal;
+       long lastUsed;
+       // md5 of the password logged in with, to notice a reset elsewhere
+       String passwordHash;
+
+       Entry(Principal principal, long lastUsed, String passwordHash) {
+          this.principal = principal;
+          this.lastUsed = lastUsed;
+          this.passwordHash = passwordHash;
+       }
+    }//end Entry
+
+    private final PizzaStore _esql;
+
+    private final SecureRandom _random = new SecureRandom();
+
+    // guarded by this; in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+       protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          if (size() <= MAX_SESSIONS)
+             return false;
+          unindex(eldest.getValue().principal);
+          return true;
+       }
+    };
+
+    // guarded by this; the sessions of every logged-in user, by token
+    private final Map<String, Map<String, Entry>> _sessions = new HashMap<String, Map<String, Entry>>();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param esql the data-access object used to read Users
+     */
+    public SessionCache(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * Checks a user's credentials and starts a session.
+     *
+     * @param login the user name
+     * @param password the password
+     * @return the new session, or null when the credentials are wrong
+     */
+    public Principal logIn(String login, String password) throws SQLException {
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT login, role, phoneNum, md5(password) FROM Users WHERE login = ? AND password = ?", login, password);
+       if (rows.rowCount() == 0)
+          return null;
+       byte[] bytes = new byte[TOKEN_BYTES];
+       this._random.nextBytes(bytes);
+       Principal principal = new Principal(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes),
+                                           rows.getString(0, 0), rows.getString(0, 1), rows.getString(0, 2));
+       Entry entry = new Entry(principal, System.currentTimeMillis(), rows.getString(0, 3));
+       synchronized (this) {
+          this._entries.put(principal.token, entry);
+          Map<String, Entry> sessions = this._sessions.get(principal.login);
+          if (sessions == null) {
+             sessions = new HashMap<String, Entry>();
+             this._sessions.put(principal.login, sessions);
+          }
+          sessions.put(principal.token, entry);
+       }
+       return principal;
+    }//end logIn
+
+    /**
+     * Looks a session up and extends its life.
+     *
+     * @param token the session token
+     * @return the session's user, or null when the token is unknown or expired
+     */
+    public synchronized Principal get(String token) {
+       if (token == null)
+          return null;
+       Entry entry = this._entries.get(token);
+       if (entry == null)
+          return null;
+       long now = System.currentTimeMillis();
+       if (now - entry.lastUsed > TTL_MS) {
+          this._entries.remove(token);
+          unindex(entry.principal);
+          return null;
+       }
+       entry.lastUsed = now;
+       return entry.principal;
+    }//end get
+
+    /**
+     * Ends one session.
+     *
+     * @param token the session token; unknown tokens are ignored
+     */
+    public synchronized void logOut(String token) {
+       Entry entry = token == null ? null : this._entries.remove(token);
+       if (entry != null)
+          unindex(entry.principal);
+    }
+
+    /**
+     * Ends every session of a user, e.g. after a password reset.
+     *
+     * @param login the user
+     */
+    public synchronized void revoke(String login) {
+       Map<String, Entry> sessions = this._sessions.remove(login);
+       if (sessions != null)
+          for (String token : sessions.keySet())
+             this._entries.remove(token);
+    }
+
+    /**
+     * Records a user's own password change: the session it was made from
+     * goes on with the new password, the user's other sessions end.  Call
+     * it before the change commits, so the users_changed recheck cannot
+     * see the new password first.
+     *
+     * @param login the user
+     * @param token the session the password was changed from
+     * @param passwordHash md5 of the new password, as the server computes it
+     */
+    public synchronized void passwordChanged(String login, String token, String passwordHash) {
+       List<String> ended = new ArrayList<String>();
+       for (Entry entry : sessionsOf(login)) {
+          if (entry.principal.token.equals(token))
+             entry.passwordHash = passwordHash;
+          else
+             ended.add(entry.principal.token);
+       }
+       for (String other : ended)
+          logOut(other);
+    }
+
+    /**
+     * Records a role change in every session of a user.
+     *
+     * @param login the user
+     * @param role the new role
+     */
+    public synchronized void roleChanged(String login, String role) {
+       for (Entry entry : sessionsOf(login))
+          entry.principal = new Principal(entry.principal.token, login, role, entry.principal.phoneNum);
+    }
+
+    /**
+     * Records a phone number change in every session of a user.
+     *
+     * @param login the user
+     * @param phoneNum the new phone number
+     */
+    public synchronized void phoneChanged(String login, String phoneNum) {
+       for (Entry entry : sessionsOf(login))
+          entry.principal = new Principal(entry.principal.token, login, entry.principal.role, phoneNum);
+    }
+
+    /**
+     * Rereads every logged-in user after a change made elsewhere: roles
+     * and phone numbers are updated, and the sessions of users deleted or
+     * with a new password are ended.
+     *
+     * @throws java.sql.SQLException when the users cannot be read
+     */
+    public void refresh() throws SQLException {
+       List<String> logins;
+       synchronized (this) {
+          logins = new ArrayList<String>(this._sessions.keySet());
+       }
+       for (int from = 0; from < logins.size(); from += StatementCache.MAX_LIST) {
+          List<String> chunk = logins.subList(from, Math.min(logins.size(), from + StatementCache.MAX_LIST));
+          Object[] params = StatementCache.padded(chunk);
+          ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+             "SELECT login, role, phoneNum, md5(password) FROM Users WHERE login IN ("
+             + StatementCache.list("?", params.length) + ")", params);
+          Map<String, Integer> found = new HashMap<String, Integer>();
+          for (int row = 0; row < rows.rowCount(); ++row)
+             found.put(rows.getString(row, 0), row);
+          synchronized (this) {
+             for (String login : chunk) {
+                Integer row = found.get(login);
+                List<String> ended = new ArrayList<String>();
+                for (Entry entry : sessionsOf(login)) {
+                   if (row == null || !entry.passwordHash.equals(rows.getString(row, 3)))
+                      ended.add(entry.principal.token);
+                   else
+                      entry.principal = new Principal(entry.principal.token, login, rows.getString(row, 1),
+                                                      rows.getString(row, 2));
+                }
+                for (String token : ended)
+                   logOut(token);
+             }
+          }
+       }
+    }//end refresh
+
+    // caller holds the lock; a change is not a use, so the access order is left alone
+    private Collection<Entry> sessionsOf(String login) {
+       Map<String, Entry> sessions = this._sessions.get(login);
+       return sessions == null ? Collections.<Entry>emptyList() : sessions.values();
+    }
+
+    // caller holds the lock; removes the session from the login index
+    private void unindex(Principal principal) {
+       Map<String, Entry> sessions = this._sessions.get(principal.login);
+       if (sessions != null) {
+          sessions.remove(principal.token);
+          if (sessions.isEmpty())
+             this._sessions.remove(principal.login);
+       }
+    }
+ }//end SessionCache
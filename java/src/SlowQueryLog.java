@@ -0,0 +1,276 @@
+ import java.io.File;
+ import java.io.FileOutputStream;
+ import java.io.IOException;
+ import java.io.OutputStreamWriter;
+ import java.io.Writer;
+ import java.nio.charset.StandardCharsets;
+ import java.sql.Connection;
+ import java.sql.PreparedStatement;
+ import java.sql.ResultSet;
+ import java.sql.SQLException;
+ import java.text.SimpleDateFormat;
+ import java.util.Arrays;
+ import java.util.Date;
+ import java.util.HashSet;
+ import java.util.Locale;
+ import java.util.Set;
+ import java.util.concurrent.ArrayBlockingQueue;
+ import java.util.concurrent.RejectedExecutionException;
+ import java.util.concurrent.ThreadFactory;
+ import java.util.concurrent.ThreadLocalRandom;
+ import java.util.concurrent.ThreadPoolExecutor;
+ import java.util.concurrent.TimeUnit;
+ import java.util.concurrent.atomic.AtomicLong;
+ import java.util.regex.Matcher;
+ import java.util.regex.Pattern;
+
+ /**
+  * This class records query helper calls that take longer than a threshold
+  * to a local log file.  Each entry has the time, the menu operation, the
+  * elapsed time, the statement normalized to its shape (literals and
+  * repeated VALUES groups folded), and its bind values.  A sampled fraction
+  * of entries also carries the plan from EXPLAIN (ANALYZE, BUFFERS), run
+  * again on a separate connection, so one can see whether a statement used
+  * its index or fell back to a full sort.  ANALYZE executes the statement,
+  * so it is used only for a SELECT that calls nothing but the side-effect
+  * free functions of ANALYZE_SAFE; a SELECT of a function such as
+  * ensure_order_partitions, which creates tables, gets a plain EXPLAIN.
+  *
+  * Entries are written, and plans captured, on a background thread; a
+  * slow query only pays for handing the entry over, and entries are
+  * dropped rather than queued without bound.  The file is rotated when it
+  * reaches a size limit, keeping a fixed number of old files.
+  *
+  */
+ public class SlowQueryLog {
+
+    // entries waiting for the writer thread
+    private static final int QUEUE_CAPACITY = 1000;
+
+    // bind values are cut to this many characters in the log
+    private static final int MAX_BIND_LENGTH = 100;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern REPEATED_GROUPS = Pattern.compile("(\\([?, ]+\\))(?:\\s*,\\s*\\([?, ]+\\))+");
+
+    // statements whose plan may be captured with ANALYZE, which executes them
+    private static final Pattern READ_ONLY = Pattern.compile("^\\s*SELECT\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SIDE_EFFECTS = Pattern.compile(
+       "\\b(FOR\\s+UPDATE|FOR\\s+SHARE|INTO)\\b", Pattern.CASE_INSENSITIVE);
+    // a name followed by an opening parenthesis: a function call, or a keyword such as IN
+    private static final Pattern CALL = Pattern.compile("\\b([A-Za-z_][\\w.]*)\\s*\\(");
+    // the keywords and functions that may precede a parenthesis in a statement run under ANALYZE
+    private static final Set<String> ANALYZE_SAFE = new HashSet<String>(Arrays.asList(
+       "select", "from", "where", "and", "or", "not", "in", "exists", "any", "all", "as", "on", "join",
+       "lateral", "using", "values", "row", "over", "filter", "then", "else", "when", "case", "by", "having",
+       "cast", "coalesce", "nullif", "greatest", "least", "count", "sum", "min", "max", "avg", "lower",
+       "upper", "trim", "rtrim", "ltrim", "substr", "substring", "length", "round", "abs", "date_trunc",
+       "extract", "md5", "unnest", "string_agg", "array_agg"));
+
+    private final ConnectionPool _pool;
+    private final long _thresholdNanos;
+    private final double _explainSampleRate;
+    private final File _file;
+    private final long _maxBytes;
+    private final int _maxFiles;
+    private final ThreadPoolExecutor _writer;
+    private final AtomicLong _dropped = new AtomicLong();
+
+    // only touched by the writer thread
+    private Writer _out = null;
+    private long _size = 0;
+
+    /**
+     * Creates a log; nothing is written until the first slow query
+     *
+     * @param pool the pool EXPLAIN borrows its connection from
+     * @param file the log file
+     * @param thresholdMs calls taking at least this long are logged
+     * @param explainSampleRate the fraction of entries, 0 to 1, that get a plan
+     * @param maxBytes the file is rotated when it grows past this size
+     * @param maxFiles the number of rotated files kept next to the log, at least 1
+     */
+    public SlowQueryLog(ConnectionPool pool, File file, long thresholdMs, double explainSampleRate,
+                        long maxBytes, int maxFiles) {
+       this._pool = pool;
+       this._file = file;
+       this._thresholdNanos = thresholdMs * 1000000L;
+       this._explainSampleRate = explainSampleRate;
+       this._maxBytes = maxBytes;
+       this._maxFiles = Math.max(1, maxFiles);
+       this._writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                             new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY));
+       this._writer.setThreadFactory(new ThreadFactory() {
+          public Thread newThread(Runnable task) {
+             Thread thread = new Thread(task, "slow-query-log");
+             thread.setDaemon(true);
+             return thread;
+          }
+       });
+    }//end SlowQueryLog
+
+    /**
+     * Logs the call if it took at least the threshold.
+     *
+     * @param operation the menu operation that made the call
+     * @param sql the statement as executed
+     * @param params its bind values
+     * @param elapsedNanos how long the call took
+     * @param rows the rows returned or affected
+     * @param failed whether the call threw
+     */
+    public void check(String operation, final String sql, Object[] params, long elapsedNanos,
+                      int rows, boolean failed) {
+       if (elapsedNanos < this._thresholdNanos)
+          return;
+       final Object[] binds = params.clone();
+       final boolean explain = this._explainSampleRate > 0
+          && ThreadLocalRandom.current().nextDouble() < this._explainSampleRate;
+       final String header = String.format(Locale.ROOT, "%s operation=%s elapsed_ms=%.3f rows=%d%s",
+          new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()), operation,
+          elapsedNanos / 1e6, rows, failed ? " failed" : "");
+       try {
+          this._writer.execute(new Runnable() {
+             public void run() { write(header, sql, binds, explain); }
+          });
+       } catch (RejectedExecutionException e) {
+          this._dropped.incrementAndGet();
+       }
+    }//end check
+
+    /**
+     * @return the number of entries dropped because the writer fell behind
+     */
+    public long dropped() {
+       return this._dropped.get();
+    }
+
+    /**
+     * Writes out the queued entries and closes the file.
+     */
+    public void close() {
+       this._writer.shutdown();
+       try {
+          this._writer.awaitTermination(10, TimeUnit.SECONDS);
+       } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+       }
+       try {
+          if (this._out != null)
+             this._out.close();
+       } catch (IOException e) {
+          // nothing left to do with it
+       }
+    }//end close
+
+    /**
+     * Reduces a statement to its shape: whitespace collapsed, string and
+     * number literals replaced by ?, and a run of parenthesized ? groups
+     * (a multi-row VALUES or an IN list) folded to its first group.
+     *
+     * @param sql the statement
+     * @return the normalized statement
+     */
+    public static String normalize(String sql) {
+       String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+       shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+       shape = WHITESPACE.matcher(shape).replaceAll(" ").trim();
+       Matcher groups = REPEATED_GROUPS.matcher(shape);
+       return groups.replaceAll("$1, ...");
+    }//end normalize
+
+    // runs on the writer thread
+    private void write(String header, String sql, Object[] binds, boolean explain) {
+       String shape = normalize(sql);
+       StringBuilder entry = new StringBuilder(header).append('\n');
+       entry.append("  sql: ").append(shape).append('\n');
+       entry.append("  binds: ").append(binds(shape, binds)).append('\n');
+       if (explain) {
+          boolean analyze = READ_ONLY.matcher(sql).find() && !SIDE_EFFECTS.matcher(sql).find()
+             && callsOnlySafeFunctions(sql);
+          entry.append(analyze ? "  plan (EXPLAIN ANALYZE, BUFFERS):\n" : "  plan (EXPLAIN, not executed):\n");
+          try {
+             entry.append(explain(sql, binds, analyze));
+          } catch (SQLException e) {
+             entry.append("    unavailable: ").append(e.getMessage()).append('\n');
+          }
+       }
+       try {
+          append(entry.toString());
+       } catch (IOException e) {
+          System.err.println("Error writing " + this._file + ": " + e.getMessage());
+       }
+    }//end write
+
+    // true when every call in the statement, outside string literals, is in ANALYZE_SAFE
+    private static boolean callsOnlySafeFunctions(String sql) {
+       Matcher calls = CALL.matcher(STRING_LITERAL.matcher(sql).replaceAll("''"));
+       while (calls.find())
+          if (!ANALYZE_SAFE.contains(calls.group(1).toLowerCase(Locale.ROOT)))
+             return false;
+       return true;
+    }
+
+    // bind values, hidden for statements that touch passwords
+    private static String binds(String shape, Object[] binds) {
+       if (shape.toLowerCase().contains("password"))
+          return binds.length + " values, not shown";
+       StringBuilder text = new StringBuilder("[");
+       for (int i = 0; i < binds.length; ++i) {
+          if (i > 0)
+             text.append(", ");
+          String value = String.valueOf(binds[i]);
+          text.append(value.length() > MAX_BIND_LENGTH ? value.substring(0, MAX_BIND_LENGTH) + "..." : value);
+       }
+       return text.append(']').toString();
+    }//end binds
+
+    private String explain(String sql, Object[] binds, boolean analyze) throws SQLException {
+       ConnectionPool.PooledConnection conn = this._pool.borrow();
+       try {
+          // the statement text differs from the cached one, so do not cache it
+          Connection connection = conn.connection;
+          PreparedStatement stmt = connection.prepareStatement(
+             (analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql);
+          StatementCache.bind(stmt, binds);
+          ResultSet rs = stmt.executeQuery();
+          StringBuilder plan = new StringBuilder();
+          while (rs.next())
+             plan.append("    ").append(rs.getString(1)).append('\n');
+          rs.close();
+          stmt.close();
+          return plan.toString();
+       } finally {
+          this._pool.release(conn);
+       }
+    }//end explain
+
+    private void append(String entry) throws IOException {
+       byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+       if (this._out != null && this._size + bytes.length > this._maxBytes)
+          rotate();
+       if (this._out == null) {
+          this._out = new OutputStreamWriter(new FileOutputStream(this._file, true), StandardCharsets.UTF_8);
+          this._size = this._file.length();
+       }
+       this._out.write(entry);
+       this._out.flush();
+       this._size += bytes.length;
+    }//end append
+
+    // log -> log.1 -> log.2 ... the oldest beyond maxFiles is deleted
+    private void rotate() throws IOException {
+       this._out.close();
+       this._out = null;
+       for (int i = this._maxFiles; i >= 1; --i) {
+          File older = new File(this._file.getPath() + "." + i);
+          File newer = i == 1 ? this._file : new File(this._file.getPath() + "." + (i - 1));
+          if (i == this._maxFiles)
+             older.delete();
+          if (newer.exists())
+             newer.renameTo(older);
+       }
+    }//end rotate
+ }//end SlowQueryLog
@@ -0,0 +1,175 @@
+ import java.sql.Connection;
+ import java.sql.PreparedStatement;
+ import java.sql.SQLException;
+ import java.sql.Types;
+ import java.util.Iterator;
+ import java.util.LinkedHashMap;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class keeps a bounded, least-recently-used set of PreparedStatements
+  * for one physical connection, keyed by their SQL text. Statements are
+  * prepared on the server the first time a shape is seen and reused after
+  * that, so Postgres only parses and plans each query shape once.
+  *
+  * Statements whose IN list or VALUES list varies in length would take a
+  * cache entry per length and push the fixed queries out, so they are
+  * sent in a few fixed sizes: IN lists are padded up to the next size by
+  * repeating a value, and VALUES rows are split into statements of the
+  * sizes that fit.
+  *
+  */
+ public class StatementCache {
+
+    // the lengths variable IN and VALUES lists are sent in
+    private static final int[] SIZES = {1, 4, 16, 64, 256};
+
+    /**
+     * The most values, or rows, one variable-length list takes.
+     */
+    public static final int MAX_LIST = 256;
+
+    // the connection every cached statement belongs to
+    private final Connection _connection;
+
+    // maximum number of statements kept open on the connection
+    private final int _capacity;
+
+    // access-ordered so the eldest entry is always the least recently used
+    private final LinkedHashMap<String, PreparedStatement> _statements;
+
+    /**
+     * Creates a new statement cache for the given connection
+     *
+     * @param connection the physical connection statements are prepared on
+     * @param capacity the maximum number of statements kept open
+     */
+    public StatementCache(Connection connection, int capacity) {
+       this._connection = connection;
+       this._capacity = capacity;
+       this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+          protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+             if (size() > StatementCache.this._capacity) {
+                closeQuietly(eldest.getValue());
+                return true;
+             }
+             return false;
+          }
+       };
+    }//end StatementCache
+
+    /**
+     * Returns the cached statement for the SQL text, preparing it on the
+     * server if it has not been seen yet (or was evicted).
+     *
+     * @param sql the SQL text with '?' placeholders
+     * @return a prepared statement ready to be bound
+     * @throws java.sql.SQLException when the statement cannot be prepared
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException {
+       PreparedStatement stmt = this._statements.get(sql);
+       if (stmt == null) {
+          stmt = this._connection.prepareStatement(sql);
+          // the 7.3 driver interpolates parameters on the client unless asked
+          // to use server side PREPARE/EXECUTE
+          if (stmt instanceof org.postgresql.PGStatement) {
+             ((org.postgresql.PGStatement) stmt).setUseServerPrepare(true);
+          }
+          this._statements.put(sql, stmt);
+       }
+       return stmt;
+    }//end prepare
+
+    /**
+     * Binds the given values to the statement placeholders in order.
+     *
+     * @param stmt the statement to bind
+     * @param params the values, one per '?' placeholder
+     * @throws java.sql.SQLException when a value cannot be bound
+     */
+    public static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+       stmt.clearParameters();
+       for (int i = 0; i < params.length; ++i) {
+          if (params[i] == null)
+             stmt.setNull(i + 1, Types.VARCHAR);
+          else
+             stmt.setObject(i + 1, params[i]);
+       }
+    }//end bind
+
+    /**
+     * Pads an IN list up to the next fixed length by repeating its last
+     * value, which leaves the result of the IN unchanged.
+     *
+     * @param values 1 to MAX_LIST values
+     * @return the values, padded
+     */
+    public static Object[] padded(List<?> values) {
+       int size = SIZES[SIZES.length - 1];
+       for (int i = 0; i < SIZES.length; ++i) {
+          if (SIZES[i] >= values.size()) {
+             size = SIZES[i];
+             break;
+          }
+       }
+       if (values.isEmpty() || values.size() > size)
+          throw new IllegalArgumentException("An IN list takes 1 to " + MAX_LIST + " values, not " + values.size());
+       Object[] padded = new Object[size];
+       for (int i = 0; i < size; ++i)
+          padded[i] = values.get(Math.min(i, values.size() - 1));
+       return padded;
+    }//end padded
+
+    /**
+     * The number of rows to send in the next statement of a multi-row
+     * VALUES list: the largest fixed length not above the rows left.
+     *
+     * @param remaining the rows still to send, at least 1
+     * @return how many of them the next statement takes
+     */
+    public static int rows(int remaining) {
+       int rows = SIZES[0];
+       for (int i = 0; i < SIZES.length && SIZES[i] <= remaining; ++i)
+          rows = SIZES[i];
+       return rows;
+    }
+
+    /**
+     * @param item the text of one list element, e.g. "?" or "(?, ?)"
+     * @param count the elements
+     * @return the elements, separated by commas
+     */
+    public static String list(String item, int count) {
+       StringBuilder text = new StringBuilder(count * (item.length() + 2));
+       for (int i = 0; i < count; ++i)
+          text.append(i == 0 ? "" : ", ").append(item);
+       return text.toString();
+    }
+
+    /**
+     * @return the number of statements currently cached
+     */
+    public synchronized int size() {
+       return this._statements.size();
+    }
+
+    /**
+     * Closes every cached statement. The cache can be reused afterwards.
+     */
+    public synchronized void close() {
+       Iterator<PreparedStatement> it = this._statements.values().iterator();
+       while (it.hasNext()) {
+          closeQuietly(it.next());
+          it.remove();
+       }
+    }//end close
+
+    private static void closeQuietly(PreparedStatement stmt) {
+       try {
+          stmt.close();
+       } catch (SQLException e) {
+          // ignored.
+       }
+    }
+ }//end StatementCache
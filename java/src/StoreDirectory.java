@@ -0,0 +1,227 @@
+ import java.io.PrintStream;
+ import java.sql.SQLException;
+ import java.util.ArrayList;
+ import java.util.Collections;
+ import java.util.HashMap;
+ import java.util.List;
+ import java.util.Map;
+
+ /**
+  * This class keeps the Store table in memory, indexed by storeID, by
+  * (state, city) like idx_store_location, by state, and by open status.
+  * Stores are listed a page at a time with optional filters, and store IDs
+  * are validated without a database round trip.  The directory is dropped
+  * and reloaded on the next access when a store_changed notification
+  * arrives.
+  *
+  */
+ public class StoreDirectory {
+
+    // NOTIFY channel raised by the stores_changed trigger
+    public static final String CHANNEL = "store_changed";
+
+    /**
+     * One row of the Store table.
+     */
+    public static class Store {
+       public final int storeID;
+       public final String address;
+       public final String city;
+       public final String state;
+       public final String isOpen;
+       public final String reviewScore;
+
+       Store(int storeID, String address, String city, String state, String isOpen, String reviewScore) {
+          this.storeID = storeID;
+          this.address = address;
+          this.city = city;
+          this.state = state;
+          this.isOpen = isOpen;
+          this.reviewScore = reviewScore;
+       }
+
+       /**
+        * @return false when isOpen says the store is closed
+        */
+       public boolean open() {
+          String status = this.isOpen.trim();
+          return !(status.equalsIgnoreCase("false") || status.equalsIgnoreCase("no")
+                   || status.equalsIgnoreCase("closed") || status.equals("0"));
+       }
+    }//end Store
+
+    // an immutable, indexed copy of the table; every list is in storeID order
+    private static class Snapshot {
+       final List<Store> all;
+       final List<Store> open;
+       final Map<Integer, Store> byId = new HashMap<Integer, Store>();
+       final Map<String, List<Store>> byLocation = new HashMap<String, List<Store>>();
+       final Map<String, List<Store>> byState = new HashMap<String, List<Store>>();
+
+       Snapshot(List<Store> stores) {
+          List<Store> open = new ArrayList<Store>();
+          for (Store store : stores) {
+             this.byId.put(store.storeID, store);
+             add(this.byLocation, locationKey(store.state, store.city), store);
+             add(this.byState, key(store.state), store);
+             if (store.open())
+                open.add(store);
+          }
+          this.all = Collections.unmodifiableList(stores);
+          this.open = Collections.unmodifiableList(open);
+       }
+
+       private static void add(Map<String, List<Store>> index, String key, Store store) {
+          List<Store> stores = index.get(key);
+          if (stores == null) {
+             stores = new ArrayList<Store>();
+             index.put(key, stores);
+          }
+          stores.add(store);
+       }
+    }//end Snapshot
+
+    private final PizzaStore _esql;
+    private volatile Snapshot _snapshot = null;
+
+    // bumped on every invalidation so a load racing with one is not kept
+    private long _generation = 0;
+
+    /**
+     * Creates an empty directory; it is loaded on first use
+     *
+     * @param esql the data-access object used to read Store
+     */
+    public StoreDirectory(PizzaStore esql) {
+       this._esql = esql;
+    }
+
+    /**
+     * Drops the cached stores so the next access reloads them.
+     */
+    public void invalidate() {
+       synchronized (this) {
+          ++this._generation;
+          this._snapshot = null;
+       }
+    }//end invalidate
+
+    /**
+     * @param storeID the store to look up
+     * @return the store, or null when there is no such store
+     */
+    public Store find(int storeID) throws SQLException {
+       return snapshot().byId.get(storeID);
+    }
+
+    /**
+     * @return the number of stores
+     */
+    public int size() throws SQLException {
+       return snapshot().all.size();
+    }
+
+    /**
+     * Lists the stores matching the filters, in storeID order.  State and
+     * city match ignoring case and surrounding blanks; a null or empty
+     * filter matches everything.  A city is only used together with a state.
+     *
+     * @param state the state to list, or null
+     * @param city the city within state to list, or null
+     * @param openOnly only list stores that are open
+     * @return the matching stores
+     */
+    public List<Store> list(String state, String city, boolean openOnly) throws SQLException {
+       Snapshot snapshot = snapshot();
+       List<Store> stores;
+       if (isBlank(state)) {
+          stores = openOnly ? snapshot.open : snapshot.all;
+          openOnly = false;
+       } else if (isBlank(city)) {
+          stores = snapshot.byState.get(key(state));
+       } else {
+          stores = snapshot.byLocation.get(locationKey(state, city));
+       }
+       if (stores == null)
+          return Collections.<Store>emptyList();
+       if (!openOnly)
+          return Collections.unmodifiableList(stores);
+       List<Store> open = new ArrayList<Store>();
+       for (Store store : stores) {
+          if (store.open())
+             open.add(store);
+       }
+       return open;
+    }//end list
+
+    /**
+     * Returns one page of a listing.
+     *
+     * @param stores a listing returned by list()
+     * @param page the zero-based page number
+     * @param pageSize the number of stores per page
+     * @return the stores on that page, empty past the end
+     */
+    public static List<Store> page(List<Store> stores, int page, int pageSize) {
+       int from = Math.min(stores.size(), page * pageSize);
+       int to = Math.min(stores.size(), from + pageSize);
+       return stores.subList(from, to);
+    }//end page
+
+    /**
+     * Prints stores the way executeQueryAndPrintResult prints Store rows.
+     *
+     * @param out the stream to print to
+     * @param stores the stores to print
+     * @return the number of stores printed
+     */
+    public static int print(PrintStream out, List<Store> stores) {
+       if (stores.isEmpty())
+          return 0;
+       StringBuilder text = new StringBuilder("storeid\taddress\tcity\tstate\tisopen\treviewscore\t\n");
+       for (Store store : stores) {
+          text.append(store.storeID).append('\t')
+              .append(store.address).append('\t')
+              .append(store.city).append('\t')
+              .append(store.state).append('\t')
+              .append(store.isOpen).append('\t')
+              .append(store.reviewScore).append("\t\n");
+       }
+       out.print(text);
+       return stores.size();
+    }//end print
+
+    private Snapshot snapshot() throws SQLException {
+       Snapshot snapshot = this._snapshot;
+       if (snapshot != null)
+          return snapshot;
+       long generation;
+       synchronized (this) {
+          generation = this._generation;
+       }
+       ColumnarResult rows = this._esql.executeQueryAndReturnColumns(
+          "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store ORDER BY storeID");
+       List<Store> stores = new ArrayList<Store>(rows.rowCount());
+       for (int row = 0; row < rows.rowCount(); ++row)
+          stores.add(new Store(rows.getInt(row, 0), rows.getString(row, 1), rows.getString(row, 2),
+                               rows.getString(row, 3), rows.getString(row, 4), rows.getString(row, 5)));
+       snapshot = new Snapshot(stores);
+       synchronized (this) {
+          if (generation == this._generation)
+             this._snapshot = snapshot;
+       }
+       return snapshot;
+    }//end snapshot
+
+    private static boolean isBlank(String text) {
+       return text == null || text.trim().isEmpty();
+    }
+
+    private static String key(String text) {
+       return text.trim().toLowerCase();
+    }
+
+    private static String locationKey(String state, String city) {
+       return key(state) + '\u0000' + key(city);
+    }
+ }//end StoreDirectory
@@ -1,6 +1,12 @@
 CREATE INDEX idx_users_login_password ON Users(login, password);
 CREATE INDEX idx_items_type_price_name ON Items(typeOfItem, price, itemName);
-CREATE INDEX idx_foodorder_login_timestamp ON FoodOrder(login, orderTimestamp DESC);
+CREATE INDEX idx_foodorder_login_placed ON FoodOrder(login, placedAt DESC, orderID DESC);
 CREATE INDEX idx_orderid_itemname ON ItemsInOrder(orderID, itemName);
 CREATE INDEX idx_store_location ON Store(city, state);
- 
\ No newline at end of file
+CREATE INDEX idx_foodorder_timestamp_id ON FoodOrder(orderTimestamp, orderID);
+CREATE INDEX idx_foodorder_placed_id ON FoodOrder(placedAt, orderID);
+CREATE INDEX idx_foodorder_open ON FoodOrder(storeID, orderTimestamp) WHERE orderStatus IN ('Placed', 'Preparing', 'Ready', 'Delivering');
+CREATE INDEX idx_storesales_hour ON StoreSalesHourly(salesHour);
+CREATE INDEX idx_itemsales_hour ON ItemSalesHourly(salesHour);
+CREATE INDEX idx_favoriteitems_item_login ON FavoriteItems(itemName, login);
+CREATE INDEX idx_orderids_placedat ON OrderIds(placedAt);
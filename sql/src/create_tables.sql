@@ -1,8 +1,12 @@
 DROP TABLE IF EXISTS Users CASCADE;
 DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
+DROP TABLE IF EXISTS OrderIds CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS FavoriteItems CASCADE;
+DROP TABLE IF EXISTS StoreSalesHourly CASCADE;
+DROP TABLE IF EXISTS ItemSalesHourly CASCADE;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -29,27 +33,125 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            PRIMARY KEY(storeID)
 );
 
+-- Every order ID and when the order was placed.  Order IDs are unique
+-- here, which the partitioned FoodOrder cannot enforce by itself (its
+-- primary key has to include the partition key), and lookups by order ID
+-- read placedAt here first so they touch one monthly partition.
+CREATE TABLE OrderIds ( orderID integer NOT NULL,
+                           placedAt timestamp NOT NULL,
+                           PRIMARY KEY(orderID)
+);
+
+-- Orders and their items are range partitioned by the month the order
+-- was placed in, so queries bounded by placedAt read only those months,
+-- and OrderArchiver detaches and archives old months whole.  placedAt
+-- never changes, so rows never move between partitions; orderTimestamp
+-- is the time of the latest status change (log_status_change in
+-- triggers.sql).  The monthly partitions are made by
+-- ensure_order_partitions() below.
+-- Needs PostgreSQL 13: BEFORE ROW triggers on partitioned tables arrived
+-- in 13, and the bundled 7.3 JDBC driver speaks protocol version 2, which
+-- servers from 14 on no longer accept.
 CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            orderStatus char(50),
-                           PRIMARY KEY(orderID),
+                           placedAt timestamp NOT NULL,
+                           PRIMARY KEY(orderID, placedAt),
+                           FOREIGN KEY(orderID) REFERENCES OrderIds(orderID),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (placedAt);
 
 
+-- New order IDs come from here.  Each nextval reserves a block of 50 IDs
+-- for one client (see OrderIdAllocator.BLOCK_SIZE, which must match).
+DROP SEQUENCE IF EXISTS foodorder_orderid_seq;
+CREATE SEQUENCE foodorder_orderid_seq INCREMENT BY 50 OWNED BY OrderIds.orderID;
 
+-- placedAt is the order's, so the items of an order live in the same
+-- month as the order.  unitPrice is the menu price when the line was
+-- ordered (price_order_line in triggers.sql).
 CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            itemName varchar(50) NOT NULL,
                            quantity integer NOT NULL,
-                           PRIMARY KEY(orderID, itemName),
-                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE,
+                           placedAt timestamp NOT NULL,
+                           unitPrice decimal(10,2) NOT NULL,
+                           PRIMARY KEY(orderID, itemName, placedAt),
+                           FOREIGN KEY(orderID, placedAt) REFERENCES FoodOrder(orderID, placedAt)
+                           ON DELETE CASCADE,
                            FOREIGN KEY(itemName) REFERENCES Items(itemName)
                            ON DELETE CASCADE
+) PARTITION BY RANGE (placedAt);
+
+-- Creates the monthly partitions of FoodOrder and ItemsInOrder covering
+-- fromTs through toTs that do not exist yet, named foodorder_yYYYYmMM and
+-- itemsinorder_yYYYYmMM, and returns how many months were added.  It is
+-- here rather than in triggers.sql because loading the data needs the
+-- partitions.  Clients call it before placing an order in a month they
+-- have not seen ready (PizzaStore.ensureOrderPartitions), and
+-- OrderArchiver keeps the coming months ready; the lock serializes
+-- callers, which could otherwise both try to create the same month.
+CREATE OR REPLACE FUNCTION ensure_order_partitions(fromTs timestamp, toTs timestamp)
+RETURNS integer AS
+$BODY$
+DECLARE
+    partStart timestamp := date_trunc('month', fromTs);
+    suffix text;
+    added integer := 0;
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtext('ensure_order_partitions'));
+    WHILE partStart <= toTs LOOP
+        suffix := to_char(partStart, '"y"YYYY"m"MM');
+        IF to_regclass('foodorder_' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE %I PARTITION OF FoodOrder FOR VALUES FROM (%L) TO (%L)',
+                           'foodorder_' || suffix, partStart, partStart + interval '1 month');
+            added := added + 1;
+        END IF;
+        IF to_regclass('itemsinorder_' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE %I PARTITION OF ItemsInOrder FOR VALUES FROM (%L) TO (%L)',
+                           'itemsinorder_' || suffix, partStart, partStart + interval '1 month');
+        END IF;
+        partStart := partStart + interval '1 month';
+    END LOOP;
+    RETURN added;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- This month and the next three; load_data.sql adds the months of the data
+SELECT ensure_order_partitions(LOCALTIMESTAMP, LOCALTIMESTAMP + interval '3 months');
+
+-- Each user's favorite menu items.  Users.favoriteItems only receives the
+-- favorites column of users.csv; migrate_favorite_items() (see
+-- triggers.sql) moves it here.
+CREATE TABLE FavoriteItems ( login varchar(50) NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           PRIMARY KEY(login, itemName),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- Sales rollups, maintained by the sales_rollup triggers (see triggers.sql)
+-- so reports never aggregate FoodOrder and ItemsInOrder.  salesHour is
+-- the hour the orders were placed (placedAt).
+CREATE TABLE StoreSalesHourly ( storeID integer NOT NULL,
+                           salesHour timestamp NOT NULL,
+                           orders integer NOT NULL,
+                           revenue decimal(12,2) NOT NULL,
+                           PRIMARY KEY(storeID, salesHour)
 );
 
+CREATE TABLE ItemSalesHourly ( storeID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           salesHour timestamp NOT NULL,
+                           quantity integer NOT NULL,
+                           revenue decimal(12,2) NOT NULL,
+                           PRIMARY KEY(storeID, itemName, salesHour)
+);
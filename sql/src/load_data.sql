@@ -1,4 +1,5 @@
 /* Replace the location to where you saved the data files*/
+/* or load them from the client with java/scripts/load_data.sh */
 COPY Users
 FROM '/home/csmajs/ttrie003/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
@@ -11,10 +12,39 @@ COPY Store
 FROM '/home/csmajs/ttrie003/cs166_project_phase3/data/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY FoodOrder
+/* FoodOrder and ItemsInOrder are partitioned by month: the orders are
+   staged to make the partitions they need and registered in OrderIds,
+   and the items are given their order's placedAt.  The files have no
+   placedAt; an order's timestamp is the best time known for it */
+CREATE TEMP TABLE FoodOrder_load AS
+SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WITH NO DATA;
+
+COPY FoodOrder_load
 FROM '/home/csmajs/ttrie003/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY ItemsInOrder
+SELECT ensure_order_partitions(MIN(orderTimestamp), MAX(orderTimestamp)) FROM FoodOrder_load;
+
+INSERT INTO OrderIds (orderID, placedAt)
+SELECT orderID, orderTimestamp FROM FoodOrder_load;
+
+INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, placedAt)
+SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, orderTimestamp FROM FoodOrder_load;
+
+CREATE TEMP TABLE ItemsInOrder_load AS
+SELECT orderID, itemName, quantity FROM ItemsInOrder WITH NO DATA;
+
+COPY ItemsInOrder_load
 FROM '/home/csmajs/ttrie003/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+/* an item of a missing order gets no placedAt, and one missing from the
+   menu no price, and is rejected; lines are priced at the current menu */
+INSERT INTO ItemsInOrder (orderID, itemName, quantity, placedAt, unitPrice)
+SELECT l.orderID, l.itemName, l.quantity, k.placedAt, i.price
+FROM ItemsInOrder_load l
+LEFT JOIN OrderIds k ON k.orderID = l.orderID
+LEFT JOIN Items i ON i.itemName = l.itemName;
+
+/* Start handing out order IDs after the loaded ones */
+SELECT setval('foodorder_orderid_seq', (SELECT COALESCE(MAX(orderID), 0) + 1 FROM OrderIds), false);
@@ -0,0 +1,15 @@
+/* Moves Users.favoriteItems into FavoriteItems on a database created before
+   the table existed; new databases get it from create_tables.sql */
+CREATE TABLE IF NOT EXISTS FavoriteItems ( login varchar(50) NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           PRIMARY KEY(login, itemName),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS idx_favoriteitems_item_login ON FavoriteItems(itemName, login);
+
+/* Needs migrate_favorite_items() from triggers.sql */
+SELECT migrate_favorite_items();
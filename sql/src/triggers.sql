@@ -71,31 +71,386 @@ WHEN (OLD.orderStatus IS DISTINCT FROM NEW.orderStatus)
 EXECUTE PROCEDURE log_status_change();
 
 
-CREATE OR REPLACE FUNCTION update_order_total()
+-- Stamps each new line item with the menu price it is ordered at, so the
+-- order total and the sales rollups never depend on the current menu: a
+-- line keeps its price when the item is repriced, and is priced even
+-- while its item is being deleted.  A line moved to another item takes
+-- that item's price.  Loaders that disable the user triggers fill
+-- unitPrice themselves.
+CREATE OR REPLACE FUNCTION price_order_line()
 RETURNS "trigger" AS
 $BODY$
-DECLARE
-    calculated_total DECIMAL(10,2);
 BEGIN
-    -- Calculate the new total price based on items and quantities
-    SELECT COALESCE(SUM(i.price * io.quantity), 0.00)
-    INTO calculated_total
-    FROM ItemsInOrder io
-    JOIN Items i ON io.itemName = i.itemName
-    WHERE io.orderID = NEW.orderID;
-    
-    -- Update the order with the calculated total
-    UPDATE FoodOrder
-    SET totalPrice = calculated_total
-    WHERE orderID = NEW.orderID;
-    
+    IF TG_OP = 'INSERT' AND NEW.unitPrice IS NULL
+       OR TG_OP = 'UPDATE' AND NEW.itemName <> OLD.itemName AND NEW.unitPrice = OLD.unitPrice THEN
+        SELECT price INTO NEW.unitPrice FROM Items WHERE itemName = NEW.itemName;
+    END IF;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS order_line_price ON ItemsInOrder;
+CREATE TRIGGER order_line_price
+BEFORE INSERT OR UPDATE ON ItemsInOrder
+FOR EACH ROW
+EXECUTE PROCEDURE price_order_line();
+
+
+-- Keeps FoodOrder.totalPrice equal to the sum of its items at the price
+-- each line was ordered at (ItemsInOrder.unitPrice).  The triggers fire
+-- once per statement and see every changed row through transition
+-- tables, so each affected order is updated exactly once, by the price of
+-- the rows that changed, whatever the number of items in the statement.
+-- A transition table trigger handles only one event, hence one trigger
+-- per event sharing this function.
+CREATE OR REPLACE FUNCTION update_order_totals()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        UPDATE FoodOrder f
+        SET totalPrice = f.totalPrice + d.delta
+        FROM (SELECT n.orderID, n.placedAt, SUM(n.unitPrice * n.quantity) AS delta
+              FROM new_items n
+              GROUP BY n.orderID, n.placedAt) d
+        WHERE f.orderID = d.orderID AND f.placedAt = d.placedAt AND d.delta <> 0;
+    ELSIF TG_OP = 'DELETE' THEN
+        UPDATE FoodOrder f
+        SET totalPrice = f.totalPrice - d.delta
+        FROM (SELECT o.orderID, o.placedAt, SUM(o.unitPrice * o.quantity) AS delta
+              FROM old_items o
+              GROUP BY o.orderID, o.placedAt) d
+        WHERE f.orderID = d.orderID AND f.placedAt = d.placedAt AND d.delta <> 0;
+    ELSE
+        UPDATE FoodOrder f
+        SET totalPrice = f.totalPrice + d.delta
+        FROM (SELECT c.orderID, c.placedAt, SUM(c.unitPrice * c.quantity) AS delta
+              FROM (SELECT orderID, placedAt, unitPrice, quantity FROM new_items
+                    UNION ALL
+                    SELECT orderID, placedAt, unitPrice, -quantity FROM old_items) c
+              GROUP BY c.orderID, c.placedAt) d
+        WHERE f.orderID = d.orderID AND f.placedAt = d.placedAt AND d.delta <> 0;
+    END IF;
+
     RETURN NULL;
 END;
 $BODY$
 LANGUAGE plpgsql VOLATILE;
 
 DROP TRIGGER IF EXISTS calculate_order_total ON ItemsInOrder;
-CREATE TRIGGER calculate_order_total
-AFTER INSERT OR UPDATE OR DELETE ON ItemsInOrder
+DROP FUNCTION IF EXISTS update_order_total();
+
+DROP TRIGGER IF EXISTS order_total_insert ON ItemsInOrder;
+CREATE TRIGGER order_total_insert
+AFTER INSERT ON ItemsInOrder
+REFERENCING NEW TABLE AS new_items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_order_totals();
+
+DROP TRIGGER IF EXISTS order_total_update ON ItemsInOrder;
+CREATE TRIGGER order_total_update
+AFTER UPDATE ON ItemsInOrder
+REFERENCING OLD TABLE AS old_items NEW TABLE AS new_items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_order_totals();
+
+DROP TRIGGER IF EXISTS order_total_delete ON ItemsInOrder;
+CREATE TRIGGER order_total_delete
+AFTER DELETE ON ItemsInOrder
+REFERENCING OLD TABLE AS old_items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_order_totals();
+
+
+-- Tells every running client to drop its cached menu (see MenuCatalog)
+CREATE OR REPLACE FUNCTION notify_menu_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    NOTIFY menu_changed;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS items_changed ON Items;
+CREATE TRIGGER items_changed
+AFTER INSERT OR UPDATE OR DELETE ON Items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_menu_changed();
+
+
+-- Tells every running client to drop its cached stores (see StoreDirectory)
+CREATE OR REPLACE FUNCTION notify_store_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    NOTIFY store_changed;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS stores_changed ON Store;
+CREATE TRIGGER stores_changed
+AFTER INSERT OR UPDATE OR DELETE ON Store
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_store_changed();
+
+
+-- Tells every running client to recheck its logged-in users (see SessionCache)
+CREATE OR REPLACE FUNCTION notify_user_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    NOTIFY user_changed;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS users_changed ON Users;
+CREATE TRIGGER users_changed
+AFTER UPDATE OF login, password, role, phoneNum OR DELETE ON Users
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_user_changed();
+
+
+-- Tells every running client that orders were placed or changed (see OpenOrderQueue)
+CREATE OR REPLACE FUNCTION notify_order_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    NOTIFY order_changed;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS orders_changed ON FoodOrder;
+CREATE TRIGGER orders_changed
+AFTER INSERT OR UPDATE OF orderStatus, totalPrice ON FoodOrder
+FOR EACH STATEMENT
+EXECUTE PROCEDURE notify_order_changed();
+
+
+-- Keeps the hourly sales rollups current from the order write path.  Like
+-- update_order_totals, it runs once per statement over the transition
+-- tables; the changed lines (quantities negated for removed rows) are
+-- gathered into one array and applied, per store, item and hour the
+-- order was placed, with one upsert per rollup table.  Revenue is each
+-- line's stored unitPrice, so the rollups agree with the order totals and
+-- with rebuild_sales_rollups whatever the menu says now.  Rows are
+-- upserted in key order so concurrent orders cannot deadlock.
+--
+-- Every order of a store in the same hour updates the same
+-- StoreSalesHourly row, so their transactions queue on that row lock
+-- until each commits; that is the price of a rollup that is exact at
+-- commit, and is small next to the rest of placing an order.
+DROP TYPE IF EXISTS sales_line CASCADE;
+CREATE TYPE sales_line AS (orderID integer, placedAt timestamp, itemName varchar(50), quantity integer,
+                           unitPrice decimal(10,2));
+
+CREATE OR REPLACE FUNCTION update_sales_rollups()
+RETURNS "trigger" AS
+$BODY$
+DECLARE
+    lines sales_line[];
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        lines := ARRAY(SELECT ROW(orderID, placedAt, itemName, quantity, unitPrice)::sales_line FROM new_items);
+    ELSIF TG_OP = 'DELETE' THEN
+        lines := ARRAY(SELECT ROW(orderID, placedAt, itemName, -quantity, unitPrice)::sales_line FROM old_items);
+    ELSE
+        lines := ARRAY(SELECT ROW(orderID, placedAt, itemName, quantity, unitPrice)::sales_line FROM new_items
+                       UNION ALL
+                       SELECT ROW(orderID, placedAt, itemName, -quantity, unitPrice)::sales_line FROM old_items);
+    END IF;
+
+    WITH d AS (
+        SELECT f.storeID, l.itemName, date_trunc('hour', l.placedAt) AS salesHour,
+               SUM(l.quantity) AS quantity, SUM(l.quantity * l.unitPrice) AS revenue
+        FROM unnest(lines) l
+        JOIN FoodOrder f ON f.orderID = l.orderID AND f.placedAt = l.placedAt
+        GROUP BY 1, 2, 3
+        HAVING SUM(l.quantity) <> 0 OR SUM(l.quantity * l.unitPrice) <> 0
+    ), items AS (
+        INSERT INTO ItemSalesHourly AS r (storeID, itemName, salesHour, quantity, revenue)
+        SELECT storeID, itemName, salesHour, quantity, revenue FROM d
+        ORDER BY 1, 2, 3
+        ON CONFLICT (storeID, itemName, salesHour) DO UPDATE
+        SET quantity = r.quantity + EXCLUDED.quantity, revenue = r.revenue + EXCLUDED.revenue
+    )
+    INSERT INTO StoreSalesHourly AS r (storeID, salesHour, orders, revenue)
+    SELECT storeID, salesHour, 0, SUM(revenue) FROM d
+    GROUP BY 1, 2
+    ORDER BY 1, 2
+    ON CONFLICT (storeID, salesHour) DO UPDATE
+    SET revenue = r.revenue + EXCLUDED.revenue;
+
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS sales_rollup_insert ON ItemsInOrder;
+CREATE TRIGGER sales_rollup_insert
+AFTER INSERT ON ItemsInOrder
+REFERENCING NEW TABLE AS new_items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_sales_rollups();
+
+DROP TRIGGER IF EXISTS sales_rollup_update ON ItemsInOrder;
+CREATE TRIGGER sales_rollup_update
+AFTER UPDATE ON ItemsInOrder
+REFERENCING OLD TABLE AS old_items NEW TABLE AS new_items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_sales_rollups();
+
+DROP TRIGGER IF EXISTS sales_rollup_delete ON ItemsInOrder;
+CREATE TRIGGER sales_rollup_delete
+AFTER DELETE ON ItemsInOrder
+REFERENCING OLD TABLE AS old_items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_sales_rollups();
+
+
+-- Takes a deleted order's line items out of both rollups.  It runs before
+-- the order row goes, because the ON DELETE CASCADE removes the items
+-- after it, when update_sales_rollups can no longer find their order's
+-- store and skips them.
+CREATE OR REPLACE FUNCTION retract_order_sales()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    WITH d AS (
+        SELECT itemName, date_trunc('hour', placedAt) AS salesHour,
+               SUM(quantity) AS quantity, SUM(quantity * unitPrice) AS revenue
+        FROM ItemsInOrder
+        WHERE orderID = OLD.orderID AND placedAt = OLD.placedAt
+        GROUP BY 1, 2
+    ), items AS (
+        UPDATE ItemSalesHourly r
+        SET quantity = r.quantity - d.quantity, revenue = r.revenue - d.revenue
+        FROM d
+        WHERE r.storeID = OLD.storeID AND r.itemName = d.itemName AND r.salesHour = d.salesHour
+    )
+    UPDATE StoreSalesHourly r
+    SET revenue = r.revenue - d.revenue
+    FROM (SELECT salesHour, SUM(revenue) AS revenue FROM d GROUP BY 1) d
+    WHERE r.storeID = OLD.storeID AND r.salesHour = d.salesHour;
+    RETURN OLD;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS sales_rollup_order_retract ON FoodOrder;
+CREATE TRIGGER sales_rollup_order_retract
+BEFORE DELETE ON FoodOrder
 FOR EACH ROW
-EXECUTE PROCEDURE update_order_total();
+EXECUTE PROCEDURE retract_order_sales();
+
+
+-- Counts orders per store and hour placed; their revenue comes from the
+-- line items (update_sales_rollups, retract_order_sales)
+CREATE OR REPLACE FUNCTION update_store_order_counts()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO StoreSalesHourly AS r (storeID, salesHour, orders, revenue)
+        SELECT storeID, date_trunc('hour', placedAt), COUNT(*), 0
+        FROM new_orders
+        GROUP BY 1, 2
+        ORDER BY 1, 2
+        ON CONFLICT (storeID, salesHour) DO UPDATE
+        SET orders = r.orders + EXCLUDED.orders;
+    ELSE
+        UPDATE StoreSalesHourly r
+        SET orders = r.orders - d.orders
+        FROM (SELECT storeID, date_trunc('hour', placedAt) AS salesHour, COUNT(*) AS orders
+              FROM old_orders
+              GROUP BY 1, 2) d
+        WHERE r.storeID = d.storeID AND r.salesHour = d.salesHour;
+    END IF;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS sales_rollup_orders_insert ON FoodOrder;
+CREATE TRIGGER sales_rollup_orders_insert
+AFTER INSERT ON FoodOrder
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_store_order_counts();
+
+DROP TRIGGER IF EXISTS sales_rollup_orders_delete ON FoodOrder;
+CREATE TRIGGER sales_rollup_orders_delete
+AFTER DELETE ON FoodOrder
+REFERENCING OLD TABLE AS old_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE update_store_order_counts();
+
+
+-- Recomputes both rollups from the orders, the way the triggers above
+-- maintain them; run after a bulk load, which disables those triggers
+CREATE OR REPLACE FUNCTION rebuild_sales_rollups()
+RETURNS void AS
+$BODY$
+BEGIN
+    DELETE FROM StoreSalesHourly;
+    DELETE FROM ItemSalesHourly;
+
+    INSERT INTO ItemSalesHourly (storeID, itemName, salesHour, quantity, revenue)
+    SELECT f.storeID, n.itemName, date_trunc('hour', n.placedAt), SUM(n.quantity), SUM(n.quantity * n.unitPrice)
+    FROM ItemsInOrder n
+    JOIN FoodOrder f ON f.orderID = n.orderID AND f.placedAt = n.placedAt
+    GROUP BY 1, 2, 3;
+
+    INSERT INTO StoreSalesHourly (storeID, salesHour, orders, revenue)
+    SELECT o.storeID, o.salesHour, o.orders, COALESCE(i.revenue, 0)
+    FROM (SELECT storeID, date_trunc('hour', placedAt) AS salesHour, COUNT(*) AS orders
+          FROM FoodOrder
+          GROUP BY 1, 2) o
+    LEFT JOIN (SELECT storeID, salesHour, SUM(revenue) AS revenue
+               FROM ItemSalesHourly
+               GROUP BY 1, 2) i ON i.storeID = o.storeID AND i.salesHour = o.salesHour;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Fill the rollups from the orders loaded so far
+SELECT rebuild_sales_rollups();
+
+
+-- Moves the favorites loaded into Users.favoriteItems (a comma-separated
+-- list of item names) into FavoriteItems, matching names to the menu
+-- without regard to case or surrounding blanks, and clears the column.
+-- Names not on the menu are dropped.  Returns the favorites added; safe
+-- to run again.
+CREATE OR REPLACE FUNCTION migrate_favorite_items()
+RETURNS integer AS
+$BODY$
+DECLARE
+    added integer;
+BEGIN
+    INSERT INTO FavoriteItems (login, itemName)
+    SELECT DISTINCT u.login, i.itemName
+    FROM Users u
+    CROSS JOIN LATERAL unnest(string_to_array(u.favoriteItems, ',')) AS f(name)
+    JOIN Items i ON LOWER(i.itemName) = LOWER(TRIM(f.name))
+    WHERE u.favoriteItems IS NOT NULL
+    ORDER BY 1, 2
+    ON CONFLICT DO NOTHING;
+    GET DIAGNOSTICS added = ROW_COUNT;
+
+    UPDATE Users SET favoriteItems = NULL WHERE favoriteItems IS NOT NULL;
+    RETURN added;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Move the favorites loaded so far
+SELECT migrate_favorite_items();